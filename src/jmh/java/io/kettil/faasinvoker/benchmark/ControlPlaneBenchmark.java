@@ -0,0 +1,56 @@
+package io.kettil.faasinvoker.benchmark;
+
+import io.kettil.faas.Manifest;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.kettil.faasinvoker.service.EnvoyControlPlane;
+import io.kettil.faasinvoker.service.Tenant;
+import io.kettil.faasinvoker.service.Tenants;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot construction in {@link EnvoyControlPlane#update(List)}. Each call alternates between two manifests
+ * whose paths all differ, so every route is rebuilt. The control plane is not started, so no xDS server is bound and
+ * no upstream host resolved; snapshots are built without endpoints.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ControlPlaneBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int paths;
+
+    private EnvoyControlPlane controlPlane;
+    private List<Tenant> a;
+    private List<Tenant> b;
+    private boolean toggle;
+
+    @Setup
+    public void setup() throws IOException {
+        Manifest manifestA = Fixtures.manifest(paths, "a");
+        Manifest manifestB = Fixtures.manifest(paths, "b");
+        a = List.of(Tenants.single(manifestA, null, "a"));
+        b = List.of(Tenants.single(manifestB, null, "b"));
+
+        controlPlane = new EnvoyControlPlane(0, 3600, EnvoyControlPlane.GroupBy.NONE, "", Tenants.of(a.get(0)),
+            new InvokerProperties(), new SimpleMeterRegistry());
+        controlPlane.update(a);
+    }
+
+    @Benchmark
+    public void rebuildSnapshot() {
+        toggle = !toggle;
+        controlPlane.update(toggle ? b : a);
+    }
+}
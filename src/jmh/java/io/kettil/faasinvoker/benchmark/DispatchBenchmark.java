@@ -0,0 +1,58 @@
+package io.kettil.faasinvoker.benchmark;
+
+import io.kettil.faasinvoker.config.InvokerProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.reactive.function.server.HandlerStrategies;
+import org.springframework.web.reactive.function.server.HandlerFunction;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of matching a request to its handler through {@code routeRequest()}, without decoding or invoking.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+    @Param({"10", "1000"})
+    public int paths;
+
+    private RouterFunction<ServerResponse> router;
+    private ServerRequest hit;
+    private ServerRequest miss;
+
+    @Setup
+    public void setup() {
+        router = Fixtures.invokerService(Fixtures.manifest(paths, "a"), new InvokerProperties()).routeRequest();
+        hit = request("/echo/" + (paths - 1));
+        miss = request("/missing");
+    }
+
+    private static ServerRequest request(String path) {
+        return ServerRequest.create(
+            MockServerWebExchange.from(MockServerHttpRequest.post(path)),
+            HandlerStrategies.withDefaults().messageReaders());
+    }
+
+    @Benchmark
+    public HandlerFunction<ServerResponse> routeHit() {
+        return router.route(hit).block();
+    }
+
+    @Benchmark
+    public HandlerFunction<ServerResponse> routeMiss() {
+        return router.route(miss).block();
+    }
+}
@@ -0,0 +1,14 @@
+package io.kettil.faasinvoker.benchmark;
+
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Stub function that returns its input, so benchmarks measure the invoker rather than the function.
+ */
+public class Echo implements Function<Map<String, Object>, Map<String, Object>> {
+    @Override
+    public Map<String, Object> apply(Map<String, Object> input) {
+        return input;
+    }
+}
@@ -0,0 +1,104 @@
+package io.kettil.faasinvoker.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.kettil.faas.Manifest;
+import io.kettil.faasinvoker.Util;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.kettil.faasinvoker.service.AsyncInvocations;
+import io.kettil.faasinvoker.service.Codecs;
+import io.kettil.faasinvoker.service.FunctionExecutors;
+import io.kettil.faasinvoker.service.InvocationMetrics;
+import io.kettil.faasinvoker.service.InvocationTracing;
+import io.kettil.faasinvoker.service.InvokerService;
+import io.kettil.faasinvoker.service.ResultCaches;
+import io.kettil.faasinvoker.service.Tenants;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.cloud.function.context.FunctionRegistration;
+import org.springframework.cloud.function.context.catalog.FunctionTypeUtils;
+import org.springframework.cloud.function.context.catalog.SimpleFunctionRegistry;
+import org.springframework.cloud.function.json.JacksonMapper;
+import org.springframework.core.convert.support.DefaultConversionService;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the invoker outside of Spring, with {@link Echo} registered in-process in place of a deployed function jar.
+ */
+public final class Fixtures {
+    public static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private Fixtures() {
+    }
+
+    /**
+     * A manifest mapping {@code /echo} and {@code /echo/1} .. {@code /echo/<paths - 1>} to {@link Echo}, with
+     * {@code tag} added to every path's authorization extensions so that two tags yield two distinct route sets.
+     */
+    public static Manifest manifest(int paths, String tag) {
+        var sb = new StringBuilder()
+            .append("location: stub.jar\n")
+            .append("authorization:\n")
+            .append("  extensions:\n")
+            .append("    namespace_service: benchmark\n")
+            .append("paths:\n");
+
+        for (int i = 0; i < paths; i++) {
+            sb.append("  /echo").append(i == 0 ? "" : "/" + i).append(":\n")
+                .append("    handler: ").append(Echo.class.getName()).append('\n')
+                .append("    authorization:\n")
+                .append("      extensions:\n")
+                .append("        tag: ").append(tag).append('\n');
+        }
+
+        try {
+            return Util.yamlMapper().readValue(sb.toString(), Manifest.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static InvokerService invokerService(Manifest manifest, InvokerProperties properties) {
+        var registry = new SimpleFunctionRegistry(
+            new DefaultConversionService(),
+            new CompositeMessageConverter(List.of(new MappingJackson2MessageConverter())),
+            new JacksonMapper(MAPPER));
+        registry.register(new FunctionRegistration<>(new Echo(), "echo")
+            .type(FunctionTypeUtils.discoverFunctionTypeFromClass(Echo.class)));
+
+        var meterRegistry = new SimpleMeterRegistry();
+
+        return new InvokerService(
+            Tenants.of(Tenants.single(manifest, registry, "benchmark")),
+            new FunctionExecutors(properties),
+            new ResultCaches(properties, meterRegistry, MAPPER),
+            new InvocationMetrics(meterRegistry, new InvocationTracing(properties)),
+            new Codecs(MAPPER),
+            new AsyncInvocations(properties, meterRegistry, 8080),
+            properties);
+    }
+
+    /**
+     * A JSON object of roughly {@code items} times 64 bytes.
+     */
+    public static Map<String, Object> payload(int items) {
+        var list = new ArrayList<Map<String, Object>>(items);
+        for (int i = 0; i < items; i++) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("id", i);
+            item.put("name", "item-" + i);
+            item.put("tags", List.of("alpha", "beta"));
+            list.add(item);
+        }
+
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("items", list);
+        return payload;
+    }
+}
@@ -0,0 +1,75 @@
+package io.kettil.faasinvoker.benchmark;
+
+import io.kettil.faasinvoker.config.InvokerProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.server.HandlerStrategies;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON decode, apply and encode of one invocation through the WebFlux codecs, in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InvocationBenchmark {
+    /**
+     * Above the 256 KB default, which the 10000 item payload exceeds
+     */
+    private static final int MAX_IN_MEMORY_SIZE = 4 * 1024 * 1024;
+
+    @Param({"1", "10000"})
+    public int items;
+
+    @Param({"INLINE", "BOUNDED_ELASTIC"})
+    public InvokerProperties.ExecutionMode execution;
+
+    private WebTestClient client;
+    private byte[] body;
+
+    @Setup
+    public void setup() throws Exception {
+        var pathProperties = new InvokerProperties.PathProperties();
+        pathProperties.setExecution(execution);
+        var properties = new InvokerProperties();
+        properties.getPaths().put("/echo", pathProperties);
+
+        client = WebTestClient
+            .bindToRouterFunction(Fixtures.invokerService(Fixtures.manifest(1, "a"), properties).routeRequest())
+            .handlerStrategies(HandlerStrategies.builder()
+                .codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(MAX_IN_MEMORY_SIZE))
+                .build())
+            .configureClient()
+            .codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(MAX_IN_MEMORY_SIZE))
+            .build();
+        body = Fixtures.MAPPER.writeValueAsBytes(Fixtures.payload(items));
+
+        // Measure the invocation, not the error response of a body the codecs reject
+        post().expectStatus().isOk();
+    }
+
+    @Benchmark
+    public byte[] invoke() {
+        return post()
+            .expectBody()
+            .returnResult()
+            .getResponseBodyContent();
+    }
+
+    private WebTestClient.ResponseSpec post() {
+        return client.post()
+            .uri("/echo")
+            .contentType(MediaType.APPLICATION_JSON)
+            .bodyValue(body)
+            .exchange();
+    }
+}
@@ -0,0 +1,66 @@
+package io.kettil.faasinvoker.benchmark;
+
+import io.kettil.faasinvoker.config.InvokerProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end requests over HTTP against the invoker served by Reactor Netty on a local port.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+public class ThroughputBenchmark {
+    @Param({"1", "1000"})
+    public int items;
+
+    private DisposableServer server;
+    private WebClient client;
+    private byte[] body;
+
+    @Setup
+    public void setup() throws Exception {
+        var router = Fixtures.invokerService(Fixtures.manifest(1, "a"), new InvokerProperties()).routeRequest();
+
+        server = HttpServer.create()
+            .host("127.0.0.1")
+            .port(0)
+            .handle(new ReactorHttpHandlerAdapter(RouterFunctions.toHttpHandler(router)))
+            .bindNow();
+        client = WebClient.create("http://127.0.0.1:" + server.port());
+        body = Fixtures.MAPPER.writeValueAsBytes(Fixtures.payload(items));
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.disposeNow();
+    }
+
+    @Benchmark
+    public byte[] invoke() {
+        return client.post()
+            .uri("/echo")
+            .contentType(MediaType.APPLICATION_JSON)
+            .bodyValue(body)
+            .retrieve()
+            .bodyToMono(byte[].class)
+            .block();
+    }
+}
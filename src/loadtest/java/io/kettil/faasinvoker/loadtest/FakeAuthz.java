@@ -0,0 +1,94 @@
+package io.kettil.faasinvoker.loadtest;
+
+import com.google.rpc.Code;
+import com.google.rpc.Status;
+import io.envoyproxy.envoy.service.auth.v3.AuthorizationGrpc;
+import io.envoyproxy.envoy.service.auth.v3.CheckRequest;
+import io.envoyproxy.envoy.service.auth.v3.CheckResponse;
+import io.grpc.Server;
+import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stands in for the authz service: allows every check that names a {@code service_path}, after a fixed latency, and
+ * denies the rest, which would only come from a route without the extensions of its path.
+ */
+@Slf4j
+public class FakeAuthz extends AuthorizationGrpc.AuthorizationImplBase implements Closeable {
+    private static final CheckResponse ALLOWED = CheckResponse.newBuilder()
+        .setStatus(Status.newBuilder().setCode(Code.OK_VALUE))
+        .build();
+    private static final CheckResponse DENIED = CheckResponse.newBuilder()
+        .setStatus(Status.newBuilder().setCode(Code.PERMISSION_DENIED_VALUE))
+        .build();
+
+    private final int latencyMs;
+    private final ScheduledExecutorService delayer;
+    private final Server server;
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder denied = new LongAdder();
+
+    public FakeAuthz(int latencyMs) throws IOException {
+        this.latencyMs = latencyMs;
+        this.delayer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "fake-authz");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = NettyServerBuilder.forPort(0)
+            .addService(this)
+            .build()
+            .start();
+
+        log.info("Fake authz server started on port {} with {} ms latency", server.getPort(), latencyMs);
+    }
+
+    public int getPort() {
+        return server.getPort();
+    }
+
+    public long getChecks() {
+        return checks.sum();
+    }
+
+    public long getDenied() {
+        return denied.sum();
+    }
+
+    @Override
+    public void check(CheckRequest request, StreamObserver<CheckResponse> responseObserver) {
+        checks.increment();
+
+        CheckResponse response = ALLOWED;
+        if (!request.getAttributes().getContextExtensionsMap().containsKey("service_path")) {
+            denied.increment();
+            response = DENIED;
+        }
+
+        if (latencyMs <= 0) {
+            respond(responseObserver, response);
+        } else {
+            CheckResponse delayed = response;
+            delayer.schedule(() -> respond(responseObserver, delayed), latencyMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void respond(StreamObserver<CheckResponse> responseObserver, CheckResponse response) {
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void close() {
+        server.shutdownNow();
+        delayer.shutdownNow();
+    }
+}
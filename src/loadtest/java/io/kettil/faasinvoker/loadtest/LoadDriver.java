@@ -0,0 +1,226 @@
+package io.kettil.faasinvoker.loadtest;
+
+import io.envoyproxy.envoy.service.auth.v3.AttributeContext;
+import io.envoyproxy.envoy.service.auth.v3.AuthorizationGrpc;
+import io.envoyproxy.envoy.service.auth.v3.CheckRequest;
+import io.envoyproxy.envoy.service.auth.v3.CheckResponse;
+import io.grpc.stub.StreamObserver;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the invoker at a fixed arrival rate, checking each request with the authz service as Envoy would. Latency is
+ * measured from when a request was due to start, so a stall shows up in the latencies instead of slowing the load.
+ */
+@Slf4j
+public class LoadDriver {
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private final HttpClient client;
+    private final AuthorizationGrpc.AuthorizationStub authz;
+    private final URI invoker;
+    private final List<Target> targets;
+    private final int rate;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+
+    private final Recorder recorder = new Recorder(HIGHEST_LATENCY_MICROS, 3);
+    private final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+
+    public LoadDriver(
+        HttpClient client,
+        AuthorizationGrpc.AuthorizationStub authz,
+        URI invoker,
+        List<Target> targets,
+        int rate,
+        int maxInFlight) {
+
+        this.client = client;
+        this.authz = authz;
+        this.invoker = invoker;
+        this.targets = targets;
+        this.rate = rate;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Runs unmeasured load for {@code warmupSeconds}, then measured load for {@code durationSeconds}, logging the
+     * latency of every second, and waits for the requests still in flight.
+     */
+    public Result run(int warmupSeconds, int durationSeconds) throws InterruptedException {
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+        var total = new Histogram(HIGHEST_LATENCY_MICROS, 3);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "loadtest-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            Histogram second = recorder.getIntervalHistogram();
+            if (second.getTotalCount() == 0)
+                return;
+
+            total.add(second);
+            log.info("{}/s, p50 {} ms, p99 {} ms, max {} ms, in flight {}",
+                second.getTotalCount(), millis(second.getValueAtPercentile(50)),
+                millis(second.getValueAtPercentile(99)), millis(second.getMaxValue()),
+                maxInFlight - inFlight.availablePermits());
+        }, 1, 1, TimeUnit.SECONDS);
+
+        long sent = 0;
+        try {
+            for (long due = start; due < end; due = start + ++sent * interval) {
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(wait);
+
+                send(targets.get((int) (sent % targets.size())), due, due >= measureFrom);
+            }
+
+            if (!inFlight.tryAcquire(maxInFlight, 1, TimeUnit.MINUTES))
+                log.warn("{} requests still in flight", maxInFlight - inFlight.availablePermits());
+        } finally {
+            reporter.shutdownNow();
+            reporter.awaitTermination(1, TimeUnit.SECONDS);
+        }
+
+        total.add(recorder.getIntervalHistogram());
+        return new Result(durationSeconds, total, counts());
+    }
+
+    private void send(Target target, long due, boolean measured) {
+        if (!inFlight.tryAcquire()) {
+            if (measured)
+                count("dropped");
+            return;
+        }
+
+        check(target)
+            .thenCompose(allowed -> allowed
+                ? client.sendAsync(target.request(invoker), HttpResponse.BodyHandlers.discarding())
+                    .thenApply(response -> Integer.toString(response.statusCode()))
+                : CompletableFuture.completedFuture("403"))
+            .whenComplete((outcome, error) -> {
+                inFlight.release();
+                if (!measured)
+                    return;
+
+                recorder.recordValue(Math.min(HIGHEST_LATENCY_MICROS, (System.nanoTime() - due) / 1000));
+                count(error == null ? outcome : cause(error).getClass().getSimpleName());
+            });
+    }
+
+    private CompletableFuture<Boolean> check(Target target) {
+        var allowed = new CompletableFuture<Boolean>();
+
+        authz.check(target.getCheck(), new StreamObserver<>() {
+            @Override
+            public void onNext(CheckResponse response) {
+                allowed.complete(response.getStatus().getCode() == 0);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                allowed.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+
+        return allowed;
+    }
+
+    private void count(String outcome) {
+        outcomes.computeIfAbsent(outcome, k -> new LongAdder()).increment();
+    }
+
+    private Map<String, Long> counts() {
+        var counts = new TreeMap<String, Long>();
+        outcomes.forEach((outcome, count) -> counts.put(outcome, count.sum()));
+        return counts;
+    }
+
+    private static Throwable cause(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null)
+            error = error.getCause();
+        return error;
+    }
+
+    static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    /**
+     * A path under test, with the body posted to it and the check Envoy would make before forwarding it
+     */
+    @Value
+    public static class Target {
+        String path;
+        String contentType;
+        byte[] body;
+        CheckRequest check;
+
+        public static Target of(String path, Map<String, String> contextExtensions, String json) {
+            byte[] body = json.getBytes(StandardCharsets.UTF_8);
+
+            return new Target(path, "application/json", body, CheckRequest.newBuilder()
+                .setAttributes(AttributeContext.newBuilder()
+                    .putAllContextExtensions(contextExtensions)
+                    .setRequest(AttributeContext.Request.newBuilder()
+                        .setHttp(AttributeContext.HttpRequest.newBuilder()
+                            .setMethod("POST")
+                            .setPath(path)
+                            .putHeaders("content-type", "application/json")
+                            .setBody(json))))
+                .build());
+        }
+
+        HttpRequest request(URI invoker) {
+            return HttpRequest.newBuilder(invoker.resolve(path))
+                .header("content-type", contentType)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        }
+    }
+
+    @Value
+    public static class Result {
+        int durationSeconds;
+        Histogram latencies;
+        Map<String, Long> outcomes;
+
+        public long getErrors() {
+            return outcomes.entrySet().stream()
+                .filter(i -> !i.getKey().startsWith("2"))
+                .mapToLong(Map.Entry::getValue)
+                .sum();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package io.kettil.faasinvoker.loadtest;
+
+import io.envoyproxy.envoy.service.auth.v3.AuthorizationGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.netty.NettyChannelBuilder;
+import io.kettil.faasinvoker.FaasInvokerApplication;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Load test of the invoker serving a generated manifest of the stub function jar, with {@link XdsClient} and
+ * {@link FakeAuthz} in the places of Envoy and the authz service. Run through {@code ./gradlew loadTest}.
+ */
+@Slf4j
+public class LoadTest {
+    static final String TENANT = "loadtest";
+    private static final String STUB_HANDLER = "io.kettil.faasinvoker.loadtest.stub.Stub";
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = LoadTestOptions.parse(args);
+
+        Path manifests = Files.createTempDirectory("loadtest-manifests");
+        List<String> paths = writeManifest(manifests, options);
+        int xdsPort = freePort();
+
+        boolean passed = false;
+        try (var authz = new FakeAuthz(options.getAuthzLatencyMs())) {
+            var invokerArgs = new ArrayList<>(List.of(
+                "--manifests=" + manifests,
+                "--server.port=0",
+                "--grpc.port=0",
+                "--envoy.xds.port=" + xdsPort));
+            invokerArgs.addAll(options.getInvokerArgs());
+
+            ConfigurableApplicationContext invoker = SpringApplication.run(
+                FaasInvokerApplication.class, invokerArgs.toArray(new String[0]));
+            ManagedChannel authzChannel = NettyChannelBuilder.forAddress("localhost", authz.getPort())
+                .usePlaintext()
+                .build();
+
+            try {
+                Map<String, Map<String, String>> extensions = XdsClient.fetch("localhost", xdsPort, TENANT)
+                    .verify(paths);
+
+                String body = body(options);
+                List<LoadDriver.Target> targets = paths.stream()
+                    .map(path -> LoadDriver.Target.of(path, extensions.get(path), body))
+                    .collect(Collectors.toList());
+
+                var driver = new LoadDriver(
+                    HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build(),
+                    AuthorizationGrpc.newStub(authzChannel),
+                    URI.create("http://localhost:" + invoker.getEnvironment().getProperty("local.server.port")),
+                    targets,
+                    options.getRate(),
+                    options.getMaxInFlight());
+
+                log.info("Driving {} paths at {}/s: {} s warm-up, {} s measured",
+                    paths.size(), options.getRate(), options.getWarmup(), options.getDuration());
+                LoadDriver.Result result = driver.run(options.getWarmup(), options.getDuration());
+
+                report(System.out, options, result, authz);
+                if (options.getHistogram() != null) {
+                    try (var out = new PrintStream(options.getHistogram())) {
+                        result.getLatencies().outputPercentileDistribution(out, 1000.0);
+                    }
+                }
+
+                passed = authz.getDenied() == 0;
+            } finally {
+                authzChannel.shutdownNow();
+                SpringApplication.exit(invoker);
+            }
+        } finally {
+            FileSystemUtils.deleteRecursively(manifests);
+        }
+
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Writes {@code <tenant>.yaml}, mapping {@code /stub} and {@code /stub/1} .. {@code /stub/<paths - 1>} to the stub
+     * function, next to a copy of the stub jar.
+     *
+     * @return the paths, as served with the tenant prefix
+     */
+    private static List<String> writeManifest(Path directory, LoadTestOptions options) throws IOException {
+        var sb = new StringBuilder()
+            .append("location: stub.jar\n")
+            .append("authorization:\n")
+            .append("  extensions:\n")
+            .append("    namespace_service: ").append(TENANT).append('\n')
+            .append("paths:\n");
+
+        List<String> paths = IntStream.range(0, options.getPaths())
+            .mapToObj(i -> "/stub" + (i == 0 ? "" : "/" + i))
+            .collect(Collectors.toList());
+
+        for (String path : paths)
+            sb.append("  ").append(path).append(":\n")
+                .append("    handler: ").append(STUB_HANDLER).append('\n');
+
+        Files.writeString(directory.resolve(TENANT + ".yaml"), sb);
+        Files.copy(Paths.get(options.getStubJar()), directory.resolve("stub.jar"));
+
+        return paths.stream()
+            .map(path -> "/" + TENANT + path)
+            .collect(Collectors.toList());
+    }
+
+    private static String body(LoadTestOptions options) {
+        return String.format("{\"latencyMs\":%d,\"cpuIterations\":%d,\"responseBytes\":%d,\"payload\":\"%s\"}",
+            options.getLatencyMs(), options.getCpuIterations(), options.getResponseBytes(),
+            "x".repeat(options.getPayloadBytes()));
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void report(PrintStream out, LoadTestOptions options, LoadDriver.Result result, FakeAuthz authz) {
+        Histogram latencies = result.getLatencies();
+
+        out.println();
+        out.printf("Rate %d/s for %d s over %d paths: latency %d ms, cpu %d iterations, payload %d B, response %d B%n",
+            options.getRate(), result.getDurationSeconds(), options.getPaths(), options.getLatencyMs(),
+            options.getCpuIterations(), options.getPayloadBytes(), options.getResponseBytes());
+        out.printf("Completed %d requests, %.1f/s, %d errors%n", latencies.getTotalCount(),
+            (double) latencies.getTotalCount() / result.getDurationSeconds(), result.getErrors());
+        out.printf("Outcomes %s, authz checks %d (%d denied)%n",
+            result.getOutcomes(), authz.getChecks(), authz.getDenied());
+
+        out.println("Latency from due start, ms:");
+        for (double percentile : PERCENTILES)
+            out.printf("  %-7s %10.3f%n", ("p" + percentile).replaceAll("\\.0$", ""),
+                LoadDriver.millis(latencies.getValueAtPercentile(percentile)));
+        out.printf("  %-7s %10.3f%n", "max", LoadDriver.millis(latencies.getMaxValue()));
+    }
+}
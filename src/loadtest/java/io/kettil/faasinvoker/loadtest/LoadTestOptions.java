@@ -0,0 +1,117 @@
+package io.kettil.faasinvoker.loadtest;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options of a load test, given as {@code --name=value}. Any other argument is passed on to the invoker, so that
+ * {@code invoker.paths.*} and other settings under test can be varied between runs.
+ */
+@Data
+public class LoadTestOptions {
+    /**
+     * Requests started per second, whether or not earlier ones have completed
+     */
+    private int rate = 200;
+
+    /**
+     * Seconds of load that are measured
+     */
+    private int duration = 30;
+
+    /**
+     * Seconds of load before measuring, to get the invoker and the function compiled
+     */
+    private int warmup = 10;
+
+    /**
+     * Paths of the stub function; requests go round-robin over them
+     */
+    private int paths = 1;
+
+    private int latencyMs = 5;
+    private int cpuIterations = 0;
+    private int payloadBytes = 256;
+    private int responseBytes = 256;
+
+    /**
+     * Requests in flight beyond which a request is dropped instead of started, counted as an error
+     */
+    private int maxInFlight = 10_000;
+
+    private int authzLatencyMs = 0;
+
+    private String stubJar;
+
+    /**
+     * File to write the full latency distribution to, in HdrHistogram's percentile format
+     */
+    private String histogram;
+
+    private List<String> invokerArgs = new ArrayList<>();
+
+    public static LoadTestOptions parse(String[] args) {
+        var options = new LoadTestOptions();
+
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                options.invokerArgs.add(arg);
+                continue;
+            }
+
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+
+            switch (name) {
+                case "rate":
+                    options.rate = Integer.parseInt(value);
+                    break;
+                case "duration":
+                    options.duration = Integer.parseInt(value);
+                    break;
+                case "warmup":
+                    options.warmup = Integer.parseInt(value);
+                    break;
+                case "paths":
+                    options.paths = Integer.parseInt(value);
+                    break;
+                case "latency-ms":
+                    options.latencyMs = Integer.parseInt(value);
+                    break;
+                case "cpu-iterations":
+                    options.cpuIterations = Integer.parseInt(value);
+                    break;
+                case "payload-bytes":
+                    options.payloadBytes = Integer.parseInt(value);
+                    break;
+                case "response-bytes":
+                    options.responseBytes = Integer.parseInt(value);
+                    break;
+                case "max-in-flight":
+                    options.maxInFlight = Integer.parseInt(value);
+                    break;
+                case "authz-latency-ms":
+                    options.authzLatencyMs = Integer.parseInt(value);
+                    break;
+                case "stub-jar":
+                    options.stubJar = value;
+                    break;
+                case "histogram":
+                    options.histogram = value;
+                    break;
+                default:
+                    options.invokerArgs.add(arg);
+            }
+        }
+
+        if (options.stubJar == null)
+            throw new IllegalArgumentException("--stub-jar is required; run through ./gradlew loadTest");
+        if (options.rate <= 0 || options.paths <= 0)
+            throw new IllegalArgumentException("--rate and --paths must be positive");
+
+        return options;
+    }
+}
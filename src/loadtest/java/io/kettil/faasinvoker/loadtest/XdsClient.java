@@ -0,0 +1,228 @@
+package io.kettil.faasinvoker.loadtest;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Struct;
+import io.envoyproxy.controlplane.cache.Resources;
+import io.envoyproxy.envoy.config.cluster.v3.Cluster;
+import io.envoyproxy.envoy.config.core.v3.Node;
+import io.envoyproxy.envoy.config.listener.v3.Listener;
+import io.envoyproxy.envoy.config.route.v3.Route;
+import io.envoyproxy.envoy.config.route.v3.RouteConfiguration;
+import io.envoyproxy.envoy.extensions.filters.http.ext_authz.v3.ExtAuthz;
+import io.envoyproxy.envoy.extensions.filters.http.ext_authz.v3.ExtAuthzPerRoute;
+import io.envoyproxy.envoy.extensions.filters.network.http_connection_manager.v3.HttpConnectionManager;
+import io.envoyproxy.envoy.extensions.filters.network.http_connection_manager.v3.HttpFilter;
+import io.envoyproxy.envoy.service.discovery.v3.AggregatedDiscoveryServiceGrpc;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryRequest;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryResponse;
+import io.grpc.ManagedChannel;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.StreamObserver;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Stands in for Envoy towards {@code EnvoyControlPlane}: fetches clusters, listeners and routes over one ADS stream,
+ * as a proxy of a node group would, and checks that they route the paths under test the way Envoy needs them to.
+ */
+@Slf4j
+public class XdsClient {
+    private static final String ROUTE_CONFIG_NAME = "local_route";
+    private static final String EXT_AUTHZ_TYPE =
+        "type.googleapis.com/envoy.extensions.filters.http.ext_authz.v3.ExtAuthz";
+    private static final String ROUTER = "envoy.filters.http.router";
+
+    private XdsClient() {
+    }
+
+    /**
+     * @param tenants the node metadata naming the tenants the proxy serves, or empty for all of them
+     */
+    public static Snapshot fetch(String host, int port, String tenants) throws InterruptedException, TimeoutException {
+        ManagedChannel channel = NettyChannelBuilder.forAddress(host, port)
+            .usePlaintext()
+            .build();
+
+        var responses = new ConcurrentHashMap<String, DiscoveryResponse>();
+        var done = new CompletableFuture<Void>();
+
+        try {
+            StreamObserver<DiscoveryRequest> requests = AggregatedDiscoveryServiceGrpc.newStub(channel)
+                .streamAggregatedResources(new StreamObserver<>() {
+                    @Override
+                    public void onNext(DiscoveryResponse response) {
+                        responses.put(response.getTypeUrl(), response);
+                        if (responses.size() == 3)
+                            done.complete(null);
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        done.completeExceptionally(t);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        done.completeExceptionally(new IllegalStateException("Control plane closed the stream"));
+                    }
+                });
+
+            Node node = Node.newBuilder()
+                .setId("loadtest")
+                .setCluster("loadtest")
+                .setMetadata(Struct.newBuilder()
+                    .putFields("tenants", com.google.protobuf.Value.newBuilder().setStringValue(tenants).build())
+                    .build())
+                .build();
+
+            requests.onNext(request(node, Resources.V3.CLUSTER_TYPE_URL));
+            requests.onNext(request(node, Resources.V3.LISTENER_TYPE_URL));
+            requests.onNext(request(node, Resources.V3.ROUTE_TYPE_URL, ROUTE_CONFIG_NAME));
+
+            try {
+                done.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Cannot fetch snapshot from control plane", e.getCause());
+            } finally {
+                requests.onCompleted();
+            }
+
+            return new Snapshot(
+                unpack(responses.get(Resources.V3.CLUSTER_TYPE_URL), Cluster.class),
+                unpack(responses.get(Resources.V3.LISTENER_TYPE_URL), Listener.class),
+                unpack(responses.get(Resources.V3.ROUTE_TYPE_URL), RouteConfiguration.class));
+        } finally {
+            channel.shutdownNow();
+        }
+    }
+
+    private static DiscoveryRequest request(Node node, String typeUrl, String... resourceNames) {
+        return DiscoveryRequest.newBuilder()
+            .setNode(node)
+            .setTypeUrl(typeUrl)
+            .addAllResourceNames(List.of(resourceNames))
+            .build();
+    }
+
+    private static <T extends com.google.protobuf.Message> List<T> unpack(DiscoveryResponse response, Class<T> type) {
+        var resources = new ArrayList<T>();
+        for (Any resource : response.getResourcesList())
+            resources.add(unpack(resource, type));
+        return resources;
+    }
+
+    private static <T extends com.google.protobuf.Message> T unpack(Any any, Class<T> type) {
+        try {
+            return any.unpack(type);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException(String.format("Cannot unpack %s", any.getTypeUrl()), e);
+        }
+    }
+
+    @Value
+    public static class Snapshot {
+        List<Cluster> clusters;
+        List<Listener> listeners;
+        List<RouteConfiguration> routeConfigurations;
+
+        /**
+         * Checks that the listener sends requests through ext_authz to the {@code authz} cluster, and that every
+         * path has a route to the {@code invoker} cluster whose ext_authz check carries the path.
+         *
+         * @return the context extensions Envoy would send with the check of each path
+         * @throws IllegalStateException listing what is wrong with the snapshot
+         */
+        public Map<String, Map<String, String>> verify(List<String> paths) {
+            var problems = new ArrayList<String>();
+
+            for (String cluster : List.of("invoker", "authz")) {
+                if (clusters.stream().noneMatch(i -> i.getName().equals(cluster)))
+                    problems.add(String.format("no cluster %s", cluster));
+            }
+
+            List<HttpFilter> filters = listeners.stream()
+                .flatMap(listener -> listener.getFilterChainsList().stream())
+                .flatMap(chain -> chain.getFiltersList().stream())
+                .filter(filter -> filter.getTypedConfig().is(HttpConnectionManager.class))
+                .findFirst()
+                .map(filter -> unpack(filter.getTypedConfig(), HttpConnectionManager.class).getHttpFiltersList())
+                .orElse(List.of());
+
+            var authzFilters = new ArrayList<String>();
+            for (HttpFilter filter : filters) {
+                if (!filter.getTypedConfig().getTypeUrl().equals(EXT_AUTHZ_TYPE))
+                    continue;
+                authzFilters.add(filter.getName());
+
+                String cluster = unpack(filter.getTypedConfig(), ExtAuthz.class)
+                    .getGrpcService().getEnvoyGrpc().getClusterName();
+                if (!cluster.equals("authz"))
+                    problems.add(String.format(
+                        "ext_authz filter %s checks against cluster %s", filter.getName(), cluster));
+            }
+
+            if (filters.isEmpty())
+                problems.add("no listener with an HTTP connection manager");
+            else if (!filters.get(filters.size() - 1).getName().equals(ROUTER))
+                problems.add("router is not the last HTTP filter");
+            if (authzFilters.isEmpty())
+                problems.add("no ext_authz filter");
+
+            Map<String, Route> routes = new LinkedHashMap<>();
+            routeConfigurations.stream()
+                .filter(config -> config.getName().equals(ROUTE_CONFIG_NAME))
+                .flatMap(config -> config.getVirtualHostsList().stream())
+                .flatMap(host -> host.getRoutesList().stream())
+                .filter(route -> !route.getMatch().getPath().isEmpty())
+                .forEach(route -> routes.putIfAbsent(route.getMatch().getPath(), route));
+
+            var extensions = new LinkedHashMap<String, Map<String, String>>();
+            for (String path : paths) {
+                Route route = routes.get(path);
+                if (route == null) {
+                    problems.add(String.format("no route for %s", path));
+                    continue;
+                }
+
+                if (!route.getRoute().getCluster().equals("invoker"))
+                    problems.add(String.format("route for %s goes to cluster %s", path, route.getRoute().getCluster()));
+
+                Optional<Map<String, String>> checked = authzFilters.stream()
+                    .map(name -> route.getTypedPerFilterConfigMap().get(name))
+                    .filter(config -> config != null)
+                    .map(config -> unpack(config, ExtAuthzPerRoute.class))
+                    .filter(perRoute -> !perRoute.getDisabled())
+                    .map(perRoute -> perRoute.getCheckSettings().getContextExtensionsMap())
+                    .findFirst();
+
+                if (checked.isEmpty()) {
+                    problems.add(String.format("route for %s is not checked by ext_authz", path));
+                } else if (!path.equals(checked.get().get("service_path"))) {
+                    problems.add(String.format(
+                        "route for %s is checked with service_path %s", path, checked.get().get("service_path")));
+                } else {
+                    extensions.put(path, checked.get());
+                }
+            }
+
+            if (!problems.isEmpty())
+                throw new IllegalStateException("Snapshot is not what Envoy needs: " + String.join("; ", problems));
+
+            log.info("Snapshot has {} clusters, {} ext_authz filters and routes for all {} paths",
+                clusters.size(), authzFilters.size(), paths.size());
+            return extensions;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package io.kettil.faasinvoker.loadtest.stub;
+
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Stub function whose cost each request sets: {@code latencyMs} spent blocked, as on a downstream call,
+ * {@code cpuIterations} of hashing and a {@code responseBytes} long {@code payload} returned. The request's own
+ * {@code payload} is only there to be decoded.
+ */
+public class Stub implements Function<Map<String, Object>, Map<String, Object>> {
+    @Override
+    public Map<String, Object> apply(Map<String, Object> input) {
+        long latencyMs = number(input, "latencyMs");
+        long cpuIterations = number(input, "cpuIterations");
+        int responseBytes = (int) number(input, "responseBytes");
+
+        if (latencyMs > 0) {
+            try {
+                Thread.sleep(latencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", e);
+            }
+        }
+
+        long hash = 1125899906842597L;
+        for (long i = 0; i < cpuIterations; i++)
+            hash = 31 * hash + (hash >>> 7) + i;
+
+        return Map.of("hash", hash, "payload", "x".repeat(responseBytes));
+    }
+
+    private static long number(Map<String, Object> input, String key) {
+        Object value = input.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+}
@@ -1,23 +1,25 @@
 package io.kettil.faasinvoker;
 
-import io.kettil.faas.Manifest;
-import lombok.SneakyThrows;
-import org.springframework.beans.factory.annotation.Value;
+import io.kettil.faasinvoker.config.InvokerProperties;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.context.annotation.Bean;
-
-import java.io.File;
+import org.springframework.boot.context.metrics.buffering.BufferingApplicationStartup;
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
+import org.springframework.context.ConfigurableApplicationContext;
 
 @SpringBootApplication
+@ConfigurationPropertiesScan
 public class FaasInvokerApplication {
+    private static final int STARTUP_STEPS = 4096;
+
     public static void main(String[] args) {
-        SpringApplication.run(FaasInvokerApplication.class, args);
-    }
+        var application = new SpringApplication(FaasInvokerApplication.class);
+        // Recorded for the actuator startup endpoint
+        application.setApplicationStartup(new BufferingApplicationStartup(STARTUP_STEPS));
+
+        ConfigurableApplicationContext context = application.run(args);
 
-    @SneakyThrows
-    @Bean
-    public Manifest manifest(@Value("${manifest}") String manifestLocation) {
-        return Util.yamlMapper().readValue(new File(manifestLocation), Manifest.class);
+        if (context.getBean(InvokerProperties.class).isTrainingRun())
+            System.exit(SpringApplication.exit(context));
     }
 }
@@ -0,0 +1,27 @@
+package io.kettil.faasinvoker.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.web.codec.CodecCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.cbor.Jackson2CborDecoder;
+import org.springframework.http.codec.cbor.Jackson2CborEncoder;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+/**
+ * WebFlux registers Smile and protobuf codecs on its own when their libraries are present, but not CBOR. Custom codecs
+ * come before the JSON ones, and the CBOR codecs claim JSON unless given their media type, so it is given explicitly.
+ */
+@Configuration(proxyBeanMethods = false)
+public class CodecConfiguration {
+    @Bean
+    public CodecCustomizer cborCodecCustomizer() {
+        ObjectMapper cborMapper = Jackson2ObjectMapperBuilder.cbor().build();
+
+        return configurer -> {
+            configurer.customCodecs().register(new Jackson2CborDecoder(cborMapper, MediaType.APPLICATION_CBOR));
+            configurer.customCodecs().register(new Jackson2CborEncoder(cborMapper, MediaType.APPLICATION_CBOR));
+        };
+    }
+}
@@ -0,0 +1,276 @@
+package io.kettil.faasinvoker.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Invoker tuning, keyed by manifest path. Paths contain slashes, so they must be bracketed when set from
+ * properties, e.g. {@code invoker.paths.[/hello].execution=dedicated}.
+ */
+@Data
+@ConfigurationProperties("invoker")
+public class InvokerProperties {
+    /**
+     * Reload the manifest when its file changes.
+     */
+    private boolean manifestWatch = true;
+
+    /**
+     * Load every class of the function jars in the background at startup, ahead of the first invocations.
+     */
+    private boolean preloadClasses = false;
+
+    /**
+     * Exit as soon as the application has started, for recording the class list of an AppCDS archive.
+     */
+    private boolean trainingRun = false;
+
+    private Warmup warmup = new Warmup();
+
+    private Async async = new Async();
+
+    private Tracing tracing = new Tracing();
+
+    private Map<String, PathProperties> paths = new LinkedHashMap<>();
+
+    public PathProperties forPath(String path) {
+        return paths.getOrDefault(path, new PathProperties());
+    }
+
+    @Data
+    public static class PathProperties {
+        private ExecutionMode execution = ExecutionMode.BOUNDED_ELASTIC;
+
+        /**
+         * Maximum number of invocations running at once; also the thread count of a dedicated pool.
+         */
+        private int maxConcurrency = 64;
+
+        /**
+         * Maximum number of invocations waiting for a thread; further requests are rejected with 503.
+         */
+        private int maxQueued = 1024;
+
+        private Limit limit = new Limit();
+
+        /**
+         * Deadline of an invocation, programmed as the Envoy route timeout; 0 for none. Behind Envoy the invoker
+         * follows {@code x-envoy-expected-rq-timeout-ms} instead, which may be shortened per request.
+         */
+        private Duration timeout = Duration.ofSeconds(15);
+
+        /**
+         * Pass the request body as is to functions taking {@code byte[]}, {@code ByteBuffer} or {@code String}, and
+         * write their bytes or text as is, rather than going through JSON.
+         */
+        private boolean raw = true;
+
+        private Codec codec = Codec.AUTO;
+
+        private Batch batch = new Batch();
+
+        private Cache cache = new Cache();
+
+        private PathWarmup warmup = new PathWarmup();
+
+        private PathAsync async = new PathAsync();
+    }
+
+    /**
+     * The on-disk queue of async invocations, shared by all paths, and the workers draining it.
+     */
+    @Data
+    public static class Async {
+        /**
+         * Directory of the queue's segment files; a volume that outlives the container to keep queued invocations
+         * across restarts.
+         */
+        private String directory = System.getProperty("java.io.tmpdir") + "/faas-invoker/queue";
+
+        private DataSize segmentSize = DataSize.ofMegabytes(64);
+
+        /**
+         * Bound on the size of all segments; requests beyond it are rejected with 503.
+         */
+        private DataSize maxSize = DataSize.ofGigabytes(1);
+
+        /**
+         * Invocations drained from the queue at once. Each path's executor still bounds its own.
+         */
+        private int workers = 4;
+
+        /**
+         * Times an invocation its path's executor rejects is retried, {@code limit.retry-after} apart, before its
+         * result is a 503.
+         */
+        private int maxRetries = 60;
+
+        /**
+         * Time a result can be polled after the invocation completed. Results are kept in memory only.
+         */
+        private Duration resultTtl = Duration.ofMinutes(10);
+
+        private long maxResults = 10_000;
+
+        /**
+         * Host name resolving to every invoker. A poll for an invocation queued by another invoker is forwarded to it
+         * only if its address is among these.
+         */
+        private String peers = "invoker";
+    }
+
+    /**
+     * W3C trace context tracing of invocations: Envoy starts or continues a trace and exports its spans, including
+     * those of ext_authz checks, and the invoker continues it with spans of its own.
+     */
+    @Data
+    public static class Tracing {
+        private boolean enabled = false;
+
+        /**
+         * Fraction of requests without a sampled trace context that are traced. The invoker follows the decision
+         * propagated by Envoy, and applies the same rate to requests reaching it directly.
+         */
+        private double sampleRate = 0.01;
+
+        /**
+         * OTLP/gRPC endpoint the invoker exports its spans to.
+         */
+        private String otlpEndpoint = "http://otel-collector:4317";
+
+        /**
+         * OpenCensus agent Envoy exports its spans to, e.g. the OpenCensus receiver of an OpenTelemetry collector.
+         */
+        private String envoyCollector = "otel-collector:55678";
+    }
+
+    /**
+     * Fire-and-forget invocation: requests are queued on disk and answered with 202 and an invocation id, and the
+     * result is polled from {@code <path>/_invocations/<id>}.
+     */
+    @Data
+    public static class PathAsync {
+        private boolean enabled = false;
+    }
+
+    /**
+     * Replays sample inputs through the functions before the invoker is published to Envoy and reports ready, and
+     * before reloaded functions replace the current ones.
+     */
+    @Data
+    public static class Warmup {
+        private boolean enabled = false;
+
+        /**
+         * Bound on one whole warm-up; paths not warm by then are published as they are.
+         */
+        private Duration timeout = Duration.ofMinutes(1);
+    }
+
+    @Data
+    public static class PathWarmup {
+        /**
+         * Inputs as JSON, or as the request body for raw functions. Paths without samples are not warmed up.
+         */
+        private List<String> samples = new ArrayList<>();
+
+        /**
+         * Most invocations to warm up with; warm-up stops earlier once latency is stable.
+         */
+        private int iterations = 1000;
+    }
+
+    /**
+     * Adaptive admission control: the number of invocations in flight is limited by a concurrency limit that follows
+     * latency, between {@code minLimit} and {@code maxConcurrency + maxQueued}. Requests over it are rejected with
+     * 503 and {@code Retry-After}.
+     */
+    @Data
+    public static class Limit {
+        /**
+         * Adapt the limit to latency; otherwise admit up to {@code maxConcurrency + maxQueued}.
+         */
+        private boolean adaptive = true;
+
+        private int minLimit = 4;
+
+        /**
+         * How far latency may rise above its long-term average before the limit shrinks.
+         */
+        private double tolerance = 1.5;
+
+        private Duration retryAfter = Duration.ofSeconds(1);
+    }
+
+    /**
+     * Batch invocation through {@code <path>/_batch}: the body is a JSON array (or NDJSON) of inputs and the
+     * response holds one result or error per input, in order.
+     */
+    @Data
+    public static class Batch {
+        private boolean enabled = false;
+
+        /**
+         * Maximum number of inputs of one batch invoked at once.
+         */
+        private int parallelism = 4;
+    }
+
+    /**
+     * Result cache for idempotent functions, keyed on the canonicalized input. Concurrent invocations with the same
+     * input share a single function call. Entries are evicted by W-TinyLFU once a size bound is reached.
+     */
+    @Data
+    public static class Cache {
+        private boolean enabled = false;
+
+        private Duration ttl = Duration.ofMinutes(1);
+
+        private long maxEntries = 10_000;
+
+        /**
+         * Bound on the serialized size of keys and results instead of their count; 0 to bound by {@link #maxEntries}.
+         */
+        private DataSize maxSize = DataSize.ofBytes(0);
+    }
+
+    public enum Codec {
+        /**
+         * Decode by {@code Content-Type} and encode by {@code Accept}, defaulting to JSON, or to protobuf for
+         * protobuf messages.
+         */
+        AUTO,
+        JSON,
+        SMILE,
+        CBOR,
+
+        /**
+         * For functions whose input and output are generated protobuf messages.
+         */
+        PROTOBUF
+    }
+
+    public enum ExecutionMode {
+        /**
+         * Run on the Netty event loop. Only for functions that neither block nor burn CPU.
+         */
+        INLINE,
+
+        /**
+         * Run on Reactor's shared bounded elastic scheduler.
+         */
+        BOUNDED_ELASTIC,
+
+        /**
+         * Run on a thread pool owned by this path alone, so it cannot starve other functions.
+         */
+        DEDICATED
+    }
+}
@@ -0,0 +1,12 @@
+package io.kettil.faasinvoker.dto;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import lombok.Value;
+
+@Value
+@JsonPropertyOrder({"id", "status", "location"})
+public class AsyncInvocation {
+    String id;
+    String status;
+    String location;
+}
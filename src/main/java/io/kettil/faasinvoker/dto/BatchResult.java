@@ -0,0 +1,30 @@
+package io.kettil.faasinvoker.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import lombok.Value;
+
+@Value
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({"result", "error", "retryAfter"})
+public class BatchResult {
+    Object result;
+    ErrorResponse error;
+
+    /**
+     * Seconds after which an input that was rejected for load may be retried, as {@code Retry-After} would say.
+     */
+    Long retryAfter;
+
+    public static BatchResult success(Object result) {
+        return new BatchResult(result, null, null);
+    }
+
+    public static BatchResult failure(ErrorResponse error) {
+        return new BatchResult(null, error, null);
+    }
+
+    public static BatchResult rejected(ErrorResponse error, long retryAfter) {
+        return new BatchResult(null, error, retryAfter);
+    }
+}
@@ -0,0 +1,64 @@
+package io.kettil.faasinvoker.service;
+
+import io.kettil.faasinvoker.config.InvokerProperties;
+
+/**
+ * A concurrency limit that follows invocation latency, in the style of Netflix's gradient limiter: it grows while
+ * short-term latency stays within {@code tolerance} of long-term latency, and shrinks as it rises above it.
+ */
+public class AdaptiveLimit {
+    private static final double SHORT_WINDOW = 10;
+    private static final double LONG_WINDOW = 600;
+    private static final double SMOOTHING = 0.2;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+
+    private double limit;
+    private double shortLatency;
+    private double longLatency;
+    private volatile int currentLimit;
+
+    AdaptiveLimit(int initialLimit, int maxLimit, InvokerProperties.Limit properties) {
+        this.maxLimit = maxLimit;
+        this.minLimit = Math.min(properties.getMinLimit(), maxLimit);
+        this.tolerance = properties.getTolerance();
+        this.limit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+        this.currentLimit = (int) limit;
+    }
+
+    public int getLimit() {
+        return currentLimit;
+    }
+
+    /**
+     * @param latencyNanos time from admission to completion of one invocation
+     * @param inFlight     invocations in flight when it completed, itself included
+     */
+    synchronized void onSample(long latencyNanos, int inFlight) {
+        if (longLatency == 0) {
+            shortLatency = latencyNanos;
+            longLatency = latencyNanos;
+            return;
+        }
+
+        shortLatency += (latencyNanos - shortLatency) / SHORT_WINDOW;
+        longLatency += (latencyNanos - longLatency) / LONG_WINDOW;
+
+        // Once latency has dropped well below the baseline, e.g. after a slow dependency recovered, let the
+        // baseline catch up rather than hold the limit to it
+        if (longLatency > 2 * shortLatency)
+            longLatency *= 0.95;
+
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longLatency / shortLatency));
+        double queueSize = Math.sqrt(limit);
+        double next = limit * gradient + queueSize;
+
+        if (next > limit && inFlight * 2 < limit)
+            return;
+
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + next * SMOOTHING));
+        currentLimit = (int) limit;
+    }
+}
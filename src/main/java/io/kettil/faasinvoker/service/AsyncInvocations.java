@@ -0,0 +1,284 @@
+package io.kettil.faasinvoker.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Invocations of async paths: queued in an {@link AsyncQueue}, run by a pool of workers, and their results kept in
+ * memory to be polled. An id starts with the address of the invoker that queued it, where polls are forwarded.
+ */
+@Slf4j
+@Component
+public class AsyncInvocations implements Closeable {
+    private static final Base64.Encoder NODE_ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder NODE_DECODER = Base64.getUrlDecoder();
+
+    private final InvokerProperties properties;
+    private final int serverPort;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final Cache<String, AsyncResult> results;
+    private final List<Thread> workers = new ArrayList<>();
+
+    private volatile String nodePrefix;
+    private volatile AsyncQueue queue;
+    private volatile boolean closed;
+
+    public AsyncInvocations(
+        InvokerProperties properties,
+        MeterRegistry registry,
+        @org.springframework.beans.factory.annotation.Value("${server.port:8080}") int serverPort) {
+
+        this.properties = properties;
+        this.serverPort = serverPort;
+        this.results = Caffeine.newBuilder()
+            .expireAfterWrite(properties.getAsync().getResultTtl())
+            .maximumSize(properties.getAsync().getMaxResults())
+            .build();
+
+        Gauge.builder("function.async.queued", this, AsyncInvocations::getQueued)
+            .register(registry);
+    }
+
+    /**
+     * Opens the queue and starts the workers, unless no path is async and there is no queue left by a previous run.
+     *
+     * @param executor runs an invocation to its result, which it never fails with
+     */
+    public void start(Function<Invocation, Mono<AsyncResult>> executor) throws IOException {
+        InvokerProperties.Async async = properties.getAsync();
+        Path directory = Paths.get(async.getDirectory());
+
+        boolean anyAsync = properties.getPaths().values().stream().anyMatch(i -> i.getAsync().isEnabled());
+        if (!anyAsync && !hasSegments(directory))
+            return;
+
+        String node = InetAddress.getLocalHost().getHostAddress() + ":" + serverPort;
+        nodePrefix = NODE_ENCODER.encodeToString(node.getBytes(StandardCharsets.UTF_8)) + ".";
+
+        int segmentSize = segmentSize(async);
+        int maxSegments = (int) Math.max(1, async.getMaxSize().toBytes() / segmentSize);
+
+        queue = new AsyncQueue(directory, segmentSize, maxSegments,
+            record -> pending.add(Invocation.decode(record).getId()));
+
+        for (int i = 0; i < async.getWorkers(); i++) {
+            var thread = new Thread(() -> work(executor), "async-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            workers.add(thread);
+        }
+
+        log.info("Async invocation queue in {} drained by {} workers", directory, async.getWorkers());
+    }
+
+    private static int segmentSize(InvokerProperties.Async async) {
+        return (int) Math.min(Integer.MAX_VALUE, async.getSegmentSize().toBytes());
+    }
+
+    private static boolean hasSegments(Path directory) throws IOException {
+        if (!Files.isDirectory(directory))
+            return false;
+
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.anyMatch(file -> file.getFileName().toString().startsWith("segment-"));
+        }
+    }
+
+    private void work(Function<Invocation, Mono<AsyncResult>> executor) {
+        try {
+            AsyncQueue.Record record;
+            while ((record = queue.take()) != null) {
+                Invocation invocation = Invocation.decode(record.getData());
+
+                try {
+                    results.put(invocation.getId(), executor.apply(invocation).block());
+                } catch (RuntimeException e) {
+                    // Interrupted by shutdown: leave the invocation in the queue to run again after restart
+                    if (closed)
+                        return;
+                    log.error("Async invocation {} of path {} failed", invocation.getId(), invocation.getPath(), e);
+                }
+
+                pending.remove(invocation.getId());
+                queue.ack(record.getPosition());
+            }
+        } catch (InterruptedException e) {
+            log.debug("Async worker stopped");
+        } catch (IOException | IllegalStateException e) {
+            log.error("Async worker failed", e);
+        }
+    }
+
+    /**
+     * @return the id of the queued invocation
+     * @throws IllegalArgumentException   if the body or content type is too large to queue
+     * @throws RejectedExecutionException if the queue is full or not open
+     */
+    public String submit(String path, String contentType, byte[] body) throws IOException {
+        AsyncQueue queue = this.queue;
+        if (queue == null)
+            throw new RejectedExecutionException("Async invocation queue is not open");
+
+        var invocation = new Invocation(nodePrefix + UUID.randomUUID(), path, contentType, body);
+        pending.add(invocation.getId());
+        try {
+            queue.append(invocation.encode());
+        } catch (IOException | RuntimeException e) {
+            pending.remove(invocation.getId());
+            throw e;
+        }
+        return invocation.getId();
+    }
+
+    /**
+     * @return the size above which a body cannot be queued, whatever the fields that precede it
+     */
+    public int maxBodySize() {
+        return AsyncQueue.maxRecordSize(segmentSize(properties.getAsync()));
+    }
+
+    /**
+     * @return the result of an invocation queued here, {@link AsyncResult#PENDING} while it has not completed, or
+     * null if it is unknown or its result expired
+     */
+    public AsyncResult result(String id) {
+        if (pending.contains(id))
+            return AsyncResult.PENDING;
+
+        return results.getIfPresent(id);
+    }
+
+    /**
+     * The address in an id comes from the client, so it is only trusted if it is that of a peer invoker.
+     *
+     * @return the base URI of the peer invoker that queued an invocation, or null if this one did or none did
+     */
+    public URI owner(String id) {
+        if (nodePrefix == null || id.startsWith(nodePrefix))
+            return null;
+
+        int dot = id.indexOf('.');
+        if (dot <= 0)
+            return null;
+
+        String owner;
+        try {
+            owner = new String(NODE_DECODER.decode(id.substring(0, dot)), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        int colon = owner.lastIndexOf(':');
+        if (colon <= 0 || !owner.substring(colon + 1).equals(Integer.toString(serverPort)))
+            return null;
+
+        try {
+            String host = owner.substring(0, colon);
+            for (InetAddress peer : InetAddress.getAllByName(properties.getAsync().getPeers())) {
+                if (peer.getHostAddress().equals(host))
+                    return new URI("http", null, host, serverPort, null, null, null);
+            }
+        } catch (URISyntaxException e) {
+            return null;
+        } catch (UnknownHostException e) {
+            log.debug("Cannot resolve peers {}: {}", properties.getAsync().getPeers(), e.getMessage());
+        }
+        return null;
+    }
+
+    public int getQueued() {
+        AsyncQueue queue = this.queue;
+        return queue != null ? queue.size() : 0;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (queue != null)
+            queue.close();
+        workers.forEach(Thread::interrupt);
+    }
+
+    /**
+     * A queued request, as written to the queue: id, path and content type, each prefixed with its length as an
+     * unsigned short, then the body.
+     */
+    @Value
+    public static class Invocation {
+        private static final int MAX_FIELD_LENGTH = 0xffff;
+
+        String id;
+        String path;
+        String contentType;
+        byte[] body;
+
+        /**
+         * @throws IllegalArgumentException if a field is longer than its length prefix can tell
+         */
+        byte[] encode() {
+            byte[] id = field("Id", this.id);
+            byte[] path = field("Path", this.path);
+            byte[] contentType = field("Content type", this.contentType);
+
+            return ByteBuffer.allocate(3 * Short.BYTES + id.length + path.length + contentType.length + body.length)
+                .putShort((short) id.length).put(id)
+                .putShort((short) path.length).put(path)
+                .putShort((short) contentType.length).put(contentType)
+                .put(body)
+                .array();
+        }
+
+        private static byte[] field(String name, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_FIELD_LENGTH)
+                throw new IllegalArgumentException(String.format(
+                    "%s of %d bytes exceeds the %d bytes an async invocation can queue",
+                    name, bytes.length, MAX_FIELD_LENGTH));
+            return bytes;
+        }
+
+        static Invocation decode(byte[] record) {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            String id = string(buffer);
+            String path = string(buffer);
+            String contentType = string(buffer);
+            byte[] body = new byte[buffer.remaining()];
+            buffer.get(body);
+            return new Invocation(id, path, contentType, body);
+        }
+
+        private static String string(ByteBuffer buffer) {
+            byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
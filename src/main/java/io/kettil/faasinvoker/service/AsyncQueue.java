@@ -0,0 +1,268 @@
+package io.kettil.faasinvoker.service;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A durable FIFO queue of byte records in memory-mapped segment files, with a checkpoint of the oldest record not yet
+ * acknowledged. Records are framed by length and CRC, so a torn one is dropped on reopening; they are delivered at
+ * least once, and survive a crash of the process but not of the host.
+ */
+@Slf4j
+class AsyncQueue implements Closeable {
+    private static final int HEADER = 8;
+    private static final int END_OF_SEGMENT = -1;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final MappedByteBuffer checkpoint;
+    private final TreeMap<Integer, MappedByteBuffer> segments = new TreeMap<>();
+    private final TreeSet<Long> unacked = new TreeSet<>();
+
+    private long readPosition;
+    private long writePosition;
+    private int pending;
+    private boolean closed;
+
+    /**
+     * @param recovered called with every record left in the queue from a previous run, in order
+     */
+    AsyncQueue(Path directory, int segmentSize, int maxSegments, Consumer<byte[]> recovered) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        Files.createDirectories(directory);
+        checkpoint = map(directory.resolve("checkpoint"), Long.BYTES);
+        readPosition = checkpoint.getLong(0);
+
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Matcher matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+                if (!matcher.matches())
+                    continue;
+
+                int segment = Integer.parseInt(matcher.group(1));
+                if (segment < segment(readPosition))
+                    Files.delete(file);
+                else
+                    segments.put(segment, map(file, segmentSize));
+            }
+        }
+
+        recover(recovered);
+    }
+
+    /**
+     * Reads the records after the checkpoint up to the first torn one, and continues appending in a new segment.
+     */
+    private void recover(Consumer<byte[]> recovered) throws IOException {
+        long position = readPosition;
+
+        while (segments.containsKey(segment(position))) {
+            byte[] record = read(position);
+            if (record == null) {
+                if (!segments.containsKey(segment(position) + 1))
+                    break;
+                position = position(segment(position) + 1, 0);
+                continue;
+            }
+
+            recovered.accept(record);
+            pending++;
+            position = position(segment(position), offset(position) + HEADER + record.length);
+        }
+
+        int segment = segments.isEmpty() ? segment(readPosition) : segments.lastKey() + 1;
+        writePosition = position(segment, 0);
+        segments.put(segment, map(segmentFile(segment), segmentSize));
+
+        if (pending > 0)
+            log.info("Recovered {} queued records in {}", pending, directory);
+    }
+
+    /**
+     * @return the record at a position, or null if there is none or it is torn
+     */
+    private byte[] read(long position) {
+        MappedByteBuffer buffer = segments.get(segment(position));
+        int offset = offset(position);
+        if (buffer == null || offset + HEADER > segmentSize)
+            return null;
+
+        int length = buffer.getInt(offset);
+        if (length <= 0 || length > segmentSize - offset - HEADER)
+            return null;
+
+        byte[] record = new byte[length];
+        buffer.duplicate().position(offset + HEADER).get(record);
+        return crc(record) == buffer.getInt(offset + Integer.BYTES) ? record : null;
+    }
+
+    /**
+     * @return the largest record a segment of {@code segmentSize} bytes can hold
+     */
+    static int maxRecordSize(int segmentSize) {
+        return segmentSize - 2 * HEADER;
+    }
+
+    /**
+     * @throws IllegalArgumentException   if the record is larger than a segment can hold
+     * @throws RejectedExecutionException if the queue has reached its maximum size
+     */
+    synchronized void append(byte[] record) throws IOException {
+        if (closed)
+            throw new RejectedExecutionException("Queue is closed");
+        if (record.length > maxRecordSize(segmentSize))
+            throw new IllegalArgumentException(String.format(
+                "Record of %d bytes exceeds the segment size of %d bytes", record.length, segmentSize));
+
+        int segment = segment(writePosition);
+        int offset = offset(writePosition);
+
+        // Keep room for the end-of-segment marker
+        if (offset + HEADER + record.length > segmentSize - Integer.BYTES) {
+            if (segments.size() >= maxSegments)
+                throw new RejectedExecutionException("Async invocation queue is full");
+
+            segments.get(segment).putInt(offset, END_OF_SEGMENT);
+            segment++;
+            offset = 0;
+            segments.put(segment, map(segmentFile(segment), segmentSize));
+        }
+
+        MappedByteBuffer buffer = segments.get(segment);
+        buffer.putInt(offset + Integer.BYTES, crc(record));
+        buffer.duplicate().position(offset + HEADER).put(record);
+        buffer.putInt(offset, record.length);
+
+        writePosition = position(segment, offset + HEADER + record.length);
+        pending++;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the next record.
+     *
+     * @return the record, or null once the queue is closed
+     * @throws IllegalStateException if records are pending but none is left to read, as when segment files were
+     *                               removed or overwritten behind the queue's back
+     */
+    synchronized Record take() throws InterruptedException {
+        while (pending == 0 && !closed)
+            wait();
+
+        if (closed)
+            return null;
+
+        while (true) {
+            if (!segments.containsKey(segment(readPosition)))
+                throw new IllegalStateException(String.format(
+                    "Queue in %s is corrupt: %d records are pending but segment %d is missing",
+                    directory, pending, segment(readPosition)));
+
+            byte[] record = read(readPosition);
+            if (record == null) {
+                readPosition = position(segment(readPosition) + 1, 0);
+                continue;
+            }
+
+            long position = readPosition;
+            readPosition = position(segment(position), offset(position) + HEADER + record.length);
+            pending--;
+            unacked.add(position);
+            return new Record(position, record);
+        }
+    }
+
+    /**
+     * Marks a record done, moving the checkpoint past it if it was the oldest one outstanding.
+     */
+    synchronized void ack(long position) throws IOException {
+        if (!unacked.remove(position) || closed)
+            return;
+
+        long next = unacked.isEmpty() ? readPosition : unacked.first();
+        checkpoint.putLong(0, next);
+
+        while (segments.firstKey() < segment(next)) {
+            Map.Entry<Integer, MappedByteBuffer> first = segments.pollFirstEntry();
+            Files.deleteIfExists(segmentFile(first.getKey()));
+        }
+    }
+
+    /**
+     * @return records appended but not yet acknowledged
+     */
+    synchronized int size() {
+        return pending + unacked.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+
+        closed = true;
+        notifyAll();
+
+        segments.values().forEach(MappedByteBuffer::force);
+        checkpoint.force();
+    }
+
+    private Path segmentFile(int segment) {
+        return directory.resolve(String.format("segment-%010d.log", segment));
+    }
+
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static int crc(byte[] record) {
+        var crc = new CRC32();
+        crc.update(ByteBuffer.wrap(record));
+        return (int) crc.getValue();
+    }
+
+    private static long position(int segment, int offset) {
+        return (long) segment << 32 | offset;
+    }
+
+    private static int segment(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private static int offset(long position) {
+        return (int) position;
+    }
+
+    @Value
+    static class Record {
+        long position;
+        byte[] data;
+    }
+}
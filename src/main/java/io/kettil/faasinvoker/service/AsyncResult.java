@@ -0,0 +1,20 @@
+package io.kettil.faasinvoker.service;
+
+import lombok.Value;
+
+/**
+ * The outcome of an async invocation, encoded as the response to a poll for it.
+ */
+@Value
+public class AsyncResult {
+    public static final AsyncResult PENDING = new AsyncResult(202, null, null);
+
+    int status;
+
+    /**
+     * Null for no body.
+     */
+    String contentType;
+
+    byte[] body;
+}
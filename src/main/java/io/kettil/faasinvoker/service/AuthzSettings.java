@@ -0,0 +1,88 @@
+package io.kettil.faasinvoker.service;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+
+/**
+ * Per-route ext_authz settings, taken out of the authorization extensions of a manifest: {@code authz_disabled},
+ * {@code authz_with_body}, {@code authz_timeout_ms} and {@code authz_allow_partial_message}.
+ */
+@Slf4j
+@Value
+public class AuthzSettings {
+    public static final String DISABLED = "authz_disabled";
+    public static final String WITH_BODY = "authz_with_body";
+    public static final String TIMEOUT_MS = "authz_timeout_ms";
+    public static final String ALLOW_PARTIAL_MESSAGE = "authz_allow_partial_message";
+
+    public static final AuthzSettings DEFAULT = new AuthzSettings(false, true, Profile.DEFAULT);
+
+    boolean disabled;
+    boolean withBody;
+    Profile profile;
+
+    /**
+     * Invalid values fail closed: the path keeps authorization, with the request body and without partial messages,
+     * and an invalid timeout falls back to the default.
+     */
+    public static AuthzSettings extract(Map<String, String> extensions) {
+        String path = extensions.get("service_path");
+        boolean disabled = flag(path, DISABLED, extensions.remove(DISABLED), false);
+        boolean withBody = flag(path, WITH_BODY, extensions.remove(WITH_BODY), true);
+        String timeoutMillis = extensions.remove(TIMEOUT_MS);
+        boolean allowPartialMessage =
+            flag(path, ALLOW_PARTIAL_MESSAGE, extensions.remove(ALLOW_PARTIAL_MESSAGE), false);
+
+        long timeout = Profile.DEFAULT.getTimeoutMillis();
+        if (timeoutMillis != null) {
+            try {
+                timeout = Long.parseLong(timeoutMillis.trim());
+            } catch (NumberFormatException e) {
+                timeout = 0;
+            }
+
+            if (timeout <= 0) {
+                log.warn("Ignoring invalid {} '{}' for path {}", TIMEOUT_MS, timeoutMillis, path);
+                timeout = Profile.DEFAULT.getTimeoutMillis();
+            }
+        }
+
+        return new AuthzSettings(disabled, withBody, new Profile(timeout, allowPartialMessage));
+    }
+
+    private static boolean flag(String path, String name, String value, boolean defaultValue) {
+        if (value == null)
+            return defaultValue;
+
+        switch (value.trim().toLowerCase()) {
+            case "true":
+                return true;
+            case "false":
+                return false;
+            default:
+                log.warn("Ignoring invalid {} '{}' for path {}", name, value, path);
+                return defaultValue;
+        }
+    }
+
+    /**
+     * Settings Envoy only takes per ext_authz filter, so each distinct profile gets a filter of its own.
+     */
+    @Value
+    public static class Profile {
+        public static final Profile DEFAULT = new Profile(1000, false);
+
+        long timeoutMillis;
+        boolean allowPartialMessage;
+
+        public String getFilterName() {
+            if (equals(DEFAULT))
+                return "envoy.filters.http.ext_authz";
+
+            return String.format("envoy.filters.http.ext_authz.%dms%s",
+                timeoutMillis, allowPartialMessage ? ".partial" : "");
+        }
+    }
+}
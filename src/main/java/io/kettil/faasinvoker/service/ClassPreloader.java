@@ -0,0 +1,68 @@
+package io.kettil.faasinvoker.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Loads, without initializing, every class of a function jar on a background thread.
+ */
+@Slf4j
+final class ClassPreloader {
+    private static final String BOOT_CLASSES = "BOOT-INF/classes/";
+
+    private ClassPreloader() {
+    }
+
+    static void preload(String name, Path jar, ClassLoader classLoader) {
+        var thread = new Thread(() -> run(jar, classLoader), "class-preloader-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void run(Path jar, ClassLoader classLoader) {
+        long start = System.nanoTime();
+        int loaded = 0;
+
+        try (var jarFile = new JarFile(jar.toFile())) {
+            for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements(); ) {
+                String className = className(entries.nextElement().getName());
+                if (className == null)
+                    continue;
+
+                try {
+                    Class.forName(className, false, classLoader);
+                    loaded++;
+                } catch (ClassNotFoundException | LinkageError e) {
+                    // Optional dependencies of the jar may be missing; the function fails on use, not here
+                    log.debug("Cannot preload {}: {}", className, e.toString());
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Cannot preload classes of {}: {}", jar, e.getMessage());
+            return;
+        }
+
+        log.info("Preloaded {} classes of {} in {} ms", loaded, jar, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * @return the class name of a jar entry, or null if it is not a loadable class
+     */
+    private static String className(String entry) {
+        if (!entry.endsWith(".class") || entry.startsWith("META-INF/") || entry.startsWith("BOOT-INF/lib/"))
+            return null;
+
+        if (entry.startsWith(BOOT_CLASSES))
+            entry = entry.substring(BOOT_CLASSES.length());
+
+        if (entry.endsWith("module-info.class") || entry.endsWith("package-info.class"))
+            return null;
+
+        return entry.substring(0, entry.length() - ".class".length()).replace('/', '.');
+    }
+}
@@ -0,0 +1,213 @@
+package io.kettil.faasinvoker.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.protobuf.MessageLite;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import org.springframework.core.codec.AbstractDataBufferDecoder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.DecoderHttpMessageReader;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks the format of function input and output. A path with codec {@code auto} decodes its input by the request's
+ * {@code Content-Type} and encodes its output by {@code Accept}; any other codec is used in both directions
+ * regardless of headers. JSON is written compact unless the request has a {@code pretty} query parameter.
+ */
+@Component
+public class Codecs {
+    public static final MediaType SMILE = new MediaType("application", "x-jackson-smile");
+    public static final MediaType CBOR = new MediaType("application", "cbor");
+    public static final MediaType PROTOBUF = new MediaType("application", "x-protobuf");
+
+    private static final List<MediaType> JACKSON_TYPES = List.of(MediaType.APPLICATION_JSON, SMILE, CBOR);
+    private static final List<MediaType> PROTOBUF_TYPES = List.of(PROTOBUF);
+    private static final int DEFAULT_MAX_IN_MEMORY_SIZE = 256 * 1024;
+
+    private final ObjectMapper jsonMapper;
+    private final ObjectMapper smileMapper = Jackson2ObjectMapperBuilder.smile().build();
+    private final ObjectMapper cborMapper = Jackson2ObjectMapperBuilder.cbor().build();
+    private final ObjectWriter prettyWriter;
+
+    public Codecs(ObjectMapper objectMapper) {
+        this.jsonMapper = objectMapper;
+        this.prettyWriter = objectMapper.writerWithDefaultPrettyPrinter();
+    }
+
+    public static MediaType mediaType(InvokerProperties.Codec codec) {
+        switch (codec) {
+            case SMILE:
+                return SMILE;
+            case CBOR:
+                return CBOR;
+            case PROTOBUF:
+                return PROTOBUF;
+            default:
+                return MediaType.APPLICATION_JSON;
+        }
+    }
+
+    /**
+     * @return the codec of a content type, or {@code auto} if it is none of the supported ones
+     */
+    public static InvokerProperties.Codec codec(MediaType contentType) {
+        if (contentType.isCompatibleWith(MediaType.APPLICATION_JSON))
+            return InvokerProperties.Codec.JSON;
+        if (contentType.isCompatibleWith(SMILE))
+            return InvokerProperties.Codec.SMILE;
+        if (contentType.isCompatibleWith(CBOR))
+            return InvokerProperties.Codec.CBOR;
+        if (contentType.isCompatibleWith(PROTOBUF))
+            return InvokerProperties.Codec.PROTOBUF;
+        return InvokerProperties.Codec.AUTO;
+    }
+
+    /**
+     * @return the codec {@link #encode(InvokerProperties.Codec, Object)} writes an output with
+     */
+    public static InvokerProperties.Codec resolve(InvokerProperties.Codec codec, Object output) {
+        if (codec != InvokerProperties.Codec.AUTO)
+            return codec;
+
+        return output instanceof MessageLite ? InvokerProperties.Codec.PROTOBUF : InvokerProperties.Codec.JSON;
+    }
+
+    /**
+     * @return the request to decode the input from, with the path's codec as content type unless it is {@code auto}
+     */
+    public ServerRequest forInput(InvokerProperties.Codec codec, ServerRequest request) {
+        if (codec == InvokerProperties.Codec.AUTO)
+            return request;
+
+        return ServerRequest.from(request)
+            .headers(headers -> headers.setContentType(mediaType(codec)))
+            .body(request.bodyToFlux(DataBuffer.class))
+            .build();
+    }
+
+    /**
+     * @return the number of bytes the server's decoders buffer at most, {@code spring.codec.max-in-memory-size}
+     */
+    public static int maxInMemorySize(ServerRequest request) {
+        return request.messageReaders().stream()
+            .filter(DecoderHttpMessageReader.class::isInstance)
+            .map(reader -> ((DecoderHttpMessageReader<?>) reader).getDecoder())
+            .filter(AbstractDataBufferDecoder.class::isInstance)
+            .mapToInt(decoder -> ((AbstractDataBufferDecoder<?>) decoder).getMaxInMemorySize())
+            .findFirst()
+            .orElse(DEFAULT_MAX_IN_MEMORY_SIZE);
+    }
+
+    /**
+     * Decodes a stream of inputs, a JSON array or NDJSON, as they arrive. Each is read as JSON whatever its type, so
+     * that a stream of strings is one of JSON strings rather than of lines of text.
+     */
+    public Flux<Object> decodeStream(ServerRequest request, Class<?> type) {
+        return request.bodyToFlux(JsonNode.class)
+            .map(input -> jsonMapper.convertValue(input, type));
+    }
+
+    public Mono<ServerResponse> respond(InvokerProperties.Codec codec, ServerRequest request, Object output) {
+        MediaType contentType = codec == InvokerProperties.Codec.AUTO
+            ? negotiate(request.headers().accept(), output instanceof com.google.protobuf.Message)
+            : mediaType(codec);
+
+        if (contentType.equals(MediaType.APPLICATION_JSON) && isPretty(request)) {
+            byte[] body;
+            try {
+                body = prettyWriter.writeValueAsBytes(output);
+            } catch (JsonProcessingException e) {
+                return Mono.error(e);
+            }
+
+            return ServerResponse.ok()
+                .contentType(contentType)
+                .bodyValue(body);
+        }
+
+        return ServerResponse.ok()
+            .contentType(contentType)
+            .bodyValue(output);
+    }
+
+    /**
+     * Decodes input that does not come with HTTP headers, such as a gRPC payload. Codec {@code auto} then means
+     * protobuf for protobuf message types and JSON for everything else.
+     */
+    public Object decode(InvokerProperties.Codec codec, InputStream input, Class<?> type) throws IOException {
+        if (codec == InvokerProperties.Codec.PROTOBUF
+            || codec == InvokerProperties.Codec.AUTO && MessageLite.class.isAssignableFrom(type)) {
+            try {
+                return type.getMethod("parseFrom", InputStream.class).invoke(null, input);
+            } catch (ReflectiveOperationException e) {
+                throw new IOException(String.format("Cannot parse %s as protobuf", type.getName()), e);
+            }
+        }
+
+        return mapper(codec).readValue(input, type);
+    }
+
+    /**
+     * Encodes output for a caller without HTTP headers, the counterpart of
+     * {@link #decode(InvokerProperties.Codec, InputStream, Class)}.
+     */
+    public byte[] encode(InvokerProperties.Codec codec, Object output) throws IOException {
+        if (resolve(codec, output) == InvokerProperties.Codec.PROTOBUF) {
+            if (!(output instanceof MessageLite))
+                throw new IOException(String.format("Cannot write %s as protobuf", output.getClass().getName()));
+
+            return ((MessageLite) output).toByteArray();
+        }
+
+        return mapper(codec).writeValueAsBytes(output);
+    }
+
+    private ObjectMapper mapper(InvokerProperties.Codec codec) {
+        switch (codec) {
+            case SMILE:
+                return smileMapper;
+            case CBOR:
+                return cborMapper;
+            default:
+                return jsonMapper;
+        }
+    }
+
+    /**
+     * The most preferred accepted type that can encode the output, or the default for its kind if none can.
+     */
+    static MediaType negotiate(List<MediaType> accept, boolean protobuf) {
+        List<MediaType> candidates = protobuf ? PROTOBUF_TYPES : JACKSON_TYPES;
+
+        var sorted = new ArrayList<>(accept);
+        MediaType.sortBySpecificityAndQuality(sorted);
+
+        for (MediaType acceptable : sorted) {
+            for (MediaType candidate : candidates) {
+                if (candidate.isCompatibleWith(acceptable))
+                    return candidate;
+            }
+        }
+
+        return candidates.get(0);
+    }
+
+    private static boolean isPretty(ServerRequest request) {
+        return request.queryParam("pretty")
+            .map(value -> value.isEmpty() || Boolean.parseBoolean(value))
+            .orElse(false);
+    }
+}
@@ -0,0 +1,191 @@
+package io.kettil.faasinvoker.service;
+
+import io.kettil.faas.Manifest;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cloud.function.context.catalog.FunctionTypeUtils;
+import org.springframework.cloud.function.context.catalog.SimpleFunctionRegistry;
+import org.springframework.web.reactive.function.server.HandlerFunction;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Immutable exact-match routing from manifest path to function, resolved once so that dispatching a request
+ * is a single map lookup. Polls for async invocations, {@code <path>/_invocations/<id>}, take a second one.
+ */
+@Slf4j
+public class DispatchTable implements RouterFunction<ServerResponse> {
+    public static final String BATCH_SUFFIX = "/_batch";
+    public static final String INVOCATIONS_SEGMENT = "/_invocations/";
+
+    private static final Set<Class<?>> RAW_TYPES = Set.of(byte[].class, ByteBuffer.class, String.class);
+
+    private final Map<String, FunctionRoute> routes;
+    private final Map<String, Mono<HandlerFunction<ServerResponse>>> handlers;
+
+    private DispatchTable(Map<String, FunctionRoute> routes,
+                          Map<String, Mono<HandlerFunction<ServerResponse>>> handlers) {
+        this.routes = Map.copyOf(routes);
+        this.handlers = Map.copyOf(handlers);
+    }
+
+    /**
+     * Routes every path of every tenant, prefixed with the tenant's prefix.
+     *
+     * @throws IllegalStateException if a path refers to a handler that is not in its tenant's catalog
+     */
+    public static DispatchTable build(
+        List<Tenant> tenants,
+        FunctionExecutors executors,
+        ResultCaches caches,
+        InvocationMetrics metrics,
+        InvokerProperties properties,
+        Function<FunctionRoute, HandlerFunction<ServerResponse>> handlerFactory,
+        Function<FunctionRoute, HandlerFunction<ServerResponse>> batchHandlerFactory,
+        Function<FunctionRoute, HandlerFunction<ServerResponse>> invocationHandlerFactory) {
+
+        var routes = new HashMap<String, FunctionRoute>();
+        var handlers = new HashMap<String, Mono<HandlerFunction<ServerResponse>>>();
+
+        for (Tenant tenant : tenants) {
+            for (Map.Entry<String, Manifest.PathManifest> i : tenant.getManifest().getPaths().entrySet()) {
+                String path = tenant.getPrefix() + i.getKey();
+                String functionName = Tenant.functionName(i.getValue().getHandler());
+                SimpleFunctionRegistry.FunctionInvocationWrapper wrapper = tenant.getCatalog().lookup(functionName);
+
+                // A catalog of one function looks that one up under any name
+                if (wrapper == null || !functionName.equals(wrapper.getFunctionDefinition()))
+                    throw new IllegalStateException(String.format(
+                        "No function implementation '%s' registered for path %s", functionName, path));
+
+                Type inputType = wrapper.getInputType();
+                Type outputType = wrapper.getOutputType();
+
+                Class<?> rawInputType = FunctionTypeUtils.getRawType(wrapper.getItemType(inputType));
+                boolean streamingInput = isStreaming(wrapper.isInputTypePublisher(), inputType);
+                boolean streamingOutput = isStreaming(wrapper.isOutputTypePublisher(), outputType);
+                InvokerProperties.PathProperties pathProperties = properties.forPath(path);
+
+                FunctionExecutors.FunctionExecutor executor = executors.forPath(path);
+
+                boolean async = pathProperties.getAsync().isEnabled();
+                if (async && (streamingInput || streamingOutput)) {
+                    log.warn("Path {} has async enabled but function '{}' is reactive; not async", path, functionName);
+                    async = false;
+                }
+
+                var route = new FunctionRoute(
+                    path,
+                    functionName,
+                    wrapper,
+                    tenant.getClassLoader(),
+                    rawInputType,
+                    streamingInput,
+                    streamingOutput,
+                    isRaw(wrapper, rawInputType, streamingInput || streamingOutput, pathProperties),
+                    async,
+                    executor,
+                    caches.forRoute(path, functionName, tenant.getFingerprint()),
+                    metrics.forRoute(path, functionName, executor),
+                    pathProperties);
+                routes.put(path, route);
+                handlers.put(path, Mono.just(route.getMetrics().instrument(handlerFactory.apply(route))));
+
+                log.info("Path {} dispatches to function '{}'{}{}", path, functionName,
+                    route.isRaw() ? " (raw)" : "", route.isAsync() ? " (async)" : "");
+
+                if (route.isAsync())
+                    handlers.put(path + INVOCATIONS_SEGMENT, Mono.just(invocationHandlerFactory.apply(route)));
+
+                if (isBatchable(i.getValue(), route.getProperties())) {
+                    if (route.isStreamingInput() || route.isStreamingOutput())
+                        log.warn("Path {} has batching enabled but function '{}' is reactive; not batching",
+                            path, functionName);
+                    else
+                        handlers.put(path + BATCH_SUFFIX,
+                            Mono.just(route.getMetrics().instrument(batchHandlerFactory.apply(route))));
+                }
+            }
+        }
+
+        return new DispatchTable(routes, handlers);
+    }
+
+    private static boolean isRaw(
+        SimpleFunctionRegistry.FunctionInvocationWrapper wrapper,
+        Class<?> inputType,
+        boolean streaming,
+        InvokerProperties.PathProperties properties) {
+
+        return properties.isRaw()
+            && !streaming
+            && RAW_TYPES.contains(inputType)
+            && wrapper.getTarget() instanceof Function;
+    }
+
+    private static boolean isStreaming(boolean publisher, Type type) {
+        return publisher && !FunctionTypeUtils.isMono(type);
+    }
+
+    /**
+     * @return whether the function a path dispatches to streams its input or output, which only HTTP serves; false
+     * if the tenant has no such function
+     */
+    public static boolean isStreaming(Tenant tenant, Manifest.PathManifest pathManifest) {
+        if (tenant.getCatalog() == null)
+            return false;
+
+        SimpleFunctionRegistry.FunctionInvocationWrapper wrapper =
+            tenant.getCatalog().lookup(Tenant.functionName(pathManifest.getHandler()));
+        return wrapper != null
+            && (isStreaming(wrapper.isInputTypePublisher(), wrapper.getInputType())
+            || isStreaming(wrapper.isOutputTypePublisher(), wrapper.getOutputType()));
+    }
+
+    /**
+     * Paths that authorize against an object in the request body are never batched: the authorization check sees
+     * the whole batch, not each input.
+     */
+    public static boolean isBatchable(Manifest.PathManifest pathManifest, InvokerProperties.PathProperties properties) {
+        return properties.getBatch().isEnabled()
+            && pathManifest.getAuthorization().getObjectIdPtr() == null;
+    }
+
+    @Override
+    public Mono<HandlerFunction<ServerResponse>> route(ServerRequest request) {
+        String path = request.uri().getPath();
+
+        Mono<HandlerFunction<ServerResponse>> handler = handlers.get(path);
+        if (handler != null)
+            return handler;
+
+        int invocations = path.lastIndexOf(INVOCATIONS_SEGMENT);
+        if (invocations > 0)
+            return handlers.getOrDefault(path.substring(0, invocations + INVOCATIONS_SEGMENT.length()), Mono.empty());
+
+        return Mono.empty();
+    }
+
+    public FunctionRoute get(String path) {
+        return routes.get(path);
+    }
+
+    public Collection<FunctionRoute> routes() {
+        return routes.values();
+    }
+
+    public Set<String> paths() {
+        return routes.keySet();
+    }
+}
@@ -3,16 +3,26 @@ package io.kettil.faasinvoker.service;
 import com.google.common.collect.ImmutableList;
 import com.google.protobuf.Any;
 import com.google.protobuf.Duration;
+import com.google.protobuf.UInt32Value;
+import com.google.protobuf.Value;
+import com.google.protobuf.util.Durations;
 import io.envoyproxy.controlplane.cache.NodeGroup;
+import io.envoyproxy.controlplane.cache.Resources;
 import io.envoyproxy.controlplane.cache.v3.SimpleCache;
 import io.envoyproxy.controlplane.cache.v3.Snapshot;
+import io.envoyproxy.controlplane.server.DiscoveryServerCallbacks;
 import io.envoyproxy.controlplane.server.V3DiscoveryServer;
+import io.envoyproxy.envoy.config.cluster.v3.CircuitBreakers;
 import io.envoyproxy.envoy.config.cluster.v3.Cluster;
+import io.envoyproxy.envoy.config.cluster.v3.OutlierDetection;
 import io.envoyproxy.envoy.config.core.v3.Address;
+import io.envoyproxy.envoy.config.core.v3.AggregatedConfigSource;
 import io.envoyproxy.envoy.config.core.v3.ApiVersion;
+import io.envoyproxy.envoy.config.core.v3.ConfigSource;
 import io.envoyproxy.envoy.config.core.v3.GrpcService;
 import io.envoyproxy.envoy.config.core.v3.Http2ProtocolOptions;
 import io.envoyproxy.envoy.config.core.v3.Node;
+import io.envoyproxy.envoy.config.core.v3.RoutingPriority;
 import io.envoyproxy.envoy.config.core.v3.SocketAddress;
 import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
 import io.envoyproxy.envoy.config.endpoint.v3.Endpoint;
@@ -21,120 +31,157 @@ import io.envoyproxy.envoy.config.endpoint.v3.LocalityLbEndpoints;
 import io.envoyproxy.envoy.config.listener.v3.Filter;
 import io.envoyproxy.envoy.config.listener.v3.FilterChain;
 import io.envoyproxy.envoy.config.listener.v3.Listener;
+import io.envoyproxy.envoy.config.route.v3.HeaderMatcher;
 import io.envoyproxy.envoy.config.route.v3.Route;
 import io.envoyproxy.envoy.config.route.v3.RouteAction;
 import io.envoyproxy.envoy.config.route.v3.RouteConfiguration;
 import io.envoyproxy.envoy.config.route.v3.RouteMatch;
 import io.envoyproxy.envoy.config.route.v3.VirtualHost;
+import io.envoyproxy.envoy.config.trace.v3.OpenCensusConfig;
 import io.envoyproxy.envoy.extensions.filters.http.ext_authz.v3.BufferSettings;
 import io.envoyproxy.envoy.extensions.filters.http.ext_authz.v3.CheckSettings;
 import io.envoyproxy.envoy.extensions.filters.http.ext_authz.v3.ExtAuthz;
 import io.envoyproxy.envoy.extensions.filters.http.ext_authz.v3.ExtAuthzPerRoute;
 import io.envoyproxy.envoy.extensions.filters.network.http_connection_manager.v3.HttpConnectionManager;
 import io.envoyproxy.envoy.extensions.filters.network.http_connection_manager.v3.HttpFilter;
+import io.envoyproxy.envoy.extensions.filters.network.http_connection_manager.v3.Rds;
 import io.envoyproxy.envoy.extensions.upstreams.http.v3.HttpProtocolOptions;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryRequest;
+import io.envoyproxy.envoy.type.v3.Percent;
 import io.grpc.Server;
 import io.grpc.netty.NettyServerBuilder;
 import io.kettil.faas.Manifest;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Programs Envoy over ADS. Proxies are grouped by the tenants they serve, per {@code envoy.xds.group-by}, and each
+ * group gets a snapshot with the routes of its tenants only, kept while a proxy of the group is connected.
+ */
 @Slf4j
+@Lazy(false)
 @Service
+@DependsOn("functionWarmup") // Publish the invoker only once its functions are warm
 public class EnvoyControlPlane implements Closeable {
-    private static final String GROUP = "key";
+    private static final String ALL_TENANTS = "*";
+    private static final String ROUTE_CONFIG_NAME = "local_route";
 
     private final int port;
-    private final Manifest manifest;
+    private final int endpointRefreshSeconds;
+    private final GroupBy groupBy;
+    private final String groupMetadata;
+    private final Tenants tenants;
+    private final InvokerProperties properties;
+    private final MeterRegistry registry;
     private final SimpleCache<String> cache = new SimpleCache<>(new NodeGroup<>() {
         @Override
         public String hash(io.envoyproxy.envoy.api.v2.core.Node node) {
-            return GROUP;
+            return ALL_TENANTS;
         }
 
         @Override
         public String hash(Node node) {
-            return GROUP;
+            return groupOf(node);
         }
     });
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final Map<Long, XdsStream> streams = new ConcurrentHashMap<>();
+    private final Map<String, Timer> pushTimers = new ConcurrentHashMap<>();
+
+    private final List<Upstream> upstreams = Arrays.asList(
+        new Upstream("invoker", "invoker", 8080),
+        new Upstream("invoker_grpc", "invoker", 9090),
+        new Upstream("acl_api", "authz", 8081),
+        new Upstream("authz", "authz", 8080));
 
     private Server server;
+    private ScheduledExecutorService endpointRefresher;
+
+    private List<Cluster> clusters;
+    private Map<String, ClusterLoadAssignment> endpoints = new LinkedHashMap<>();
+    private Listener listener;
+    private Set<AuthzSettings.Profile> authzProfiles = Set.of();
+    private Route aclRoute;
+    private Map<String, PathRoutes> pathRoutes = new LinkedHashMap<>();
+    private Map<String, String> pathTenants = new LinkedHashMap<>();
+    private int invokerMaxInFlight;
+    private int invokerMaxRequests = -1;
+    private long clustersVersion;
+    private long endpointsVersion;
+    private long listenersVersion;
+    private long routesVersion;
 
     public EnvoyControlPlane(
         @org.springframework.beans.factory.annotation.Value("${envoy.xds.port}") int port,
-        Manifest manifest) {
+        @org.springframework.beans.factory.annotation.Value("${envoy.eds.refresh-seconds}") int endpointRefreshSeconds,
+        @org.springframework.beans.factory.annotation.Value("${envoy.xds.group-by}") GroupBy groupBy,
+        @org.springframework.beans.factory.annotation.Value("${envoy.xds.group-metadata}") String groupMetadata,
+        Tenants tenants,
+        InvokerProperties properties,
+        MeterRegistry registry) {
 
         this.port = port;
-        this.manifest = manifest;
+        this.endpointRefreshSeconds = endpointRefreshSeconds;
+        this.groupBy = groupBy;
+        this.groupMetadata = groupMetadata;
+        this.tenants = tenants;
+        this.properties = properties;
+        this.registry = registry;
+
+        groups.put(ALL_TENANTS, new Group(ALL_TENANTS, null));
+
+        Gauge.builder("xds.streams", streams, Map::size)
+            .register(registry);
+        Gauge.builder("xds.groups", groups, Map::size)
+            .register(registry);
     }
 
     @Override
     public void close() throws IOException {
+        if (endpointRefresher != null)
+            endpointRefresher.shutdownNow();
         if (server != null)
             server.shutdown();
     }
 
     @PostConstruct
     public void start() throws IOException {
-        var clusters = Arrays.asList(
-            makeCluster("invoker", "invoker", 8080),
-            makeCluster("acl_api", "authz", 8081),
-            makeCluster("authz", "authz", 8080)
-                .toBuilder()
-                .putTypedExtensionProtocolOptions(
-                    "envoy.extensions.upstreams.http.v3.HttpProtocolOptions",
-                    Any.newBuilder()
-                        .setTypeUrl("type.googleapis.com/envoy.extensions.upstreams.http.v3.HttpProtocolOptions")
-                        .setValue(HttpProtocolOptions.newBuilder()
-                            .setExplicitHttpConfig(HttpProtocolOptions.ExplicitHttpConfig.newBuilder()
-                                .setHttp2ProtocolOptions(Http2ProtocolOptions.newBuilder()
-                                    .build()))
-                            .build().toByteString())
-                        .build())
-                .build());
-
-        var routes = new ArrayList<Route>();
-        routes.add(makeRoute(false, "/acl/", "acl_api", new HashMap<>() {{
-            put("namespace_object", "acl");
-            put("namespace_service", "api");
-            put("service_path", "/acl/{objectId}");
-            put("relation", "owner");
-        }}));
-
-        for (Map.Entry<String, Manifest.PathManifest> i : manifest.getPaths().entrySet()) {
-            LinkedHashMap<String, String> materializedExtensions = new LinkedHashMap<>(manifest.getAuthorization().getExtensions());
-
-            materializedExtensions.put("service_path", i.getKey());
-            String objectIdPtr = i.getValue().getAuthorization().getObjectIdPtr();
-            if (objectIdPtr != null)
-                materializedExtensions.put("objectid_ptr", objectIdPtr);
-
-            materializedExtensions.putAll(i.getValue().getAuthorization().getExtensions());
-
-            routes.add(makeRoute(i.getKey(), "invoker", materializedExtensions));
-        }
-
-        var listener = makeListener(routes);
-        var snapshot = makeSnapshot(clusters, Collections.singletonList(listener));
+        endpoints = resolveEndpoints();
+        endpointsVersion++;
 
-        cache.setSnapshot(
-            GROUP,
-            snapshot);
+        update(tenants.getTenants());
 
-        log.info(cache.toString());
-
-        var v3DiscoveryServer = new V3DiscoveryServer(cache);
+        var v3DiscoveryServer = new V3DiscoveryServer(new StreamCallbacks(), cache);
 
         server = NettyServerBuilder.forPort(port)
             .addService(v3DiscoveryServer.getAggregatedDiscoveryServiceImpl())
@@ -146,19 +193,385 @@ public class EnvoyControlPlane implements Closeable {
 
         server.start();
         log.info("Envoy control plane server started on port {}", server.getPort());
+
+        endpointRefresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "eds-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        endpointRefresher.scheduleWithFixedDelay(
+            this::refreshEndpoints, endpointRefreshSeconds, endpointRefreshSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Publishes the routes of every tenant's manifest. Only changed paths are rebuilt, and only changed resource types
+     * get a new version.
+     */
+    public synchronized void update(List<Tenant> tenants) {
+        var paths = new LinkedHashMap<String, Manifest.PathManifest>();
+        var tenantsOfPaths = new LinkedHashMap<String, String>();
+        var extensions = new LinkedHashMap<String, Map<String, String>>();
+        var streaming = new HashSet<String>();
+        var profiles = new TreeSet<AuthzSettings.Profile>(Comparator.comparing(AuthzSettings.Profile::getFilterName));
+        profiles.add(AuthzSettings.Profile.DEFAULT);
+
+        for (Tenant tenant : tenants) {
+            Manifest manifest = tenant.getManifest();
+
+            for (Map.Entry<String, Manifest.PathManifest> i : manifest.getPaths().entrySet()) {
+                String path = tenant.getPrefix() + i.getKey();
+                LinkedHashMap<String, String> materializedExtensions = new LinkedHashMap<>(manifest.getAuthorization().getExtensions());
+
+                materializedExtensions.put("service_path", path);
+                String objectIdPtr = i.getValue().getAuthorization().getObjectIdPtr();
+                if (objectIdPtr != null)
+                    materializedExtensions.put("objectid_ptr", objectIdPtr);
+
+                materializedExtensions.putAll(i.getValue().getAuthorization().getExtensions());
+
+                paths.put(path, i.getValue());
+                if (DispatchTable.isStreaming(tenant, i.getValue()))
+                    streaming.add(path);
+                tenantsOfPaths.put(path, tenant.getName());
+                extensions.put(path, materializedExtensions);
+                profiles.add(AuthzSettings.extract(new LinkedHashMap<>(materializedExtensions)).getProfile());
+            }
+        }
+
+        boolean profilesChanged = !profiles.equals(authzProfiles);
+        if (profilesChanged) {
+            authzProfiles = profiles;
+            aclRoute = makeRoute(false, "/acl/", "acl_api", new HashMap<>() {{
+                put("namespace_object", "acl");
+                put("namespace_service", "api");
+                put("service_path", "/acl/{objectId}");
+                put("relation", "owner");
+            }}, AuthzSettings.DEFAULT, null);
+        }
+
+        var next = new LinkedHashMap<String, PathRoutes>();
+        int added = 0;
+        int changed = 0;
+
+        for (Map.Entry<String, Manifest.PathManifest> i : paths.entrySet()) {
+            Map<String, String> materializedExtensions = extensions.get(i.getKey());
+            InvokerProperties.PathProperties pathProperties = properties.forPath(i.getKey());
+            boolean batchable = DispatchTable.isBatchable(i.getValue(), pathProperties);
+            // Reactive functions are served over HTTP only, and not async
+            boolean reactive = streaming.contains(i.getKey());
+            boolean async = pathProperties.getAsync().isEnabled() && !reactive;
+            boolean grpc = i.getValue().getAuthorization().getObjectIdPtr() == null && !async && !reactive;
+            java.time.Duration timeout = pathProperties.getTimeout();
+
+            PathRoutes previous = pathRoutes.get(i.getKey());
+            if (!profilesChanged
+                && previous != null
+                && previous.getExtensions().equals(materializedExtensions)
+                && previous.isBatchable() == batchable
+                && previous.isAsync() == async
+                && previous.isGrpc() == grpc
+                && previous.getTimeout().equals(timeout)) {
+                next.put(i.getKey(), previous);
+                continue;
+            }
+
+            var contextExtensions = new LinkedHashMap<>(materializedExtensions);
+            AuthzSettings authz = AuthzSettings.extract(contextExtensions);
+
+            var routes = new ArrayList<Route>();
+            routes.add(makeRoute(i.getKey(), "invoker", contextExtensions, authz, timeout));
+
+            if (batchable)
+                routes.add(makeRoute(
+                    i.getKey() + DispatchTable.BATCH_SUFFIX, "invoker", contextExtensions, authz, timeout));
+
+            if (async)
+                routes.add(makeInvocationsRoute(i.getKey(), contextExtensions, authz, timeout));
+
+            if (grpc)
+                routes.add(makeGrpcRoute(i.getKey(), contextExtensions, authz, timeout));
+
+            next.put(i.getKey(), new PathRoutes(materializedExtensions, batchable, async, grpc, timeout, routes));
+
+            if (previous == null)
+                added++;
+            else
+                changed++;
+        }
+
+        int removed = (int) pathRoutes.keySet().stream().filter(path -> !next.containsKey(path)).count();
+
+        invokerMaxInFlight = paths.keySet().stream()
+            .map(properties::forPath)
+            .mapToInt(i -> i.getMaxConcurrency() + i.getMaxQueued())
+            .sum();
+        boolean clustersChanged = updateClusters();
+
+        boolean routesChanged = profilesChanged || added + changed + removed > 0;
+        if (!routesChanged && !clustersChanged) {
+            log.info("Manifest routes unchanged");
+            return;
+        }
+
+        if (routesChanged) {
+            pathRoutes = next;
+            pathTenants = tenantsOfPaths;
+        }
+
+        if (profilesChanged) {
+            listener = makeListener();
+            listenersVersion++;
+        }
+
+        groups.values().forEach(this::publish);
+
+        log.info("Published snapshots of {} node groups with listeners version {}, clusters version {}: "
+                + "{} paths added, {} changed, {} removed",
+            groups.size(), listenersVersion, clustersVersion, added, changed, removed);
+    }
+
+    /**
+     * The snapshot last published to a node group, or null if it has none.
+     */
+    Snapshot getSnapshot(String group) {
+        return cache.getSnapshot(group);
     }
 
-    private Snapshot makeSnapshot(List<Cluster> clusters, List<Listener> listeners) {
+    /**
+     * Sets the snapshot of a node group, with a route version unique across groups.
+     */
+    private void publish(Group group) {
+        List<PathRoutes> selected = pathRoutes.entrySet().stream()
+            .filter(i -> group.serves(pathTenants.get(i.getKey())))
+            .map(Map.Entry::getValue)
+            .collect(toList());
+
+        if (group.routeConfiguration == null || group.aclRoute != aclRoute || !selected.equals(group.pathRoutes)) {
+            var routes = new ArrayList<Route>();
+            routes.add(aclRoute);
+            selected.forEach(i -> routes.addAll(i.getRoutes()));
+
+            group.routeConfiguration = makeRouteConfiguration(routes);
+            group.aclRoute = aclRoute;
+            group.pathRoutes = selected;
+            group.routesVersion = ++routesVersion;
+        }
+
+        Snapshot snapshot = makeSnapshot(group);
+        long now = System.nanoTime();
+        for (String typeUrl : Resources.V3.TYPE_URLS) {
+            String version = snapshot.version(typeUrl);
+            group.published.compute(typeUrl, (t, previous) ->
+                previous != null && previous.getVersion().equals(version) ? previous : new Published(version, now));
+        }
+
+        cache.setSnapshot(group.key, snapshot);
+    }
+
+    /**
+     * The tenants a node names, comma-separated, in its metadata or cluster; every tenant if it names none.
+     */
+    private String groupOf(Node node) {
+        String names = "";
+        if (groupBy == GroupBy.CLUSTER) {
+            names = node.getCluster();
+        } else if (groupBy == GroupBy.METADATA) {
+            Value value = node.getMetadata().getFieldsMap().get(groupMetadata);
+            if (value != null && value.hasListValue())
+                names = value.getListValue().getValuesList().stream().map(Value::getStringValue).collect(joining(","));
+            else if (value != null)
+                names = value.getStringValue();
+        }
+
+        String group = Arrays.stream(names.split(","))
+            .map(String::trim)
+            .filter(name -> !name.isEmpty())
+            .distinct()
+            .sorted()
+            .collect(joining(","));
+        return group.isEmpty() ? ALL_TENANTS : group;
+    }
+
+    private synchronized Group join(String key) {
+        Group group = groups.computeIfAbsent(key, k -> new Group(k, Set.of(k.split(","))));
+        if (group.streams++ == 0 && group.routeConfiguration == null) {
+            publish(group);
+            log.info("Published snapshot of node group {} with {} paths", key, group.pathRoutes.size());
+        }
+        return group;
+    }
+
+    private synchronized void leave(Group group) {
+        if (--group.streams > 0 || group.tenants == null)
+            return;
+
+        if (!groups.remove(group.key, group))
+            return;
+
+        cache.clearSnapshot(group.key);
+        log.info("Dropped snapshot of node group {}", group.key);
+    }
+
+    /**
+     * Re-resolves the upstream hosts and pushes their endpoints if they changed.
+     */
+    private synchronized void refreshEndpoints() {
+        var next = resolveEndpoints();
+        if (next.equals(endpoints))
+            return;
+
+        endpoints = next;
+        endpointsVersion++;
+        updateClusters();
+
+        groups.values().forEach(this::publish);
+
+        log.info("Published snapshot with endpoints version {}, clusters version {}",
+            endpointsVersion, clustersVersion);
+    }
+
+    /**
+     * @return whether the circuit breaker threshold of the invoker clusters changed, and with it the clusters
+     */
+    private boolean updateClusters() {
+        ClusterLoadAssignment invokerEndpoints = endpoints.get("invoker");
+        int hosts = invokerEndpoints == null
+            ? 0
+            : invokerEndpoints.getEndpointsList().stream().mapToInt(LocalityLbEndpoints::getLbEndpointsCount).sum();
+
+        int maxRequests = (int) Math.min(Integer.MAX_VALUE,
+            Math.max(1L, (long) invokerMaxInFlight * Math.max(1, hosts)));
+        if (maxRequests == invokerMaxRequests)
+            return false;
+
+        invokerMaxRequests = maxRequests;
+        clusters = makeClusters(maxRequests);
+        clustersVersion++;
+        return true;
+    }
+
+    private List<Cluster> makeClusters(int invokerMaxRequests) {
+        return Arrays.asList(
+            makeCluster("invoker")
+                .toBuilder()
+                .setCircuitBreakers(CircuitBreakers.newBuilder()
+                    .addThresholds(CircuitBreakers.Thresholds.newBuilder()
+                        .setPriority(RoutingPriority.DEFAULT)
+                        .setMaxRequests(UInt32Value.of(invokerMaxRequests))
+                        .setMaxPendingRequests(UInt32Value.of(invokerMaxRequests))
+                        // HTTP/1.1 upstream: a connection per request in flight
+                        .setMaxConnections(UInt32Value.of(invokerMaxRequests))
+                        .build())
+                    .build())
+                .setOutlierDetection(makeOutlierDetection())
+                .build(),
+            withHttp2(makeCluster("invoker_grpc"))
+                .toBuilder()
+                .setCircuitBreakers(CircuitBreakers.newBuilder()
+                    .addThresholds(CircuitBreakers.Thresholds.newBuilder()
+                        .setPriority(RoutingPriority.DEFAULT)
+                        .setMaxRequests(UInt32Value.of(invokerMaxRequests))
+                        .setMaxPendingRequests(UInt32Value.of(invokerMaxRequests))
+                        .build())
+                    .build())
+                .setOutlierDetection(makeOutlierDetection())
+                .build(),
+            makeCluster("acl_api"),
+            withHttp2(makeCluster("authz")));
+    }
+
+    private static Cluster withHttp2(Cluster cluster) {
+        return cluster.toBuilder()
+            .putTypedExtensionProtocolOptions(
+                "envoy.extensions.upstreams.http.v3.HttpProtocolOptions",
+                Any.newBuilder()
+                    .setTypeUrl("type.googleapis.com/envoy.extensions.upstreams.http.v3.HttpProtocolOptions")
+                    .setValue(HttpProtocolOptions.newBuilder()
+                        .setExplicitHttpConfig(HttpProtocolOptions.ExplicitHttpConfig.newBuilder()
+                            .setHttp2ProtocolOptions(Http2ProtocolOptions.newBuilder()
+                                .build()))
+                        .build().toByteString())
+                    .build())
+            .build();
+    }
+
+    /**
+     * Ejects hosts on connection failures only: a 503 from an invoker is load shedding, not a broken host.
+     */
+    private static OutlierDetection makeOutlierDetection() {
+        return OutlierDetection.newBuilder()
+            .setSplitExternalLocalOriginErrors(true)
+            .setConsecutiveLocalOriginFailure(UInt32Value.of(5))
+            .setEnforcingConsecutiveLocalOriginFailure(UInt32Value.of(100))
+            .setEnforcingLocalOriginSuccessRate(UInt32Value.of(0))
+            .setEnforcingConsecutive5Xx(UInt32Value.of(0))
+            .setEnforcingConsecutiveGatewayFailure(UInt32Value.of(0))
+            .setEnforcingSuccessRate(UInt32Value.of(0))
+            .setInterval(Durations.fromSeconds(10))
+            .setBaseEjectionTime(Durations.fromSeconds(30))
+            .setMaxEjectionPercent(UInt32Value.of(50))
+            .build();
+    }
+
+    private Map<String, ClusterLoadAssignment> resolveEndpoints() {
+        var next = new LinkedHashMap<String, ClusterLoadAssignment>();
+
+        for (Upstream upstream : upstreams) {
+            try {
+                next.put(upstream.getCluster(), makeLoadAssignment(upstream));
+            } catch (UnknownHostException e) {
+                log.warn("Cannot resolve host {} of cluster {}: {}",
+                    upstream.getHost(), upstream.getCluster(), e.getMessage());
+
+                ClusterLoadAssignment previous = endpoints.get(upstream.getCluster());
+                next.put(upstream.getCluster(), previous != null
+                    ? previous
+                    : ClusterLoadAssignment.newBuilder().setClusterName(upstream.getCluster()).build());
+            }
+        }
+
+        return next;
+    }
+
+    private Snapshot makeSnapshot(Group group) {
         return Snapshot.create(
             clusters,
-            ImmutableList.of(),
-            listeners,
-            ImmutableList.of(),
+            Long.toString(clustersVersion),
+            endpoints.values(),
+            Long.toString(endpointsVersion),
+            Collections.singletonList(listener),
+            Long.toString(listenersVersion),
+            Collections.singletonList(group.routeConfiguration),
+            Long.toString(group.routesVersion),
             ImmutableList.of(),
             "1");
     }
 
-    private Listener makeListener(List<Route> routes) {
+    private static ConfigSource adsConfigSource() {
+        return ConfigSource.newBuilder()
+            .setAds(AggregatedConfigSource.getDefaultInstance())
+            .setResourceApiVersion(ApiVersion.V3)
+            .build();
+    }
+
+    private Listener makeListener() {
+        var connectionManager = HttpConnectionManager.newBuilder()
+            .setCodecType(HttpConnectionManager.CodecType.AUTO)
+            .setStatPrefix("ingress_http")
+            .addAllHttpFilters(authzProfiles.stream()
+                .map(this::makeAuthzFilter)
+                .collect(toList()))
+            .addHttpFilters(HttpFilter.newBuilder()
+                .setName("envoy.filters.http.router")
+                .build())
+            .setRds(Rds.newBuilder()
+                .setRouteConfigName(ROUTE_CONFIG_NAME)
+                .setConfigSource(adsConfigSource())
+                .build());
+
+        if (properties.getTracing().isEnabled())
+            connectionManager.setTracing(makeTracing(properties.getTracing()));
+
         return Listener.newBuilder()
             .setAddress(Address.newBuilder()
                 .setSocketAddress(SocketAddress.newBuilder()
@@ -171,94 +584,372 @@ public class EnvoyControlPlane implements Closeable {
                     .setName("envoy.filters.network.http_connection_manager")
                     .setTypedConfig(Any.newBuilder()
                         .setTypeUrl("type.googleapis.com/envoy.extensions.filters.network.http_connection_manager.v3.HttpConnectionManager")
-                        .setValue(HttpConnectionManager.newBuilder()
-                            .setCodecType(HttpConnectionManager.CodecType.AUTO)
-                            .setStatPrefix("ingress_http")
-                            .addHttpFilters(HttpFilter.newBuilder()
-                                .setName("envoy.ext_authz1")
-                                .setTypedConfig(Any.newBuilder()
-                                    .setTypeUrl("type.googleapis.com/envoy.extensions.filters.http.ext_authz.v3.ExtAuthz")
-                                    .setValue(ExtAuthz.newBuilder()
-                                        .setTransportApiVersion(ApiVersion.V3)
-                                        .setGrpcService(GrpcService.newBuilder()
-                                            .setTimeout(Duration.newBuilder()
-                                                .setSeconds(1)
-                                                .build())
-                                            .setEnvoyGrpc(GrpcService.EnvoyGrpc.newBuilder()
-                                                .setClusterName("authz")
-                                                .build())
-                                            .build())
-                                        .setIncludePeerCertificate(true)
-                                        .setWithRequestBody(BufferSettings.newBuilder()
-                                            .setMaxRequestBytes(65536)
-                                            .setAllowPartialMessage(false)
-                                            .setPackAsBytes(false)
-                                            .build())
-                                        .build().toByteString())
-                                    .build())
-                                .build())
-                            .addHttpFilters(HttpFilter.newBuilder()
-                                .setName("envoy.filters.http.router")
-                                .build())
-                            .setRouteConfig(RouteConfiguration.newBuilder()
-                                .setName("local_route")
-                                .addVirtualHosts(VirtualHost.newBuilder()
-                                    .setName("backend")
-                                    .addDomains("*")
-                                    .addAllRoutes(routes)
-                                    .build())
-                                .build())
-                            .build().toByteString())
+                        .setValue(connectionManager.build().toByteString())
                         .build())
                     .build())
                 .build())
             .build();
     }
 
-    private Route makeRoute(String path, String cluster, Map<String, String> contextExtensions) {
-        return makeRoute(true, path, cluster, contextExtensions);
+    /**
+     * OpenCensus, as this Envoy API has no OpenTelemetry tracer; it propagates W3C trace context like the invoker.
+     */
+    private static HttpConnectionManager.Tracing makeTracing(InvokerProperties.Tracing tracing) {
+        return HttpConnectionManager.Tracing.newBuilder()
+            .setRandomSampling(Percent.newBuilder()
+                .setValue(tracing.getSampleRate() * 100)
+                .build())
+            .setProvider(io.envoyproxy.envoy.config.trace.v3.Tracing.Http.newBuilder()
+                .setName("envoy.tracers.opencensus")
+                .setTypedConfig(Any.newBuilder()
+                    .setTypeUrl("type.googleapis.com/envoy.config.trace.v3.OpenCensusConfig")
+                    .setValue(OpenCensusConfig.newBuilder()
+                        .setOcagentExporterEnabled(true)
+                        .setOcagentAddress(tracing.getEnvoyCollector())
+                        .addIncomingTraceContext(OpenCensusConfig.TraceContext.TRACE_CONTEXT)
+                        .addOutgoingTraceContext(OpenCensusConfig.TraceContext.TRACE_CONTEXT)
+                        .build().toByteString())
+                    .build())
+                .build())
+            .build();
     }
 
-    private Route makeRoute(boolean exactMatch, String path, String cluster, Map<String, String> contextExtensions) {
-        return Route.newBuilder()
-            .setMatch(exactMatch
-                ? RouteMatch.newBuilder().setPath(path).build()
-                : RouteMatch.newBuilder().setPrefix(path).build())
-            .setRoute(RouteAction.newBuilder()
-                .setCluster(cluster)
-                .build())
-            .putTypedPerFilterConfig("envoy.filters.http.ext_authz", Any.newBuilder()
-                .setTypeUrl("type.googleapis.com/envoy.extensions.filters.http.ext_authz.v3.ExtAuthzPerRoute")
-                .setValue(ExtAuthzPerRoute.newBuilder()
-                    .setCheckSettings(CheckSettings.newBuilder()
-                        .putAllContextExtensions(contextExtensions)
+    private HttpFilter makeAuthzFilter(AuthzSettings.Profile profile) {
+        return HttpFilter.newBuilder()
+            .setName(profile.getFilterName())
+            .setTypedConfig(Any.newBuilder()
+                .setTypeUrl("type.googleapis.com/envoy.extensions.filters.http.ext_authz.v3.ExtAuthz")
+                .setValue(ExtAuthz.newBuilder()
+                    .setTransportApiVersion(ApiVersion.V3)
+                    .setGrpcService(GrpcService.newBuilder()
+                        .setTimeout(Durations.fromMillis(profile.getTimeoutMillis()))
+                        .setEnvoyGrpc(GrpcService.EnvoyGrpc.newBuilder()
+                            .setClusterName("authz")
+                            .build())
+                        .build())
+                    .setIncludePeerCertificate(true)
+                    .setWithRequestBody(BufferSettings.newBuilder()
+                        .setMaxRequestBytes(65536)
+                        .setAllowPartialMessage(profile.isAllowPartialMessage())
+                        .setPackAsBytes(false)
                         .build())
                     .build().toByteString())
                 .build())
             .build();
     }
 
-    private Cluster makeCluster(String name, String host, int port) {
+    private RouteConfiguration makeRouteConfiguration(List<Route> routes) {
+        return RouteConfiguration.newBuilder()
+            .setName(ROUTE_CONFIG_NAME)
+            .addVirtualHosts(VirtualHost.newBuilder()
+                .setName("backend")
+                .addDomains("*")
+                .addAllRoutes(routes)
+                .build())
+            .build();
+    }
+
+    private Route makeRoute(
+        String path,
+        String cluster,
+        Map<String, String> contextExtensions,
+        AuthzSettings authz,
+        java.time.Duration timeout) {
+
+        return makeRoute(true, path, cluster, contextExtensions, authz, timeout);
+    }
+
+    /**
+     * @param timeout the route timeout, which Envoy passes upstream as {@code x-envoy-expected-rq-timeout-ms}; zero
+     *                for none, null for Envoy's default
+     */
+    private Route makeRoute(
+        boolean exactMatch,
+        String path,
+        String cluster,
+        Map<String, String> contextExtensions,
+        AuthzSettings authz,
+        java.time.Duration timeout) {
+
+        return makeRoute(
+            exactMatch
+                ? RouteMatch.newBuilder().setPath(path).build()
+                : RouteMatch.newBuilder().setPrefix(path).build(),
+            cluster, contextExtensions, authz, timeout);
+    }
+
+    /**
+     * Matches calls of the one {@link GrpcInvoker} method on the path in their metadata. The gRPC framed body is never
+     * sent to the authz check.
+     */
+    private Route makeGrpcRoute(
+        String path,
+        Map<String, String> contextExtensions,
+        AuthzSettings authz,
+        java.time.Duration timeout) {
+
+        return makeRoute(
+            RouteMatch.newBuilder()
+                .setPath("/" + GrpcInvoker.INVOKE.getFullMethodName())
+                .setGrpc(RouteMatch.GrpcRouteMatchOptions.getDefaultInstance())
+                .addHeaders(HeaderMatcher.newBuilder()
+                    .setName(GrpcInvoker.PATH_HEADER)
+                    .setExactMatch(path)
+                    .build())
+                .build(),
+            "invoker_grpc",
+            contextExtensions,
+            new AuthzSettings(authz.isDisabled(), false, authz.getProfile()),
+            timeout);
+    }
+
+    /**
+     * Polls are GET requests, so they are authorized without an object id from the body.
+     */
+    private Route makeInvocationsRoute(
+        String path,
+        Map<String, String> contextExtensions,
+        AuthzSettings authz,
+        java.time.Duration timeout) {
+
+        var extensions = new LinkedHashMap<>(contextExtensions);
+        extensions.remove("objectid_ptr");
+
+        return makeRoute(
+            false,
+            path + DispatchTable.INVOCATIONS_SEGMENT,
+            "invoker",
+            extensions,
+            new AuthzSettings(authz.isDisabled(), false, authz.getProfile()),
+            timeout);
+    }
+
+    private Route makeRoute(
+        RouteMatch match,
+        String cluster,
+        Map<String, String> contextExtensions,
+        AuthzSettings authz,
+        java.time.Duration timeout) {
+
+        var routeAction = RouteAction.newBuilder()
+            .setCluster(cluster);
+        if (timeout != null)
+            routeAction.setTimeout(Durations.fromMillis(timeout.toMillis()));
+
+        var route = Route.newBuilder()
+            .setMatch(match)
+            .setRoute(routeAction.build());
+
+        for (AuthzSettings.Profile profile : authzProfiles) {
+            var perRoute = !authz.isDisabled() && profile.equals(authz.getProfile())
+                ? ExtAuthzPerRoute.newBuilder()
+                    .setCheckSettings(CheckSettings.newBuilder()
+                        .putAllContextExtensions(contextExtensions)
+                        .setDisableRequestBodyBuffering(!authz.isWithBody())
+                        .build())
+                    .build()
+                : ExtAuthzPerRoute.newBuilder()
+                    .setDisabled(true)
+                    .build();
+
+            route.putTypedPerFilterConfig(profile.getFilterName(), Any.newBuilder()
+                .setTypeUrl("type.googleapis.com/envoy.extensions.filters.http.ext_authz.v3.ExtAuthzPerRoute")
+                .setValue(perRoute.toByteString())
+                .build());
+        }
+
+        return route.build();
+    }
+
+    private Cluster makeCluster(String name) {
         return Cluster.newBuilder()
             .setName(name)
             .setConnectTimeout(Duration.newBuilder().setSeconds(1))
-            .setType(Cluster.DiscoveryType.STRICT_DNS)
+            .setType(Cluster.DiscoveryType.EDS)
+            .setEdsClusterConfig(Cluster.EdsClusterConfig.newBuilder()
+                .setEdsConfig(adsConfigSource())
+                .build())
             .setLbPolicy(Cluster.LbPolicy.ROUND_ROBIN)
-            .setLoadAssignment(ClusterLoadAssignment.newBuilder()
-                .setClusterName(name)
-                .addEndpoints(LocalityLbEndpoints.newBuilder()
-                    .addLbEndpoints(LbEndpoint.newBuilder()
-                        .setEndpoint(Endpoint.newBuilder()
-                            .setAddress(Address.newBuilder()
-                                .setSocketAddress(SocketAddress.newBuilder()
-                                    .setAddress(host)
-                                    .setPortValue(port)
-                                    .build())
+            .build();
+    }
+
+    private ClusterLoadAssignment makeLoadAssignment(Upstream upstream) throws UnknownHostException {
+        var localityLbEndpoints = LocalityLbEndpoints.newBuilder();
+
+        Arrays.stream(InetAddress.getAllByName(upstream.getHost()))
+            .map(InetAddress::getHostAddress)
+            .distinct()
+            .sorted()
+            .forEach(address -> localityLbEndpoints
+                .addLbEndpoints(LbEndpoint.newBuilder()
+                    .setEndpoint(Endpoint.newBuilder()
+                        .setAddress(Address.newBuilder()
+                            .setSocketAddress(SocketAddress.newBuilder()
+                                .setAddress(address)
+                                .setPortValue(upstream.getPort())
                                 .build())
                             .build())
                         .build())
-                    .build())
-                .build())
+                    .build()));
+
+        return ClusterLoadAssignment.newBuilder()
+            .setClusterName(upstream.getCluster())
+            .addEndpoints(localityLbEndpoints.build())
             .build();
     }
+
+    /**
+     * A cluster and the host it resolves to for EDS.
+     */
+    @lombok.Value
+    private static class Upstream {
+        String cluster;
+        String host;
+        int port;
+    }
+
+    public enum GroupBy {
+        /**
+         * One snapshot with every tenant for all proxies.
+         */
+        NONE,
+
+        /**
+         * Group by the tenants listed in the node metadata field {@code envoy.xds.group-metadata}.
+         */
+        METADATA,
+
+        /**
+         * Group by the tenants listed in the node cluster, for proxies deployed per tenant.
+         */
+        CLUSTER
+    }
+
+    /**
+     * Proxies sharing a snapshot, and the route configuration built for them.
+     */
+    private static class Group {
+        final String key;
+
+        /**
+         * Null for every tenant.
+         */
+        final Set<String> tenants;
+
+        List<PathRoutes> pathRoutes = List.of();
+        Route aclRoute;
+        RouteConfiguration routeConfiguration;
+        long routesVersion;
+        int streams;
+
+        /**
+         * The current version of each resource type, by type URL, and when it was published.
+         */
+        final Map<String, Published> published = new ConcurrentHashMap<>();
+
+        Group(String key, Set<String> tenants) {
+            this.key = key;
+            this.tenants = tenants;
+        }
+
+        boolean serves(String tenant) {
+            return tenants == null || tenants.contains(tenant);
+        }
+    }
+
+    @lombok.Value
+    private static class Published {
+        String version;
+        long at;
+    }
+
+    private static class XdsStream {
+        volatile Group group;
+        volatile long joinedAt;
+
+        /**
+         * The version of each resource type, by type URL, whose push to this stream was last timed.
+         */
+        final Map<String, String> timed = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Assigns each stream to its node's group on its first request, before the request is answered from the cache,
+     * and times the push of every version its group publishes after that up to the stream's ACK of it.
+     */
+    class StreamCallbacks implements DiscoveryServerCallbacks {
+        @Override
+        public void onStreamOpen(long streamId, String typeUrl) {
+            streams.put(streamId, new XdsStream());
+        }
+
+        @Override
+        public void onStreamClose(long streamId, String typeUrl) {
+            XdsStream stream = streams.remove(streamId);
+            if (stream != null && stream.group != null)
+                leave(stream.group);
+        }
+
+        @Override
+        public void onStreamCloseWithError(long streamId, String typeUrl, Throwable error) {
+            onStreamClose(streamId, typeUrl);
+        }
+
+        @Override
+        public void onV2StreamRequest(long streamId, io.envoyproxy.envoy.api.v2.DiscoveryRequest request) {
+        }
+
+        @Override
+        public void onV3StreamRequest(long streamId, DiscoveryRequest request) {
+            XdsStream stream = streams.get(streamId);
+            if (stream == null)
+                return;
+
+            if (stream.group == null) {
+                if (request.hasNode()) {
+                    stream.group = join(groupOf(request.getNode()));
+                    stream.joinedAt = System.nanoTime();
+                }
+                return;
+            }
+
+            // An ACK echoes the nonce of a response and the version it applied; a NACK carries the error instead
+            if (!request.getResponseNonce().isEmpty() && !request.hasErrorDetail())
+                acked(stream, request.getTypeUrl(), request.getVersionInfo());
+        }
+
+        /**
+         * Times the first ACK of a version published after the stream joined its group.
+         */
+        private void acked(XdsStream stream, String typeUrl, String version) {
+            Published published = stream.group.published.get(typeUrl);
+            if (published == null || !published.getVersion().equals(version))
+                return;
+            if (published.getAt() - stream.joinedAt <= 0)
+                return;
+
+            if (version.equals(stream.timed.put(typeUrl, version)))
+                return;
+
+            String type = typeUrl.substring(typeUrl.lastIndexOf('.') + 1);
+            pushTimers.computeIfAbsent(type, t -> Timer.builder("xds.push")
+                .tag("type", t)
+                .publishPercentileHistogram()
+                .register(registry))
+                .record(System.nanoTime() - published.getAt(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * The routes built for one manifest path, with the inputs they were built from.
+     */
+    @lombok.Value
+    private static class PathRoutes {
+        Map<String, String> extensions;
+        boolean batchable;
+        boolean async;
+        boolean grpc;
+        java.time.Duration timeout;
+        List<Route> routes;
+    }
 }
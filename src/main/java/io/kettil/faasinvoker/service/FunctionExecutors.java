@@ -0,0 +1,211 @@
+package io.kettil.faasinvoker.service;
+
+import io.kettil.faasinvoker.config.InvokerProperties;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class FunctionExecutors implements Closeable {
+    private final InvokerProperties properties;
+    private final Map<String, FunctionExecutor> executors = new ConcurrentHashMap<>();
+
+    public FunctionExecutor forPath(String path) {
+        return executors.computeIfAbsent(path, p -> new FunctionExecutor(p, properties.forPath(p)));
+    }
+
+    /**
+     * Retires the executors of the paths not in {@code paths}; each is disposed of once its invocations in flight
+     * have ended.
+     */
+    public void retain(Set<String> paths) {
+        executors.entrySet().removeIf(i -> {
+            if (paths.contains(i.getKey()))
+                return false;
+
+            i.getValue().retire();
+            return true;
+        });
+    }
+
+    @Override
+    public void close() {
+        executors.values().forEach(FunctionExecutor::close);
+        executors.clear();
+    }
+
+    /**
+     * Runs invocations of one path per its {@link InvokerProperties.ExecutionMode}, bounding those in flight by a
+     * fixed or an {@link AdaptiveLimit}.
+     */
+    public static class FunctionExecutor implements Closeable {
+        private static final int PENDING = 0;
+        private static final int RUNNING = 1;
+        private static final int ENDED = 2;
+
+        private final String path;
+        private final Scheduler scheduler;
+        private final boolean ownsScheduler;
+        private final int maxInFlight;
+        private final AdaptiveLimit adaptiveLimit;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean retired;
+
+        FunctionExecutor(String path, InvokerProperties.PathProperties properties) {
+            this.path = path;
+            this.maxInFlight = properties.getMaxConcurrency() + properties.getMaxQueued();
+            this.adaptiveLimit = properties.getLimit().isAdaptive()
+                ? new AdaptiveLimit(properties.getMaxConcurrency(), maxInFlight, properties.getLimit())
+                : null;
+
+            switch (properties.getExecution()) {
+                case INLINE:
+                    scheduler = null;
+                    ownsScheduler = false;
+                    break;
+                case DEDICATED:
+                    scheduler = Schedulers.fromExecutorService(
+                        newPool(path, properties.getMaxConcurrency(), properties.getMaxQueued()),
+                        "fn" + path.replace('/', '-'));
+                    ownsScheduler = true;
+                    break;
+                default:
+                    scheduler = Schedulers.boundedElastic();
+                    ownsScheduler = false;
+            }
+
+            log.info("Path {} executes {} (max concurrency {}, max queued {}, {} limit)",
+                path, properties.getExecution(), properties.getMaxConcurrency(), properties.getMaxQueued(),
+                adaptiveLimit != null ? "adaptive" : "fixed");
+        }
+
+        /**
+         * A pool of {@code maxConcurrency} threads queueing at most {@code maxQueued} invocations.
+         */
+        private static ExecutorService newPool(String path, int maxConcurrency, int maxQueued) {
+            var threadFactory = new CustomizableThreadFactory("fn" + path.replace('/', '-') + "-");
+            threadFactory.setDaemon(true);
+
+            var pool = new ThreadPoolExecutor(
+                maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+                maxQueued > 0 ? new ArrayBlockingQueue<>(maxQueued) : new SynchronousQueue<>(),
+                threadFactory);
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+
+        public <T> Mono<T> execute(Supplier<T> call) {
+            return Mono.defer(() -> {
+                if (!tryAcquire())
+                    return Mono.error(rejected());
+
+                long start = System.nanoTime();
+                var state = new AtomicInteger(PENDING);
+
+                Mono<T> result = Mono.fromSupplier(() -> {
+                    if (!state.compareAndSet(PENDING, RUNNING))
+                        return null;
+
+                    try {
+                        return call.get();
+                    } finally {
+                        state.set(ENDED);
+                        // Latency is measured from admission, so time spent waiting for a thread counts too
+                        if (adaptiveLimit != null)
+                            adaptiveLimit.onSample(System.nanoTime() - start, inFlight.get());
+                        release();
+                    }
+                });
+                if (scheduler != null)
+                    result = result.subscribeOn(scheduler);
+
+                // Cancelled or rejected before the function started; once started, it releases itself on return
+                return result.doFinally(signal -> {
+                    if (state.compareAndSet(PENDING, ENDED))
+                        release();
+                });
+            });
+        }
+
+        /**
+         * Like {@link #execute(Supplier)} for reactive functions; the stream counts as one invocation in flight
+         * until it terminates. Stream durations say nothing about load, so they do not adapt the limit.
+         */
+        public <T> Flux<T> executeMany(Supplier<? extends Publisher<T>> call) {
+            return Flux.defer(() -> {
+                if (!tryAcquire())
+                    return Flux.error(rejected());
+
+                Flux<T> result = Flux.defer(call);
+                if (scheduler != null)
+                    result = result.subscribeOn(scheduler);
+
+                return result.doFinally(signal -> release());
+            });
+        }
+
+        private boolean tryAcquire() {
+            if (inFlight.incrementAndGet() > getLimit()) {
+                release();
+                return false;
+            }
+            return true;
+        }
+
+        private void release() {
+            if (inFlight.decrementAndGet() == 0 && retired)
+                close();
+        }
+
+        /**
+         * Disposes of the executor once no invocation is in flight any more.
+         */
+        void retire() {
+            retired = true;
+            if (inFlight.get() == 0)
+                close();
+        }
+
+        private RejectedExecutionException rejected() {
+            return new RejectedExecutionException(
+                String.format("Too many invocations in flight for path '%s'", path));
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public int getLimit() {
+            return adaptiveLimit != null ? adaptiveLimit.getLimit() : maxInFlight;
+        }
+
+        @Override
+        public void close() {
+            if (ownsScheduler && closed.compareAndSet(false, true))
+                scheduler.dispose();
+        }
+    }
+}
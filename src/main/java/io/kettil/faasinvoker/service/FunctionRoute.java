@@ -0,0 +1,50 @@
+package io.kettil.faasinvoker.service;
+
+import io.kettil.faasinvoker.config.InvokerProperties;
+import lombok.Value;
+import org.springframework.cloud.function.context.catalog.SimpleFunctionRegistry;
+
+@Value
+public class FunctionRoute {
+    String path;
+    String functionName;
+    SimpleFunctionRegistry.FunctionInvocationWrapper wrapper;
+
+    /**
+     * Context class loader for invocations, or null to keep the calling thread's.
+     */
+    ClassLoader classLoader;
+
+    Class<?> inputType;
+
+    /**
+     * The function takes a {@code Flux}; {@link #inputType} is then its item type.
+     */
+    boolean streamingInput;
+
+    /**
+     * The function returns a {@code Flux}.
+     */
+    boolean streamingOutput;
+
+    /**
+     * The function takes {@code byte[]}, {@code ByteBuffer} or {@code String}, which it is passed the request body as
+     * is rather than decoded from JSON.
+     */
+    boolean raw;
+
+    /**
+     * Requests are queued and answered with 202; never set for reactive functions.
+     */
+    boolean async;
+
+    FunctionExecutors.FunctionExecutor executor;
+
+    /**
+     * Null unless result caching is enabled for the path.
+     */
+    ResultCaches.ResultCache cache;
+
+    InvocationMetrics.PathMetrics metrics;
+    InvokerProperties.PathProperties properties;
+}
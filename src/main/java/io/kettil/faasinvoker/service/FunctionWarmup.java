@@ -0,0 +1,146 @@
+package io.kettil.faasinvoker.service;
+
+import io.kettil.faasinvoker.config.InvokerProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays each path's warm-up samples through its function until its latency is stable, before the control plane
+ * publishes the invoker and the servers start.
+ */
+@Slf4j
+@Lazy(false)
+@Component
+public class FunctionWarmup {
+    private static final int ROUND = 20;
+    private static final int STABLE_ROUNDS = 3;
+    private static final double STABLE_TOLERANCE = 0.05;
+
+    private final InvokerService invokerService;
+    private final Codecs codecs;
+    private final InvokerProperties properties;
+
+    public FunctionWarmup(InvokerService invokerService, Codecs codecs, InvokerProperties properties) {
+        this.invokerService = invokerService;
+        this.codecs = codecs;
+        this.properties = properties;
+    }
+
+    @PostConstruct
+    public void start() {
+        warm(invokerService.getDispatchTable(), null);
+    }
+
+    /**
+     * Warms up the routes of a dispatch table that are new since the previous one, or map to another function.
+     */
+    public void warm(DispatchTable dispatchTable, DispatchTable previous) {
+        if (!properties.getWarmup().isEnabled())
+            return;
+
+        long start = System.nanoTime();
+        long deadline = start + properties.getWarmup().getTimeout().toNanos();
+        int warmed = 0;
+
+        for (FunctionRoute route : dispatchTable.routes()) {
+            FunctionRoute current = previous != null ? previous.get(route.getPath()) : null;
+            if (current != null && current.getWrapper().getTarget() == route.getWrapper().getTarget())
+                continue;
+
+            if (System.nanoTime() - deadline >= 0) {
+                log.warn("Warm-up timed out after {}; remaining paths are not warmed up",
+                    properties.getWarmup().getTimeout());
+                break;
+            }
+
+            if (warm(route, deadline))
+                warmed++;
+        }
+
+        if (warmed > 0)
+            log.info("Warmed up {} paths in {} ms", warmed, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * @return whether the route has samples and could be warmed up with them
+     */
+    private boolean warm(FunctionRoute route, long deadline) {
+        InvokerProperties.PathWarmup warmup = route.getProperties().getWarmup();
+        List<String> samples = warmup.getSamples();
+        if (samples.isEmpty())
+            return false;
+
+        if (route.isStreamingInput() || route.isStreamingOutput()) {
+            log.info("Not warming up path {}: function '{}' is reactive", route.getPath(), route.getFunctionName());
+            return false;
+        }
+
+        long start = System.nanoTime();
+        int iterations = 0;
+        int stableRounds = 0;
+        double previousMean = 0;
+
+        try {
+            while (iterations < warmup.getIterations() && stableRounds < STABLE_ROUNDS
+                && System.nanoTime() - deadline < 0) {
+                int round = Math.min(ROUND, warmup.getIterations() - iterations);
+                long roundStart = System.nanoTime();
+
+                for (int i = 0; i < round; i++)
+                    invoke(route, samples.get((iterations + i) % samples.size()), deadline);
+
+                iterations += round;
+
+                double mean = (double) (System.nanoTime() - roundStart) / round;
+                stableRounds = previousMean > 0 && Math.abs(mean - previousMean) <= STABLE_TOLERANCE * previousMean
+                    ? stableRounds + 1
+                    : 0;
+                previousMean = mean;
+            }
+        } catch (Exception e) {
+            log.warn("Warm-up of path {} stopped after {} iterations: {}", route.getPath(), iterations, e.toString());
+            return false;
+        }
+
+        log.info("Warmed up path {} with {} iterations in {} ms, {} us per invocation{}",
+            route.getPath(), iterations, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+            Math.round(previousMean / 1000), stableRounds < STABLE_ROUNDS ? " (not yet stable)" : "");
+        return true;
+    }
+
+    private void invoke(FunctionRoute route, String sample, long deadline) throws IOException {
+        Object output = InvokerService.apply(route, input(route, sample));
+
+        if (output instanceof Publisher)
+            Mono.from((Publisher<?>) output).block(Duration.ofNanos(Math.max(1, deadline - System.nanoTime())));
+    }
+
+    /**
+     * A fresh input for every invocation, as functions may modify theirs.
+     */
+    private Object input(FunctionRoute route, String sample) throws IOException {
+        byte[] bytes = sample.getBytes(StandardCharsets.UTF_8);
+
+        if (route.isRaw()) {
+            if (route.getInputType() == ByteBuffer.class)
+                return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+            if (route.getInputType() == String.class)
+                return sample;
+            return bytes;
+        }
+
+        return codecs.decode(InvokerProperties.Codec.JSON, new ByteArrayInputStream(bytes), route.getInputType());
+    }
+}
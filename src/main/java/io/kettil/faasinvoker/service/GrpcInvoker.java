@@ -0,0 +1,225 @@
+package io.kettil.faasinvoker.service;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.BytesValue;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.NettyServerBuilder;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Serves functions over gRPC through one generic method, {@code faas.invoker.v1.Invoker/Invoke}, taking and returning a
+ * {@code google.protobuf.BytesValue}. The function path goes in the {@code x-faas-path} metadata.
+ */
+@Slf4j
+@Lazy(false)
+@Service
+@DependsOn("functionWarmup")
+public class GrpcInvoker implements Closeable {
+    public static final String SERVICE_NAME = "faas.invoker.v1.Invoker";
+    public static final String PATH_HEADER = "x-faas-path";
+
+    public static final MethodDescriptor<BytesValue, BytesValue> INVOKE =
+        MethodDescriptor.<BytesValue, BytesValue>newBuilder()
+            .setType(MethodDescriptor.MethodType.UNARY)
+            .setFullMethodName(MethodDescriptor.generateFullMethodName(SERVICE_NAME, "Invoke"))
+            .setRequestMarshaller(ProtoUtils.marshaller(BytesValue.getDefaultInstance()))
+            .setResponseMarshaller(ProtoUtils.marshaller(BytesValue.getDefaultInstance()))
+            .build();
+
+    private static final Metadata.Key<String> PATH_KEY =
+        Metadata.Key.of(PATH_HEADER, Metadata.ASCII_STRING_MARSHALLER);
+    private static final Metadata.Key<String> EXPECTED_TIMEOUT_KEY =
+        Metadata.Key.of(InvokerService.EXPECTED_TIMEOUT_HEADER, Metadata.ASCII_STRING_MARSHALLER);
+    private static final Metadata.Key<String> RETRY_PUSHBACK_KEY =
+        Metadata.Key.of("grpc-retry-pushback-ms", Metadata.ASCII_STRING_MARSHALLER);
+    private static final Context.Key<Metadata> HEADERS = Context.key("headers");
+
+    private final int port;
+    private final InvokerService invokerService;
+    private final Codecs codecs;
+
+    private Server server;
+
+    public GrpcInvoker(
+        @Value("${grpc.port}") int port,
+        InvokerService invokerService,
+        Codecs codecs) {
+
+        this.port = port;
+        this.invokerService = invokerService;
+        this.codecs = codecs;
+    }
+
+    @Override
+    public void close() {
+        if (server != null)
+            server.shutdown();
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        server = NettyServerBuilder.forPort(port)
+            .addService(service())
+            .build();
+
+        server.start();
+        log.info("gRPC invoker started on port {}", server.getPort());
+    }
+
+    ServerServiceDefinition service() {
+        return ServerInterceptors.intercept(
+            ServerServiceDefinition.builder(SERVICE_NAME)
+                .addMethod(INVOKE, ServerCalls.asyncUnaryCall(this::invoke))
+                .build(),
+            GrpcInvoker::captureHeaders);
+    }
+
+    private static <Q, R> ServerCall.Listener<Q> captureHeaders(
+        ServerCall<Q, R> call,
+        Metadata headers,
+        ServerCallHandler<Q, R> next) {
+
+        return Contexts.interceptCall(Context.current().withValue(HEADERS, headers), call, headers, next);
+    }
+
+    private void invoke(BytesValue request, StreamObserver<BytesValue> responseObserver) {
+        Metadata headers = HEADERS.get();
+        String path = headers.get(PATH_KEY);
+
+        FunctionRoute route = path != null ? invokerService.route(path) : null;
+        if (route == null) {
+            responseObserver.onError(Status.NOT_FOUND
+                .withDescription(String.format("No function configured for path '%s'", path))
+                .asRuntimeException());
+            return;
+        }
+
+        if (route.isStreamingInput() || route.isStreamingOutput()) {
+            responseObserver.onError(Status.UNIMPLEMENTED
+                .withDescription(String.format("Function '%s' is reactive; call it over HTTP", route.getFunctionName()))
+                .asRuntimeException());
+            return;
+        }
+
+        if (route.isAsync()) {
+            responseObserver.onError(Status.UNIMPLEMENTED
+                .withDescription(String.format("Path '%s' is async; call it over HTTP", route.getPath()))
+                .asRuntimeException());
+            return;
+        }
+
+        long deadline = InvokerService.deadline(route, headers.get(EXPECTED_TIMEOUT_KEY));
+        InvocationMetrics.PathMetrics metrics = route.getMetrics();
+
+        // Cancelled when the caller goes away or its gRPC deadline passes, which interrupts the function like an
+        // HTTP disconnect does
+        Disposable.Swap invocation = Disposables.swap();
+        ((ServerCallStreamObserver<BytesValue>) responseObserver).setOnCancelHandler(invocation::dispose);
+
+        invocation.update(metrics.instrument(headers, INVOKE, request, metrics
+                .timeDecode(Mono.fromCallable(() -> decode(route, request.getValue())))
+                .onErrorMap(IOException.class, e -> Status.INVALID_ARGUMENT
+                    .withDescription(String.format("Cannot decode input of function '%s': %s",
+                        route.getFunctionName(), e.getMessage()))
+                    .asRuntimeException())
+                .flatMap(input -> InvokerService.withDeadline(InvokerService.invoke(route, input), deadline))
+                .flatMap(output -> metrics.timeEncode(Mono.fromCallable(() -> BytesValue.of(encode(route, output)))))
+                .defaultIfEmpty(BytesValue.getDefaultInstance())
+                .onErrorMap(e -> error(route, e)))
+            .subscribe(
+                response -> {
+                    responseObserver.onNext(response);
+                    responseObserver.onCompleted();
+                },
+                responseObserver::onError));
+    }
+
+    private Object decode(FunctionRoute route, ByteString payload) throws IOException {
+        if (route.isRaw()) {
+            if (route.getInputType() == ByteBuffer.class)
+                return payload.asReadOnlyByteBuffer();
+            if (route.getInputType() == String.class)
+                return payload.toStringUtf8();
+            return payload.toByteArray();
+        }
+
+        return codecs.decode(route.getProperties().getCodec(), payload.newInput(), route.getInputType());
+    }
+
+    /**
+     * Sends only the payload of a {@link Message}, as there is no content type to set.
+     */
+    private ByteString encode(FunctionRoute route, Object output) throws IOException {
+        if (route.isRaw()) {
+            if (output instanceof Message)
+                output = ((Message<?>) output).getPayload();
+
+            if (output instanceof CharSequence)
+                return ByteString.copyFromUtf8(output.toString());
+            if (output instanceof byte[])
+                return UnsafeByteOperations.unsafeWrap((byte[]) output);
+            if (output instanceof ByteBuffer)
+                return UnsafeByteOperations.unsafeWrap((ByteBuffer) output);
+        }
+
+        return UnsafeByteOperations.unsafeWrap(codecs.encode(route.getProperties().getCodec(), output));
+    }
+
+    private static StatusRuntimeException error(FunctionRoute route, Throwable e) {
+        if (e instanceof StatusRuntimeException)
+            return (StatusRuntimeException) e;
+
+        if (e instanceof TimeoutException) {
+            route.getMetrics().timeout();
+            return Status.DEADLINE_EXCEEDED
+                .withDescription(String.format("Function '%s' did not complete before its deadline",
+                    route.getFunctionName()))
+                .asRuntimeException();
+        }
+
+        if (e instanceof RejectedExecutionException) {
+            var trailers = new Metadata();
+            trailers.put(RETRY_PUSHBACK_KEY,
+                Long.toString(route.getProperties().getLimit().getRetryAfter().toMillis()));
+            return Status.RESOURCE_EXHAUSTED
+                .withDescription(e.getMessage())
+                .asRuntimeException(trailers);
+        }
+
+        return Status.INTERNAL
+            .withDescription(String.format("Function '%s' error: %s: %s",
+                route.getFunctionName(), e.getMessage(), e))
+            .withCause(e)
+            .asRuntimeException();
+    }
+}
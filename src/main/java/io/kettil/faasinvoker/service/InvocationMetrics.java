@@ -0,0 +1,349 @@
+package io.kettil.faasinvoker.service;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Scope;
+import lombok.RequiredArgsConstructor;
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseCookie;
+import org.springframework.http.server.reactive.ServerHttpResponseDecorator;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.server.HandlerFunction;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.context.ContextView;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Per-path meters of HTTP and gRPC invocations, tagged with {@code path} and {@code function}: a timer per phase,
+ * errors by status, timeouts, payload sizes, and gauges of the invocations in flight and of the concurrency limit.
+ */
+@Component
+@RequiredArgsConstructor
+public class InvocationMetrics {
+    private final MeterRegistry registry;
+    private final InvocationTracing tracing;
+    private final Map<String, PathMetrics> metrics = new ConcurrentHashMap<>();
+
+    public static String key(String path, String functionName) {
+        return path + " " + functionName;
+    }
+
+    /**
+     * @return the meters of {@code path} for {@code functionName}, their gauges bound to {@code executor}
+     */
+    public PathMetrics forRoute(String path, String functionName, FunctionExecutors.FunctionExecutor executor) {
+        PathMetrics pathMetrics = metrics.computeIfAbsent(key(path, functionName), key -> new PathMetrics(
+            path, functionName, Tags.of("path", path, "function", functionName)));
+        pathMetrics.bind(executor);
+        return pathMetrics;
+    }
+
+    /**
+     * Removes the meters of the routes whose {@link #key(String, String)} is not in {@code keys}.
+     */
+    public void retain(Set<String> keys) {
+        metrics.entrySet().removeIf(i -> {
+            if (keys.contains(i.getKey()))
+                return false;
+
+            i.getValue().remove();
+            return true;
+        });
+    }
+
+    public class PathMetrics {
+        private final String path;
+        private final String functionName;
+        private final Tags tags;
+        private final Timer decode;
+        private final Timer apply;
+        private final Timer encode;
+        private final DistributionSummary requestSize;
+        private final DistributionSummary responseSize;
+        private final Counter timeouts;
+        private final Map<Integer, Counter> errors = new ConcurrentHashMap<>();
+        private FunctionExecutors.FunctionExecutor executor;
+        private Gauge inFlight;
+        private Gauge limit;
+
+        PathMetrics(String path, String functionName, Tags tags) {
+            this.path = path;
+            this.functionName = functionName;
+            this.tags = tags;
+            this.decode = timer("decode");
+            this.apply = timer("apply");
+            this.encode = timer("encode");
+            this.requestSize = payloadSize("request");
+            this.responseSize = payloadSize("response");
+            this.timeouts = Counter.builder("function.timeouts")
+                .tags(tags)
+                .register(registry);
+        }
+
+        /**
+         * Points the gauges at {@code executor}, which is new once a path was dropped and routed again.
+         */
+        synchronized void bind(FunctionExecutors.FunctionExecutor executor) {
+            if (executor == this.executor)
+                return;
+
+            if (inFlight != null) {
+                registry.remove(inFlight);
+                registry.remove(limit);
+            }
+
+            this.executor = executor;
+            inFlight = Gauge.builder("function.inflight", executor, FunctionExecutors.FunctionExecutor::getInFlight)
+                .tags(tags)
+                .register(registry);
+            limit = Gauge.builder("function.concurrency.limit", executor, FunctionExecutors.FunctionExecutor::getLimit)
+                .tags(tags)
+                .register(registry);
+        }
+
+        synchronized void remove() {
+            for (Meter meter : List.of(decode, apply, encode, requestSize, responseSize, timeouts, inFlight, limit))
+                registry.remove(meter);
+            errors.values().forEach(registry::remove);
+        }
+
+        /**
+         * Meters every response {@code handler} produces, and traces it if sampled. A handler failure counts under the
+         * status WebFlux answers it with.
+         */
+        public HandlerFunction<ServerResponse> instrument(HandlerFunction<ServerResponse> handler) {
+            return request -> {
+                request.headers().contentLength().ifPresent(requestSize::record);
+
+                Mono<ServerResponse> handled = handler.handle(request)
+                    .doOnError(e -> errors(e instanceof ResponseStatusException
+                        ? ((ResponseStatusException) e).getRawStatusCode()
+                        : HttpStatus.INTERNAL_SERVER_ERROR.value()).increment());
+
+                Span span = tracing.start(request, path, functionName);
+                if (span == null)
+                    return handled.map(response -> new InstrumentedResponse(response, null));
+
+                var responded = new AtomicBoolean();
+                return handled
+                    .<ServerResponse>map(response -> {
+                        responded.set(true);
+                        return new InstrumentedResponse(response, span);
+                    })
+                    .doOnError(e -> InvocationTracing.failed(span, e))
+                    .doFinally(signal -> {
+                        if (!responded.get())
+                            span.end();
+                    })
+                    .contextWrite(context -> context.put(InvocationTracing.SPAN, span));
+            };
+        }
+
+        /**
+         * The counterpart of {@link #instrument(HandlerFunction)} for a gRPC {@code call} of {@code method}.
+         */
+        public <T extends MessageLite> Mono<T> instrument(
+            Metadata headers,
+            MethodDescriptor<?, ?> method,
+            MessageLite request,
+            Mono<T> call) {
+
+            return Mono.defer(() -> {
+                requestSize.record(request.getSerializedSize());
+
+                Mono<T> counted = call
+                    .doOnNext(response -> responseSize.record(response.getSerializedSize()))
+                    .doOnError(e -> errors(httpStatus(Status.fromThrowable(e).getCode())).increment());
+
+                Span span = tracing.start(
+                    headers, method.getServiceName(), method.getBareMethodName(), path, functionName);
+                if (span == null)
+                    return counted;
+
+                return counted
+                    .doOnSuccess(response -> InvocationTracing.end(span, Status.OK))
+                    .doOnError(e -> InvocationTracing.end(span, Status.fromThrowable(e)))
+                    .doOnCancel(() -> InvocationTracing.end(span, Status.CANCELLED))
+                    .contextWrite(context -> context.put(InvocationTracing.SPAN, span));
+            });
+        }
+
+        public <T> Mono<T> timeDecode(Mono<T> body) {
+            return time(decode, "decode", body);
+        }
+
+        /**
+         * Times encoding where the invoker encodes output itself rather than have a {@link ServerResponse} write it.
+         */
+        public <T> Mono<T> timeEncode(Mono<T> output) {
+            return time(encode, "encode", output);
+        }
+
+        private <T> Mono<T> time(Timer timer, String phase, Mono<T> mono) {
+            return Mono.deferContextual(context -> {
+                long start = System.nanoTime();
+                Span span = tracing.startPhase(context, phase);
+                Mono<T> timed = mono.doOnNext(value -> timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+                return span != null ? timed.doFinally(signal -> span.end()) : timed;
+            });
+        }
+
+        /**
+         * @param context the Reactor context of the invocation, holding its span if it is traced
+         */
+        public <T> T timeApply(ContextView context, Supplier<T> call) {
+            Span span = tracing.startPhase(context, "apply");
+            if (span == null)
+                return apply.record(call);
+
+            try (Scope ignored = span.makeCurrent()) {
+                return apply.record(call);
+            } catch (RuntimeException e) {
+                InvocationTracing.failed(span, e);
+                throw e;
+            } finally {
+                span.end();
+            }
+        }
+
+        public void timeout() {
+            timeouts.increment();
+        }
+
+        private Timer timer(String phase) {
+            return Timer.builder("function.invocation")
+                .tags(tags)
+                .tag("phase", phase)
+                .publishPercentileHistogram()
+                .register(registry);
+        }
+
+        private DistributionSummary payloadSize(String direction) {
+            return DistributionSummary.builder("function.payload.size")
+                .tags(tags)
+                .tag("direction", direction)
+                .baseUnit("bytes")
+                .publishPercentileHistogram()
+                .register(registry);
+        }
+
+        /**
+         * The HTTP status the invoker answers the failure behind a gRPC status with.
+         */
+        private int httpStatus(Status.Code code) {
+            switch (code) {
+                case INVALID_ARGUMENT:
+                    return 400;
+                case NOT_FOUND:
+                    return 404;
+                case UNIMPLEMENTED:
+                    return 501;
+                case RESOURCE_EXHAUSTED:
+                    return 503;
+                case DEADLINE_EXCEEDED:
+                    return 504;
+                default:
+                    return 500;
+            }
+        }
+
+        private Counter errors(int status) {
+            return errors.computeIfAbsent(status, s -> Counter.builder("function.errors")
+                .tags(tags)
+                .tag("status", Integer.toString(s))
+                .register(registry));
+        }
+
+        @RequiredArgsConstructor
+        private class InstrumentedResponse implements ServerResponse {
+            private final ServerResponse delegate;
+            private final Span span;
+
+            @Override
+            public HttpStatus statusCode() {
+                return delegate.statusCode();
+            }
+
+            @Override
+            public int rawStatusCode() {
+                return delegate.rawStatusCode();
+            }
+
+            @Override
+            public HttpHeaders headers() {
+                return delegate.headers();
+            }
+
+            @Override
+            public MultiValueMap<String, ResponseCookie> cookies() {
+                return delegate.cookies();
+            }
+
+            @Override
+            public Mono<Void> writeTo(ServerWebExchange exchange, Context context) {
+                if (delegate.rawStatusCode() >= 400)
+                    errors(delegate.rawStatusCode()).increment();
+
+                var bytes = new AtomicLong();
+                var response = new ServerHttpResponseDecorator(exchange.getResponse()) {
+                    @Override
+                    public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+                        return super.writeWith(Flux.from(body)
+                            .doOnNext(buffer -> bytes.addAndGet(buffer.readableByteCount())));
+                    }
+
+                    @Override
+                    public Mono<Void> writeAndFlushWith(Publisher<? extends Publisher<? extends DataBuffer>> body) {
+                        return super.writeAndFlushWith(Flux.from(body)
+                            .map(inner -> Flux.from(inner)
+                                .doOnNext(buffer -> bytes.addAndGet(buffer.readableByteCount()))));
+                    }
+                };
+
+                return Mono.defer(() -> {
+                    long start = System.nanoTime();
+                    Span encodeSpan = span != null ? tracing.startPhase(span, "encode") : null;
+
+                    Mono<Void> written = delegate.writeTo(exchange.mutate().response(response).build(), context)
+                        .doOnSuccess(ignored -> {
+                            encode.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                            responseSize.record(bytes.get());
+                        });
+
+                    return span != null
+                        ? written.doFinally(signal -> {
+                            encodeSpan.end();
+                            InvocationTracing.end(span, delegate.rawStatusCode());
+                        })
+                        : written;
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package io.kettil.faasinvoker.service;
+
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.TextMapGetter;
+import io.opentelemetry.exporter.otlp.trace.OtlpGrpcSpanExporter;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import reactor.util.context.ContextView;
+
+import java.io.Closeable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spans of invocations, exported over OTLP: a server span per request, continuing the trace context Envoy propagates,
+ * with a child span per phase. An unsampled request allocates nothing.
+ */
+@Slf4j
+@Component
+public class InvocationTracing implements Closeable {
+    static final String SPAN = InvocationTracing.class.getName() + ".span";
+
+    private static final String TRACEPARENT = "traceparent";
+    private static final int TRACEPARENT_FLAGS = 54;
+    private static final AttributeKey<String> SERVICE_NAME = AttributeKey.stringKey("service.name");
+    private static final AttributeKey<String> HTTP_METHOD = AttributeKey.stringKey("http.method");
+    private static final AttributeKey<String> HTTP_TARGET = AttributeKey.stringKey("http.target");
+    private static final AttributeKey<Long> HTTP_STATUS_CODE = AttributeKey.longKey("http.status_code");
+    private static final AttributeKey<String> RPC_SYSTEM = AttributeKey.stringKey("rpc.system");
+    private static final AttributeKey<String> RPC_SERVICE = AttributeKey.stringKey("rpc.service");
+    private static final AttributeKey<String> RPC_METHOD = AttributeKey.stringKey("rpc.method");
+    private static final AttributeKey<Long> RPC_GRPC_STATUS_CODE = AttributeKey.longKey("rpc.grpc.status_code");
+    private static final AttributeKey<String> FUNCTION = AttributeKey.stringKey("faas.function");
+
+    private static final TextMapGetter<ServerRequest> GETTER = new TextMapGetter<>() {
+        @Override
+        public Iterable<String> keys(ServerRequest request) {
+            return request.headers().asHttpHeaders().keySet();
+        }
+
+        @Override
+        public String get(ServerRequest request, String key) {
+            return request.headers().firstHeader(key);
+        }
+    };
+
+    private static final TextMapGetter<Metadata> METADATA_GETTER = new TextMapGetter<>() {
+        @Override
+        public Iterable<String> keys(Metadata headers) {
+            return headers.keys();
+        }
+
+        @Override
+        public String get(Metadata headers, String key) {
+            return key.endsWith(Metadata.BINARY_HEADER_SUFFIX)
+                ? null
+                : headers.get(Metadata.Key.of(key, Metadata.ASCII_STRING_MARSHALLER));
+        }
+    };
+
+    private final double sampleRate;
+    private final SdkTracerProvider tracerProvider;
+    private final Tracer tracer;
+
+    @Autowired
+    public InvocationTracing(InvokerProperties properties) {
+        this(properties.getTracing(), properties.getTracing().isEnabled()
+            ? OtlpGrpcSpanExporter.builder().setEndpoint(properties.getTracing().getOtlpEndpoint()).build()
+            : null);
+    }
+
+    /**
+     * @param exporter where spans go, or null to trace nothing
+     */
+    InvocationTracing(InvokerProperties.Tracing tracing, SpanExporter exporter) {
+        this.sampleRate = tracing.getSampleRate();
+
+        if (exporter == null) {
+            this.tracerProvider = null;
+            this.tracer = null;
+            return;
+        }
+
+        this.tracerProvider = SdkTracerProvider.builder()
+            .setSampler(Sampler.parentBased(Sampler.alwaysOn()))
+            .setResource(Resource.getDefault().merge(Resource.create(Attributes.of(SERVICE_NAME, "faas-invoker"))))
+            .addSpanProcessor(BatchSpanProcessor.builder(exporter).build())
+            .build();
+        this.tracer = tracerProvider.get("io.kettil.faasinvoker");
+
+        log.info("Tracing {} of requests without trace context to {}", sampleRate, tracing.getOtlpEndpoint());
+    }
+
+    /**
+     * @return the server span of a request, or null if the request is not sampled
+     */
+    Span start(ServerRequest request, String path, String functionName) {
+        SpanBuilder span = spanBuilder(request, GETTER, path, functionName);
+        if (span == null)
+            return null;
+
+        return span
+            .setAttribute(HTTP_METHOD, request.methodName())
+            .setAttribute(HTTP_TARGET, request.path())
+            .startSpan();
+    }
+
+    /**
+     * @return the server span of a gRPC call, or null if the call is not sampled
+     */
+    Span start(Metadata headers, String service, String method, String path, String functionName) {
+        SpanBuilder span = spanBuilder(headers, METADATA_GETTER, path, functionName);
+        if (span == null)
+            return null;
+
+        return span
+            .setAttribute(RPC_SYSTEM, "grpc")
+            .setAttribute(RPC_SERVICE, service)
+            .setAttribute(RPC_METHOD, method)
+            .startSpan();
+    }
+
+    private <C> SpanBuilder spanBuilder(C carrier, TextMapGetter<C> getter, String path, String functionName) {
+        if (tracer == null)
+            return null;
+
+        String traceparent = getter.get(carrier, TRACEPARENT);
+        if (traceparent != null && traceparent.length() > TRACEPARENT_FLAGS) {
+            if ((Character.digit(traceparent.charAt(TRACEPARENT_FLAGS), 16) & 1) == 0)
+                return null;
+        } else if (ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return null;
+        }
+
+        return tracer.spanBuilder(path)
+            .setParent(W3CTraceContextPropagator.getInstance().extract(Context.root(), carrier, getter))
+            .setSpanKind(SpanKind.SERVER)
+            .setAttribute(FUNCTION, functionName);
+    }
+
+    /**
+     * @return a span of one phase of the invocation whose span is in the Reactor context, or null if there is none
+     */
+    Span startPhase(ContextView context, String phase) {
+        Span parent = context.getOrDefault(SPAN, null);
+        return parent != null ? startPhase(parent, phase) : null;
+    }
+
+    Span startPhase(Span parent, String phase) {
+        return tracer.spanBuilder(phase)
+            .setParent(Context.root().with(parent))
+            .startSpan();
+    }
+
+    static void end(Span span, int status) {
+        span.setAttribute(HTTP_STATUS_CODE, status);
+        if (status >= 500)
+            span.setStatus(StatusCode.ERROR);
+        span.end();
+    }
+
+    static void end(Span span, Status status) {
+        span.setAttribute(RPC_GRPC_STATUS_CODE, status.getCode().value());
+        if (!status.isOk())
+            span.setStatus(StatusCode.ERROR);
+        span.end();
+    }
+
+    static void failed(Span span, Throwable error) {
+        span.recordException(error);
+        span.setStatus(StatusCode.ERROR);
+    }
+
+    @Override
+    public void close() {
+        if (tracerProvider != null)
+            tracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+    }
+}
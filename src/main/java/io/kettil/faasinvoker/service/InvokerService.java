@@ -1,47 +1,144 @@
 package io.kettil.faasinvoker.service;
 
-import io.kettil.faas.Manifest;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.kettil.faasinvoker.dto.AsyncInvocation;
+import io.kettil.faasinvoker.dto.BatchResult;
 import io.kettil.faasinvoker.dto.ErrorResponse;
 import io.kettil.faasinvoker.dto.PingResponse;
 import io.kettil.faasinvoker.dto.Registration;
 import io.kettil.faasinvoker.dto.RootResponse;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.cloud.function.context.FunctionCatalog;
+import org.reactivestreams.Publisher;
 import org.springframework.cloud.function.context.catalog.SimpleFunctionRegistry;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
 import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.server.*;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static java.util.stream.Collectors.toList;
-import static org.springframework.util.StringUtils.uncapitalize;
-import static org.springframework.util.StringUtils.unqualify;
 
 @Slf4j
+@Lazy(false)
 @Service
-@RequiredArgsConstructor
 public class InvokerService {
-    private final Manifest manifest;
-    private final FunctionCatalog catalog;
+    static final String EXPECTED_TIMEOUT_HEADER = "x-envoy-expected-rq-timeout-ms";
+    private static final long NO_DEADLINE = Long.MIN_VALUE;
+    private static final MediaType TEXT_PLAIN_UTF8 = new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8);
+    private static final String FORWARDED_HEADER = "x-faas-forwarded";
+
+    private final Tenants tenants;
+    private final FunctionExecutors executors;
+    private final ResultCaches caches;
+    private final InvocationMetrics metrics;
+    private final Codecs codecs;
+    private final AsyncInvocations asyncInvocations;
+    private final InvokerProperties properties;
+    private final WebClient webClient = WebClient.create();
+
+    private volatile DispatchTable dispatchTable;
+
+    public InvokerService(
+        Tenants tenants,
+        FunctionExecutors executors,
+        ResultCaches caches,
+        InvocationMetrics metrics,
+        Codecs codecs,
+        AsyncInvocations asyncInvocations,
+        InvokerProperties properties) {
+
+        this.tenants = tenants;
+        this.executors = executors;
+        this.caches = caches;
+        this.metrics = metrics;
+        this.codecs = codecs;
+        this.asyncInvocations = asyncInvocations;
+        this.properties = properties;
+        this.dispatchTable = buildDispatchTable(tenants.getTenants());
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        asyncInvocations.start(this::runAsync);
+    }
+
+    /**
+     * @throws IllegalStateException if a path refers to a handler that is not in its tenant's catalog
+     */
+    public DispatchTable buildDispatchTable(List<Tenant> tenants) {
+        return DispatchTable.build(
+            tenants, executors, caches, metrics, properties, this::function, this::batch, this::invocation);
+    }
+
+    public DispatchTable getDispatchTable() {
+        return dispatchTable;
+    }
+
+    /**
+     * Swaps in {@code dispatchTable}, then drops what was kept for paths it no longer routes. Invocations already
+     * running on those paths complete regardless.
+     */
+    public void setDispatchTable(DispatchTable dispatchTable) {
+        this.dispatchTable = dispatchTable;
+        executors.retain(dispatchTable.paths());
+        caches.retain(dispatchTable.paths());
+        metrics.retain(dispatchTable.routes().stream()
+            .map(route -> InvocationMetrics.key(route.getPath(), route.getFunctionName()))
+            .collect(Collectors.toSet()));
+    }
+
+    /**
+     * @return the route of a path in the current dispatch table, or null if none
+     */
+    public FunctionRoute route(String path) {
+        return dispatchTable.get(path);
+    }
 
     @Bean
     public RouterFunction<ServerResponse> routeRequest() {
         return RouterFunctions.route(RequestPredicates.GET("").or(RequestPredicates.GET("/")), root())
             .andRoute(RequestPredicates.GET("/ping"), ping())
-            .andRoute(RequestPredicates.all(), function());
+            .and(request -> dispatchTable.route(request))
+            .andRoute(RequestPredicates.all(), notFound());
     }
 
     private HandlerFunction<ServerResponse> root() {
         return request -> ServerResponse.ok()
             .contentType(MediaType.APPLICATION_JSON)
-            .bodyValue(new RootResponse(catalog.getNames(Function.class).stream()
-                .map(name -> (SimpleFunctionRegistry.FunctionInvocationWrapper) catalog.lookup(name))
+            .bodyValue(new RootResponse(tenants.getTenants().stream()
+                .map(Tenant::getCatalog)
+                .flatMap(catalog -> catalog.getNames(Function.class).stream()
+                    .map(name -> (SimpleFunctionRegistry.FunctionInvocationWrapper) catalog.lookup(name)))
                 .filter(wrapper -> !wrapper.getTarget().getClass().getCanonicalName().startsWith("org.springframework"))
                 .map(wrapper -> new Registration(
                     wrapper.getTarget().getClass().getCanonicalName(),
@@ -56,63 +153,607 @@ public class InvokerService {
             .bodyValue(new PingResponse("pong"));
     }
 
-    private HandlerFunction<ServerResponse> function() {
+    private HandlerFunction<ServerResponse> notFound() {
+        return request -> {
+            if (request.method() != HttpMethod.POST)
+                return methodNotAllowed(request);
+
+            return ServerResponse.status(
+                HttpStatus.NOT_FOUND)
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(ErrorResponse.newErrorResponse(
+                    HttpStatus.NOT_FOUND,
+                    String.format("No function configured for path '%s'", request.uri().getPath()),
+                    request.path()));
+        };
+    }
+
+    private HandlerFunction<ServerResponse> function(FunctionRoute route) {
+        if (route.isStreamingInput() || route.isStreamingOutput())
+            return streamingFunction(route);
+        if (route.isAsync())
+            return asyncFunction(route);
+
+        return request -> {
+            if (request.method() != HttpMethod.POST)
+                return methodNotAllowed(request);
+
+            long deadline = deadline(route, request.headers().firstHeader(EXPECTED_TIMEOUT_HEADER));
+            InvokerProperties.Codec codec = route.getProperties().getCodec();
+            Mono<?> body = route.isRaw()
+                ? rawBody(route, request)
+                : codecs.forInput(codec, request).bodyToMono(route.getInputType());
+
+            return route.getMetrics().timeDecode(body)
+                .flatMap(input -> withDeadline(invoke(route, input), deadline)
+                    .flatMap(output -> route.isRaw()
+                        ? rawResponse(codec, request, output)
+                        : codecs.respond(codec, request, output))
+                    .onErrorResume(TimeoutException.class, e -> {
+                        route.getMetrics().timeout();
+                        return ServerResponse.status(
+                            HttpStatus.GATEWAY_TIMEOUT)
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .bodyValue(ErrorResponse.newErrorResponse(
+                                HttpStatus.GATEWAY_TIMEOUT,
+                                String.format("Function '%s' did not complete before its deadline",
+                                    route.getFunctionName()),
+                                request.path()));
+                    })
+                    .onErrorResume(RejectedExecutionException.class, e -> ServerResponse.status(
+                        HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, retryAfter(route))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .bodyValue(ErrorResponse.newErrorResponse(
+                            HttpStatus.SERVICE_UNAVAILABLE,
+                            e.getMessage(),
+                            request.path())))
+                    .onErrorResume(e -> ServerResponse.status(
+                        HttpStatus.INTERNAL_SERVER_ERROR)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .bodyValue(ErrorResponse.newErrorResponse(
+                            HttpStatus.INTERNAL_SERVER_ERROR,
+                            String.format("Function '%s' error for input '%s': %s: %s",
+                                route.getFunctionName(), input, e.getMessage(), e),
+                            request.path())))
+                    .doFinally(signal -> {
+                        if (input instanceof RawBody)
+                            ((RawBody) input).release();
+                    }));
+        };
+    }
+
+    /**
+     * The deadline of a request as a {@link System#nanoTime()} value, or {@link #NO_DEADLINE}. Envoy's expected
+     * timeout takes precedence over the path's timeout.
+     */
+    static long deadline(FunctionRoute route, String expected) {
+        long start = System.nanoTime();
+
+        if (expected != null) {
+            try {
+                long millis = Long.parseLong(expected);
+                if (millis > 0)
+                    return start + TimeUnit.MILLISECONDS.toNanos(millis);
+            } catch (NumberFormatException e) {
+                log.debug("Ignoring malformed {} header: {}", EXPECTED_TIMEOUT_HEADER, expected);
+            }
+        }
+
+        Duration timeout = route.getProperties().getTimeout();
+        return timeout.isZero() || timeout.isNegative() ? NO_DEADLINE : start + timeout.toNanos();
+    }
+
+    /**
+     * Cancels the invocation, interrupting its thread, when the deadline passes.
+     */
+    static Mono<Object> withDeadline(Mono<Object> invocation, long deadline) {
+        if (deadline == NO_DEADLINE)
+            return invocation;
+
+        return Mono.defer(() -> {
+            long remaining = deadline - System.nanoTime();
+            return remaining > 0
+                ? invocation.timeout(Duration.ofNanos(remaining))
+                : Mono.error(new TimeoutException());
+        });
+    }
+
+    /**
+     * Like {@link #withDeadline(Mono, long)} for a stream, which must complete before the deadline too.
+     */
+    static Flux<Object> withDeadline(Flux<Object> stream, long deadline) {
+        if (deadline == NO_DEADLINE)
+            return stream;
+
+        return Flux.defer(() -> stream.timeout(untilDeadline(deadline), item -> untilDeadline(deadline)));
+    }
+
+    private static Mono<Long> untilDeadline(long deadline) {
+        return Mono.delay(Duration.ofNanos(Math.max(0, deadline - System.nanoTime())));
+    }
+
+    /**
+     * Whole seconds, rounded up, as {@code Retry-After} takes no fractions.
+     */
+    private static long retryAfterSeconds(FunctionRoute route) {
+        long millis = route.getProperties().getLimit().getRetryAfter().toMillis();
+        return Math.max(1, (millis + 999) / 1000);
+    }
+
+    private static String retryAfter(FunctionRoute route) {
+        return Long.toString(retryAfterSeconds(route));
+    }
+
+    /**
+     * Reads the body of a raw route straight from the Netty buffers, up to the size the decoders buffer.
+     */
+    private static Mono<Object> rawBody(FunctionRoute route, ServerRequest request) {
+        return DataBufferUtils.join(request.bodyToFlux(DataBuffer.class), Codecs.maxInMemorySize(request))
+            .onErrorMap(DataBufferLimitException.class, e -> new ResponseStatusException(
+                HttpStatus.PAYLOAD_TOO_LARGE, e.getMessage(), e))
+            .switchIfEmpty(Mono.fromSupplier(() -> DefaultDataBufferFactory.sharedInstance.allocateBuffer(0)))
+            .map(buffer -> {
+                if (route.getInputType() == ByteBuffer.class)
+                    return new RawBody(buffer);
+
+                try {
+                    if (route.getInputType() == String.class)
+                        return buffer.toString(request.headers().contentType()
+                            .map(MediaType::getCharset)
+                            .orElse(StandardCharsets.UTF_8));
+
+                    byte[] bytes = new byte[buffer.readableByteCount()];
+                    buffer.read(bytes);
+                    return bytes;
+                } finally {
+                    DataBufferUtils.release(buffer);
+                }
+            });
+    }
+
+    /**
+     * Writes bytes and text as they are, with the content type of a returned {@link Message} if any, and anything
+     * else through the path's codec.
+     */
+    private Mono<ServerResponse> rawResponse(InvokerProperties.Codec codec, ServerRequest request, Object output) {
+        MediaType contentType = null;
+
+        if (output instanceof Message) {
+            Message<?> message = (Message<?>) output;
+            Object header = message.getHeaders().get(MessageHeaders.CONTENT_TYPE);
+            if (header != null)
+                contentType = MediaType.parseMediaType(header.toString());
+            output = message.getPayload();
+        }
+
+        if (output instanceof CharSequence) {
+            if (contentType == null)
+                contentType = TEXT_PLAIN_UTF8;
+            output = output.toString().getBytes(contentType.getCharset() != null
+                ? contentType.getCharset()
+                : StandardCharsets.UTF_8);
+        } else if (contentType == null) {
+            if (!(output instanceof byte[] || output instanceof ByteBuffer))
+                return codecs.respond(codec, request, output);
+
+            contentType = MediaType.APPLICATION_OCTET_STREAM;
+        }
+
+        return ServerResponse.ok()
+            .contentType(contentType)
+            .bodyValue(output);
+    }
+
+    /**
+     * Queues the request body as is, on the event loop, and answers 202 with the invocation id.
+     */
+    private HandlerFunction<ServerResponse> asyncFunction(FunctionRoute route) {
         return request -> {
             if (request.method() != HttpMethod.POST)
+                return methodNotAllowed(request);
+
+            String contentType = request.headers().contentType().map(MediaType::toString).orElse("");
+
+            return DataBufferUtils.join(request.bodyToFlux(DataBuffer.class), asyncInvocations.maxBodySize())
+                .map(buffer -> {
+                    try {
+                        byte[] bytes = new byte[buffer.readableByteCount()];
+                        buffer.read(bytes);
+                        return bytes;
+                    } finally {
+                        DataBufferUtils.release(buffer);
+                    }
+                })
+                .defaultIfEmpty(new byte[0])
+                .flatMap(body -> Mono.fromCallable(() -> asyncInvocations.submit(route.getPath(), contentType, body)))
+                .flatMap(id -> {
+                    String location = route.getPath() + DispatchTable.INVOCATIONS_SEGMENT + id;
+                    return ServerResponse.accepted()
+                        .location(URI.create(location))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .bodyValue(new AsyncInvocation(id, "queued", location));
+                })
+                .onErrorResume(RejectedExecutionException.class, e -> ServerResponse.status(
+                    HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, retryAfter(route))
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(ErrorResponse.newErrorResponse(
+                        HttpStatus.SERVICE_UNAVAILABLE,
+                        e.getMessage(),
+                        request.path())))
+                .onErrorResume(e -> e instanceof IllegalArgumentException || e instanceof DataBufferLimitException,
+                    e -> ServerResponse.status(
+                        HttpStatus.PAYLOAD_TOO_LARGE)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .bodyValue(ErrorResponse.newErrorResponse(
+                            HttpStatus.PAYLOAD_TOO_LARGE,
+                            e.getMessage(),
+                            request.path())))
+                .onErrorResume(e -> ServerResponse.status(
+                    HttpStatus.INTERNAL_SERVER_ERROR)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(ErrorResponse.newErrorResponse(
+                        HttpStatus.INTERNAL_SERVER_ERROR,
+                        String.format("Cannot queue invocation of function '%s': %s", route.getFunctionName(), e),
+                        request.path())));
+        };
+    }
+
+    /**
+     * Answers a poll for an async invocation, forwarding it to the invoker that queued the invocation.
+     */
+    private HandlerFunction<ServerResponse> invocation(FunctionRoute route) {
+        return request -> {
+            if (request.method() != HttpMethod.GET)
                 return ServerResponse.status(
                     HttpStatus.METHOD_NOT_ALLOWED)
                     .contentType(MediaType.APPLICATION_JSON)
                     .bodyValue(ErrorResponse.newErrorResponse(
                         HttpStatus.METHOD_NOT_ALLOWED,
-                        String.format("Invalid method '%s'; functions require POST", request.method()),
+                        String.format("Invalid method '%s'; invocation results require GET", request.method()),
                         request.path()));
 
-            String authorization = request.headers().asHttpHeaders().getFirst(HttpHeaders.AUTHORIZATION);
-            log.info("Authorization: {}", authorization);
+            String id = request.path().substring(request.path().lastIndexOf('/') + 1);
 
-            String path = request.uri().getPath();
-            Manifest.PathManifest pathManifest = manifest.getPaths().get(path);
-            if (pathManifest == null)
-                return ServerResponse.status(
-                    HttpStatus.NOT_FOUND)
+            AsyncResult result = asyncInvocations.result(id);
+            if (result == AsyncResult.PENDING)
+                return ServerResponse.accepted()
                     .contentType(MediaType.APPLICATION_JSON)
-                    .bodyValue(ErrorResponse.newErrorResponse(
-                        HttpStatus.NOT_FOUND,
-                        String.format("No function configured for path '%s'", path),
-                        request.path()));
+                    .bodyValue(new AsyncInvocation(id, "pending", request.path()));
+
+            if (result != null) {
+                var response = ServerResponse.status(result.getStatus());
+                return result.getContentType() != null
+                    ? response.contentType(MediaType.parseMediaType(result.getContentType()))
+                        .bodyValue(result.getBody())
+                    : response.build();
+            }
+
+            URI owner = asyncInvocations.owner(id);
+            if (owner != null && request.headers().firstHeader(FORWARDED_HEADER) == null)
+                return forward(owner, request);
+
+            return ServerResponse.status(
+                HttpStatus.NOT_FOUND)
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(ErrorResponse.newErrorResponse(
+                    HttpStatus.NOT_FOUND,
+                    String.format("No invocation '%s' of path '%s', or its result expired", id, route.getPath()),
+                    request.path()));
+        };
+    }
 
-            String functionName = uncapitalize(unqualify(pathManifest.getHandler()));
-            SimpleFunctionRegistry.FunctionInvocationWrapper wrapper = catalog.lookup(functionName);
+    private Mono<ServerResponse> forward(URI owner, ServerRequest request) {
+        return webClient.get()
+            .uri(owner.resolve(request.path()))
+            .header(FORWARDED_HEADER, "true")
+            .exchangeToMono(response -> response.bodyToMono(byte[].class)
+                .defaultIfEmpty(new byte[0])
+                .flatMap(body -> {
+                    var builder = ServerResponse.status(response.rawStatusCode());
+                    response.headers().contentType().ifPresent(builder::contentType);
+                    return builder.bodyValue(body);
+                }))
+            .onErrorResume(e -> ServerResponse.status(
+                HttpStatus.BAD_GATEWAY)
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(ErrorResponse.newErrorResponse(
+                    HttpStatus.BAD_GATEWAY,
+                    String.format("Cannot reach invoker %s that queued the invocation: %s", owner, e.getMessage()),
+                    request.path())));
+    }
+
+    /**
+     * Runs a queued invocation, retrying it while the executor rejects it, to the response it would have had.
+     */
+    private Mono<AsyncResult> runAsync(AsyncInvocations.Invocation invocation) {
+        FunctionRoute route = dispatchTable.get(invocation.getPath());
+        if (route == null || !route.isAsync())
+            return Mono.just(errorResult(HttpStatus.NOT_FOUND, invocation.getPath(),
+                String.format("No async function configured for path '%s'", invocation.getPath())));
+
+        return Mono.fromCallable(() -> asyncInput(route, invocation))
+            .flatMap(input -> Mono.defer(() -> withDeadline(invoke(route, input), deadline(route, null)))
+                .retryWhen(Retry.fixedDelay(properties.getAsync().getMaxRetries(),
+                        route.getProperties().getLimit().getRetryAfter())
+                    .filter(RejectedExecutionException.class::isInstance)))
+            .flatMap(output -> Mono.fromCallable(() -> asyncOutput(route, output)))
+            .defaultIfEmpty(new AsyncResult(HttpStatus.NO_CONTENT.value(), null, null))
+            .onErrorResume(Exceptions::isRetryExhausted, e -> Mono.just(errorResult(
+                HttpStatus.SERVICE_UNAVAILABLE, route.getPath(),
+                String.format("Function '%s' was still rejected after %d retries: %s",
+                    route.getFunctionName(), properties.getAsync().getMaxRetries(), e.getCause().getMessage()))))
+            .onErrorResume(TimeoutException.class, e -> {
+                route.getMetrics().timeout();
+                return Mono.just(errorResult(HttpStatus.GATEWAY_TIMEOUT, route.getPath(),
+                    String.format("Function '%s' did not complete before its deadline", route.getFunctionName())));
+            })
+            .onErrorResume(e -> Mono.just(errorResult(HttpStatus.INTERNAL_SERVER_ERROR, route.getPath(),
+                String.format("Function '%s' error: %s: %s", route.getFunctionName(), e.getMessage(), e))));
+    }
+
+    private Object asyncInput(FunctionRoute route, AsyncInvocations.Invocation invocation) throws IOException {
+        MediaType contentType = invocation.getContentType().isEmpty()
+            ? null
+            : MediaType.parseMediaType(invocation.getContentType());
+        byte[] body = invocation.getBody();
+
+        if (route.isRaw()) {
+            if (route.getInputType() == ByteBuffer.class)
+                return ByteBuffer.wrap(body).asReadOnlyBuffer();
+            if (route.getInputType() == String.class)
+                return new String(body, contentType != null && contentType.getCharset() != null
+                    ? contentType.getCharset()
+                    : StandardCharsets.UTF_8);
+            return body;
+        }
+
+        InvokerProperties.Codec codec = route.getProperties().getCodec();
+        if (codec == InvokerProperties.Codec.AUTO && contentType != null)
+            codec = Codecs.codec(contentType);
+
+        return codecs.decode(codec, new ByteArrayInputStream(body), route.getInputType());
+    }
 
-            if (wrapper == null)
+    private AsyncResult asyncOutput(FunctionRoute route, Object output) throws IOException {
+        if (route.isRaw()) {
+            String contentType = null;
+
+            if (output instanceof Message) {
+                Message<?> message = (Message<?>) output;
+                Object header = message.getHeaders().get(MessageHeaders.CONTENT_TYPE);
+                if (header != null)
+                    contentType = header.toString();
+                output = message.getPayload();
+            }
+
+            if (output instanceof CharSequence) {
+                MediaType type = contentType != null ? MediaType.parseMediaType(contentType) : TEXT_PLAIN_UTF8;
+                Charset charset = type.getCharset() != null ? type.getCharset() : StandardCharsets.UTF_8;
+                return new AsyncResult(HttpStatus.OK.value(), type.toString(), output.toString().getBytes(charset));
+            }
+            if (output instanceof byte[])
+                return new AsyncResult(HttpStatus.OK.value(),
+                    contentType != null ? contentType : MediaType.APPLICATION_OCTET_STREAM_VALUE, (byte[]) output);
+            if (output instanceof ByteBuffer) {
+                ByteBuffer buffer = ((ByteBuffer) output).duplicate();
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                return new AsyncResult(HttpStatus.OK.value(),
+                    contentType != null ? contentType : MediaType.APPLICATION_OCTET_STREAM_VALUE, bytes);
+            }
+        }
+
+        InvokerProperties.Codec codec = route.getProperties().getCodec();
+        return new AsyncResult(HttpStatus.OK.value(),
+            Codecs.mediaType(Codecs.resolve(codec, output)).toString(), codecs.encode(codec, output));
+    }
+
+    private AsyncResult errorResult(HttpStatus status, String path, String message) {
+        try {
+            return new AsyncResult(status.value(), MediaType.APPLICATION_JSON_VALUE, codecs.encode(
+                InvokerProperties.Codec.JSON, ErrorResponse.newErrorResponse(status, message, path)));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Serves {@code <path>/_batch}: a JSON array or NDJSON of inputs, each answered with its result or error.
+     */
+    private HandlerFunction<ServerResponse> batch(FunctionRoute route) {
+        int parallelism = route.getProperties().getBatch().getParallelism();
+
+        return request -> {
+            if (request.method() != HttpMethod.POST)
+                return methodNotAllowed(request);
+
+            MediaType contentType = request.headers().contentType().orElse(MediaType.APPLICATION_JSON);
+            if (!contentType.isCompatibleWith(MediaType.APPLICATION_JSON)
+                && !contentType.isCompatibleWith(MediaType.APPLICATION_NDJSON))
                 return ServerResponse.status(
-                    HttpStatus.NOT_FOUND)
+                    HttpStatus.UNSUPPORTED_MEDIA_TYPE)
                     .contentType(MediaType.APPLICATION_JSON)
                     .bodyValue(ErrorResponse.newErrorResponse(
-                        HttpStatus.NOT_FOUND,
-                        String.format("No function implementation '%s' registered for path %s",
-                            functionName, path),
+                        HttpStatus.UNSUPPORTED_MEDIA_TYPE,
+                        String.format("Batches take a JSON array or NDJSON, not '%s'", contentType),
                         request.path()));
 
-            return request.bodyToMono(wrapper.getRawInputType())
-                .flatMap(input ->
-                {
-                    try {
-                        return ServerResponse.ok()
-                            .contentType(MediaType.APPLICATION_JSON)
-                            .bodyValue(wrapper.apply(input));
+            long deadline = deadline(route, request.headers().firstHeader(EXPECTED_TIMEOUT_HEADER));
 
-                    } catch (Exception e) {
-                        return ServerResponse.status(
-                            HttpStatus.INTERNAL_SERVER_ERROR)
+            Flux<BatchResult> results = codecs.decodeStream(
+                    codecs.forInput(Codecs.codec(contentType), request), route.getInputType())
+                .flatMapSequential(input -> withDeadline(invoke(route, input), deadline)
+                    .map(BatchResult::success)
+                    .defaultIfEmpty(BatchResult.success(null))
+                    .onErrorResume(TimeoutException.class, e -> {
+                        route.getMetrics().timeout();
+                        return Mono.just(BatchResult.failure(
+                            ErrorResponse.newErrorResponse(
+                                HttpStatus.GATEWAY_TIMEOUT,
+                                String.format("Function '%s' did not complete before its deadline",
+                                    route.getFunctionName()),
+                                request.path())));
+                    })
+                    .onErrorResume(RejectedExecutionException.class, e -> Mono.just(BatchResult.rejected(
+                        ErrorResponse.newErrorResponse(
+                            HttpStatus.SERVICE_UNAVAILABLE,
+                            e.getMessage(),
+                            request.path()),
+                        retryAfterSeconds(route))))
+                    .onErrorResume(e -> Mono.just(BatchResult.failure(
+                        ErrorResponse.newErrorResponse(
+                            HttpStatus.INTERNAL_SERVER_ERROR,
+                            String.format("Function '%s' error for input '%s': %s: %s",
+                                route.getFunctionName(), input, e.getMessage(), e),
+                            request.path())))), parallelism);
+
+            return ServerResponse.ok()
+                .contentType(request.headers().accept().stream()
+                    .anyMatch(MediaType.APPLICATION_NDJSON::equalsTypeAndSubtype)
+                    ? MediaType.APPLICATION_NDJSON
+                    : MediaType.APPLICATION_JSON)
+                .body(results, BatchResult.class);
+        };
+    }
+
+    static Mono<Object> invoke(FunctionRoute route, Object input) {
+        if (route.getCache() != null)
+            return route.getCache().get(input, i -> execute(route, i));
+
+        return execute(route, input);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Mono<Object> execute(FunctionRoute route, Object input) {
+        return Mono.deferContextual(context -> route.getExecutor()
+                .execute(() -> route.getMetrics().timeApply(context, () -> apply(route, input))))
+            .flatMap(output -> output instanceof Publisher ? Mono.from((Publisher<Object>) output) : Mono.just(output));
+    }
+
+    /**
+     * Applies the function with its tenant's class loader as context class loader.
+     */
+    static Object apply(FunctionRoute route, Object input) {
+        if (input instanceof RawBody)
+            return ((RawBody) input).apply(view -> apply(route, view));
+
+        if (route.getClassLoader() == null)
+            return call(route, input);
+
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        thread.setContextClassLoader(route.getClassLoader());
+        try {
+            return call(route, input);
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+    }
+
+    /**
+     * Passes raw inputs to the function itself, as the wrapper would convert them from JSON.
+     */
+    @SuppressWarnings("unchecked")
+    private static Object call(FunctionRoute route, Object input) {
+        return route.isRaw()
+            ? ((Function<Object, Object>) route.getWrapper().getTarget()).apply(input)
+            : route.getWrapper().apply(input);
+    }
+
+    /**
+     * Serves functions that take or return a {@code Flux}, decoding and encoding items as they arrive. An error after
+     * the first output item can only end the stream.
+     */
+    private HandlerFunction<ServerResponse> streamingFunction(FunctionRoute route) {
+        return request -> {
+            if (request.method() != HttpMethod.POST)
+                return methodNotAllowed(request);
+
+            long deadline = deadline(route, request.headers().firstHeader(EXPECTED_TIMEOUT_HEADER));
+
+            Flux<Object> output = route.isStreamingInput()
+                ? route.getExecutor().executeMany(() ->
+                    toFlux(apply(route, streamingInput(route, request))))
+                : request.bodyToMono(route.getInputType())
+                    .flatMapMany(input -> route.getExecutor().executeMany(() ->
+                        toFlux(apply(route, input))));
+
+            output = withDeadline(output, deadline)
+                .doOnError(e -> log.warn("Function '{}' stream for path {} failed: {}",
+                    route.getFunctionName(), route.getPath(), e.toString()));
+
+            return output
+                .switchOnFirst((first, stream) -> first.isOnError()
+                    ? Flux.error(first.getThrowable())
+                    : (route.isStreamingOutput()
+                        ? ServerResponse.ok()
+                            .contentType(streamingMediaType(request))
+                            .body(stream, Object.class)
+                        : ServerResponse.ok()
                             .contentType(MediaType.APPLICATION_JSON)
-                            .bodyValue(ErrorResponse.newErrorResponse(
-                                HttpStatus.INTERNAL_SERVER_ERROR,
-                                String.format("Function '%s' error for input '%s': %s: %s",
-                                    functionName, input, e.getMessage(), e),
-                                request.path()));
-                    }
-                });
+                            .body(stream.next(), Object.class)).flux(), false)
+                .single()
+                .onErrorResume(TimeoutException.class, e -> {
+                    route.getMetrics().timeout();
+                    return ServerResponse.status(
+                        HttpStatus.GATEWAY_TIMEOUT)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .bodyValue(ErrorResponse.newErrorResponse(
+                            HttpStatus.GATEWAY_TIMEOUT,
+                            String.format("Function '%s' did not complete before its deadline",
+                                route.getFunctionName()),
+                            request.path()));
+                })
+                .onErrorResume(RejectedExecutionException.class, e -> ServerResponse.status(
+                    HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, retryAfter(route))
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(ErrorResponse.newErrorResponse(
+                        HttpStatus.SERVICE_UNAVAILABLE,
+                        e.getMessage(),
+                        request.path())))
+                .onErrorResume(e -> ServerResponse.status(
+                    HttpStatus.INTERNAL_SERVER_ERROR)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(ErrorResponse.newErrorResponse(
+                        HttpStatus.INTERNAL_SERVER_ERROR,
+                        String.format("Function '%s' error: %s: %s", route.getFunctionName(), e.getMessage(), e),
+                        request.path())));
         };
     }
+
+    /**
+     * The items of a JSON array or NDJSON body, or of any other body the function's input type can be read from.
+     */
+    private Flux<Object> streamingInput(FunctionRoute route, ServerRequest request) {
+        MediaType contentType = request.headers().contentType().orElse(MediaType.APPLICATION_JSON);
+        if (contentType.isCompatibleWith(MediaType.APPLICATION_JSON)
+            || contentType.isCompatibleWith(MediaType.APPLICATION_NDJSON))
+            return codecs.decodeStream(request, route.getInputType());
+
+        return request.bodyToFlux(route.getInputType()).cast(Object.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Flux<Object> toFlux(Object result) {
+        return result instanceof Publisher ? Flux.from((Publisher<Object>) result) : Flux.just(result);
+    }
+
+    private static MediaType streamingMediaType(ServerRequest request) {
+        return request.headers().accept().stream().anyMatch(MediaType.TEXT_EVENT_STREAM::equalsTypeAndSubtype)
+            ? MediaType.TEXT_EVENT_STREAM
+            : MediaType.APPLICATION_NDJSON;
+    }
+
+    private static Mono<ServerResponse> methodNotAllowed(ServerRequest request) {
+        return ServerResponse.status(
+            HttpStatus.METHOD_NOT_ALLOWED)
+            .contentType(MediaType.APPLICATION_JSON)
+            .bodyValue(ErrorResponse.newErrorResponse(
+                HttpStatus.METHOD_NOT_ALLOWED,
+                String.format("Invalid method '%s'; functions require POST", request.method()),
+                request.path()));
+    }
 }
@@ -18,6 +18,16 @@ import static java.util.stream.Collectors.joining;
 public class ManifestEnvironmentPostProcessor implements EnvironmentPostProcessor {
     @Override
     public void postProcessEnvironment(ConfigurableEnvironment environment, SpringApplication application) {
+        String manifests = environment.getProperty("manifests");
+        if (manifests != null && !manifests.isEmpty()) {
+            // Each tenant's jar is loaded by Tenants, not by the function deployer
+            if (!Files.isDirectory(Path.of(manifests))) {
+                System.err.printf("Manifest directory %s is missing%n", manifests);
+                System.exit(1);
+            }
+            return;
+        }
+
         Path manifestPath = Path.of(environment.getProperty("manifest", "/etc/faas/manifest.yaml"));
         if (Files.notExists(manifestPath)) {
             System.err.printf("Manifest file %s is missing%n", manifestPath);
@@ -0,0 +1,124 @@
+package io.kettil.faasinvoker.service;
+
+import io.kettil.faasinvoker.config.InvokerProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads the manifests when their files change and applies them to the invoker and the control plane. Manifests that
+ * cannot be applied are rejected, and the current ones stay in effect.
+ */
+@Slf4j
+@Lazy(false)
+@Component
+public class ManifestWatcher implements Closeable {
+    private static final long DEBOUNCE_MILLIS = 500;
+
+    private final Tenants tenants;
+    private final InvokerProperties properties;
+    private final InvokerService invokerService;
+    private final FunctionWarmup warmup;
+    private final EnvoyControlPlane controlPlane;
+
+    private WatchService watchService;
+
+    public ManifestWatcher(
+        Tenants tenants,
+        InvokerProperties properties,
+        InvokerService invokerService,
+        FunctionWarmup warmup,
+        EnvoyControlPlane controlPlane) {
+
+        this.tenants = tenants;
+        this.properties = properties;
+        this.invokerService = invokerService;
+        this.warmup = warmup;
+        this.controlPlane = controlPlane;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        Path directory = tenants.getWatchDirectory();
+        if (!properties.isManifestWatch() || directory == null)
+            return;
+
+        watchService = FileSystems.getDefault().newWatchService();
+        directory.register(watchService,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE);
+
+        var thread = new Thread(this::watch, "manifest-watcher");
+        thread.setDaemon(true);
+        thread.start();
+
+        log.info("Watching manifests in {}", directory);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watchService != null)
+            watchService.close();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+
+                // Editors and ConfigMap updates produce bursts of events; let them settle
+                Thread.sleep(DEBOUNCE_MILLIS);
+                do {
+                    key.pollEvents();
+                    key.reset();
+                } while ((key = watchService.poll(0, TimeUnit.MILLISECONDS)) != null);
+
+                reload();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            log.debug("Manifest watcher stopped");
+        }
+    }
+
+    void reload() {
+        List<Tenant> next;
+        try {
+            next = tenants.load();
+            if (next.equals(tenants.getTenants()))
+                return;
+        } catch (IOException | IllegalStateException e) {
+            log.error("Cannot reload manifests in {}: {}", tenants.getWatchDirectory(), e.getMessage());
+            return;
+        }
+
+        DispatchTable dispatchTable;
+        try {
+            dispatchTable = invokerService.buildDispatchTable(next);
+        } catch (IllegalStateException e) {
+            log.error("Rejected manifests in {}: {}", tenants.getWatchDirectory(), e.getMessage());
+            tenants.release(next);
+            return;
+        }
+
+        warmup.warm(dispatchTable, invokerService.getDispatchTable());
+
+        invokerService.setDispatchTable(dispatchTable);
+        controlPlane.update(next);
+        tenants.setTenants(next);
+
+        log.info("Reloaded manifests in {}", tenants.getWatchDirectory());
+    }
+}
@@ -0,0 +1,64 @@
+package io.kettil.faasinvoker.service;
+
+import com.fasterxml.jackson.annotation.JsonValue;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A request body passed to a {@code ByteBuffer} function as a view of the buffer Netty read it into, without a copy.
+ * The buffer is released once the function returns, so the function must not keep the view.
+ */
+class RawBody {
+    private static final int PENDING = 0;
+    private static final int APPLYING = 1;
+    private static final int RELEASED = 2;
+
+    private final DataBuffer buffer;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+
+    RawBody(DataBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * The body as seen by the result cache key.
+     */
+    @JsonValue
+    ByteBuffer view() {
+        return buffer.asByteBuffer().asReadOnlyBuffer();
+    }
+
+    Object apply(Function<ByteBuffer, Object> function) {
+        if (!state.compareAndSet(PENDING, APPLYING))
+            throw new IllegalStateException("Request body already released");
+
+        try {
+            ByteBuffer view = view();
+            Object output = function.apply(view);
+            return output == view ? copy(view) : output;
+        } finally {
+            state.set(RELEASED);
+            DataBufferUtils.release(buffer);
+        }
+    }
+
+    void release() {
+        if (state.compareAndSet(PENDING, RELEASED))
+            DataBufferUtils.release(buffer);
+    }
+
+    private static ByteBuffer copy(ByteBuffer view) {
+        ByteBuffer copy = ByteBuffer.allocate(view.remaining());
+        copy.put(view.duplicate()).flip();
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return state.get() == RELEASED ? "<released>" : "<" + buffer.readableByteCount() + " bytes>";
+    }
+}
@@ -0,0 +1,250 @@
+package io.kettil.faasinvoker.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.io.CountingOutputStream;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The result caches of the paths that enable caching. A cache belongs to the function a path dispatches to, as loaded
+ * from its tenant: it is replaced once a dispatch table routes the path to another function or to a reloaded tenant,
+ * and dropped once the path is no longer routed.
+ */
+@Slf4j
+@Component
+public class ResultCaches {
+    private static final String CACHE_NAME = "function.results";
+
+    private final InvokerProperties properties;
+    private final MeterRegistry meterRegistry;
+    private final ObjectWriter keyWriter;
+    private final Map<String, ResultCache> caches = new ConcurrentHashMap<>();
+
+    public ResultCaches(InvokerProperties properties, MeterRegistry meterRegistry, ObjectMapper objectMapper) {
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+        this.keyWriter = objectMapper.copy()
+            .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true)
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true)
+            .configure(SerializationFeature.INDENT_OUTPUT, false)
+            .writer();
+    }
+
+    /**
+     * @param fingerprint the fingerprint of the tenant the function is loaded from
+     * @return the cache of {@code path} for {@code functionName}, or null if caching is not enabled for it
+     */
+    public ResultCache forRoute(String path, String functionName, String fingerprint) {
+        InvokerProperties.PathProperties pathProperties = properties.forPath(path);
+        InvokerProperties.Cache cache = pathProperties.getCache();
+        if (!cache.isEnabled())
+            return null;
+
+        String function = functionName + "@" + fingerprint;
+        return caches.compute(path, (p, current) -> {
+            if (current != null && current.function.equals(function))
+                return current;
+
+            if (current != null)
+                current.close();
+            return new ResultCache(p, function, cache, pathProperties.getTimeout());
+        });
+    }
+
+    /**
+     * Drops the caches of the paths not in {@code paths}.
+     */
+    public void retain(Set<String> paths) {
+        caches.entrySet().removeIf(i -> {
+            if (paths.contains(i.getKey()))
+                return false;
+
+            i.getValue().close();
+            return true;
+        });
+    }
+
+    public class ResultCache {
+        private final String path;
+        private final String function;
+        private final AsyncCache<String, Result> cache;
+        private final boolean weighed;
+        private final Duration timeout;
+
+        ResultCache(String path, String function, InvokerProperties.Cache properties, Duration timeout) {
+            this.path = path;
+            this.function = function;
+            this.weighed = properties.getMaxSize().toBytes() > 0;
+            this.timeout = timeout;
+
+            Caffeine<Object, Object> builder = Caffeine.newBuilder()
+                .expireAfterWrite(properties.getTtl())
+                .recordStats();
+
+            if (weighed)
+                builder.maximumWeight(properties.getMaxSize().toBytes())
+                    .weigher((String key, Result result) -> key.length() + result.weight);
+            else
+                builder.maximumSize(properties.getMaxEntries());
+
+            cache = CaffeineCacheMetrics.monitor(meterRegistry, builder.buildAsync(), CACHE_NAME,
+                Tags.of("path", path));
+
+            log.info("Path {} caches results of {} for {} (max entries {}, max size {})",
+                path, function, properties.getTtl(), properties.getMaxEntries(), properties.getMaxSize());
+        }
+
+        /**
+         * Returns the cached result for {@code input}, invoking {@code function} on a miss that concurrent callers
+         * share. The invocation is cancelled once they all cancel, and fails at the path's timeout.
+         */
+        public Mono<Object> get(Object input, Function<Object, Mono<Object>> function) {
+            String key;
+            try {
+                key = keyWriter.writeValueAsString(input);
+            } catch (JsonProcessingException e) {
+                return function.apply(input);
+            }
+
+            return Mono.deferContextual(context -> {
+                while (true) {
+                    var miss = new Miss(key);
+                    CompletableFuture<Result> result = cache.asMap().putIfAbsent(key, miss);
+
+                    if (result == null) {
+                        miss.enter();
+                        miss.start(function.apply(input).contextWrite(context));
+                        return miss.await();
+                    }
+
+                    if (result.isDone())
+                        return Mono.fromFuture(result).map(Result::getValue);
+
+                    if (((Miss) result).enter())
+                        return ((Miss) result).await();
+
+                    // Cancelled by its last caller as this one arrived, and on its way out of the cache
+                    cache.asMap().remove(key, result);
+                }
+            });
+        }
+
+        /**
+         * The size of a result as the response body it becomes.
+         */
+        private int weigh(Object value) {
+            if (value instanceof byte[])
+                return ((byte[]) value).length;
+            if (value instanceof ByteBuffer)
+                return ((ByteBuffer) value).remaining();
+            if (value instanceof CharSequence)
+                return ((CharSequence) value).length();
+
+            var counter = new CountingOutputStream(OutputStream.nullOutputStream());
+            try {
+                keyWriter.writeValue(counter, value);
+            } catch (IOException e) {
+                return 0;
+            }
+            return (int) Math.min(Integer.MAX_VALUE, counter.getCount());
+        }
+
+        private void close() {
+            cache.synchronous().invalidateAll();
+
+            for (Meter meter : meterRegistry.getMeters()) {
+                if (CACHE_NAME.equals(meter.getId().getTag("cache")) && path.equals(meter.getId().getTag("path")))
+                    meterRegistry.remove(meter);
+            }
+
+            log.info("Path {} dropped its cache of results of {}", path, function);
+        }
+
+        /**
+         * An invocation on a miss, shared by the callers waiting for it and counted by them.
+         */
+        private class Miss extends CompletableFuture<Result> {
+            private final String key;
+            private final Disposable.Swap subscription = Disposables.swap();
+            private int waiters;
+
+            Miss(String key) {
+                this.key = key;
+            }
+
+            void start(Mono<Object> invocation) {
+                if (!timeout.isZero() && !timeout.isNegative())
+                    invocation = invocation.timeout(timeout);
+
+                subscription.update(invocation.subscribe(
+                    value -> complete(new Result(value, weighed ? weigh(value) : 0)),
+                    e -> {
+                        cache.asMap().remove(key, this);
+                        completeExceptionally(e);
+                    },
+                    () -> complete(null)));
+            }
+
+            /**
+             * @return false if the invocation was cancelled before this caller could wait for it
+             */
+            synchronized boolean enter() {
+                if (subscription.isDisposed())
+                    return false;
+
+                waiters++;
+                return true;
+            }
+
+            /**
+             * Depends on this future, so that one caller cancelling does not complete it for the others.
+             */
+            Mono<Object> await() {
+                return Mono.fromFuture(thenApply(Function.identity()))
+                    .doOnCancel(this::leave)
+                    .map(Result::getValue);
+            }
+
+            private synchronized void leave() {
+                if (--waiters > 0 || isDone())
+                    return;
+
+                subscription.dispose();
+                cache.asMap().remove(key, this);
+                completeExceptionally(new CancellationException());
+            }
+        }
+    }
+
+    @Value
+    private static class Result {
+        Object value;
+        int weight;
+    }
+}
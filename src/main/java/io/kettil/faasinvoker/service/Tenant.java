@@ -0,0 +1,38 @@
+package io.kettil.faasinvoker.service;
+
+import io.kettil.faas.Manifest;
+import lombok.Value;
+import org.springframework.cloud.function.context.FunctionCatalog;
+
+import static org.springframework.util.StringUtils.uncapitalize;
+import static org.springframework.util.StringUtils.unqualify;
+
+/**
+ * One deployed manifest and the functions of its jar.
+ */
+@Value
+public class Tenant {
+    String name;
+
+    /**
+     * Prepended to every path of the manifest; empty when the invoker serves a single manifest.
+     */
+    String prefix;
+
+    Manifest manifest;
+    FunctionCatalog catalog;
+
+    /**
+     * The isolated class loader of the tenant's jar, or null if its functions live in the invoker's class loader.
+     */
+    ClassLoader classLoader;
+
+    /**
+     * Identifies the manifest and jar content the tenant was loaded from.
+     */
+    String fingerprint;
+
+    public static String functionName(String handler) {
+        return uncapitalize(unqualify(handler));
+    }
+}
@@ -0,0 +1,272 @@
+package io.kettil.faasinvoker.service;
+
+import io.kettil.faas.Manifest;
+import io.kettil.faasinvoker.Util;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.function.context.FunctionCatalog;
+import org.springframework.cloud.function.context.FunctionRegistration;
+import org.springframework.cloud.function.context.catalog.FunctionTypeUtils;
+import org.springframework.cloud.function.context.catalog.SimpleFunctionRegistry;
+import org.springframework.cloud.function.context.config.JsonMessageConverter;
+import org.springframework.cloud.function.json.JsonMapper;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.convert.support.DefaultConversionService;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toSet;
+
+/**
+ * The manifests served by this invoker: the single {@code manifest}, or every {@code *.yaml} manifest in the
+ * {@code manifests} directory as a tenant mounted at {@code /<name>}, its plain jar in a class loader of its own.
+ */
+@Slf4j
+@Lazy(false)
+@Component
+public class Tenants {
+    private static final String SINGLE_TENANT = "default";
+
+    private final Path manifestPath;
+    private final Path manifestDirectory;
+    private final FunctionCatalog catalog;
+    private final JsonMapper jsonMapper;
+    private final boolean preloadClasses;
+
+    private volatile List<Tenant> tenants = List.of();
+
+    @Autowired
+    public Tenants(
+        @Value("${manifest:}") String manifest,
+        @Value("${manifests:}") String manifests,
+        @Value("${jar:}") String jar,
+        FunctionCatalog catalog,
+        JsonMapper jsonMapper,
+        InvokerProperties properties) throws IOException {
+
+        this.manifestPath = manifests.isEmpty() ? Path.of(manifest).toAbsolutePath() : null;
+        this.manifestDirectory = manifests.isEmpty() ? null : Path.of(manifests).toAbsolutePath();
+        this.catalog = catalog;
+        this.jsonMapper = jsonMapper;
+        this.preloadClasses = properties.isPreloadClasses();
+        this.tenants = load();
+
+        if (preloadClasses && manifestPath != null && !jar.isEmpty())
+            preloadDeployedJar(Path.of(jar));
+    }
+
+    private Tenants(List<Tenant> tenants) {
+        this.manifestPath = null;
+        this.manifestDirectory = null;
+        this.catalog = null;
+        this.jsonMapper = null;
+        this.preloadClasses = false;
+        this.tenants = List.copyOf(tenants);
+    }
+
+    /**
+     * Tenants that are not backed by files and never change, for use outside of Spring.
+     */
+    public static Tenants of(Tenant... tenants) {
+        return new Tenants(List.of(tenants));
+    }
+
+    public static Tenant single(Manifest manifest, FunctionCatalog catalog, String fingerprint) {
+        return new Tenant(SINGLE_TENANT, "", manifest, catalog, null, fingerprint);
+    }
+
+    public List<Tenant> getTenants() {
+        return tenants;
+    }
+
+    /**
+     * Applies {@code tenants}, then closes the class loaders of the tenants they replace or remove. Classes those
+     * loaders already loaded keep working, so invocations still running on them complete.
+     */
+    public void setTenants(List<Tenant> tenants) {
+        List<Tenant> previous = this.tenants;
+        this.tenants = List.copyOf(tenants);
+        release(previous);
+    }
+
+    /**
+     * Closes the class loaders of those of {@code loaded} that are not current, such as tenants loaded for
+     * manifests that were then rejected.
+     */
+    public void release(List<Tenant> loaded) {
+        for (Tenant tenant : loaded) {
+            if (tenants.contains(tenant) || !(tenant.getClassLoader() instanceof URLClassLoader))
+                continue;
+
+            try {
+                ((URLClassLoader) tenant.getClassLoader()).close();
+                log.info("Closed class loader of tenant {}", tenant.getName());
+            } catch (IOException e) {
+                log.warn("Cannot close class loader of tenant {}: {}", tenant.getName(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the directory to watch for manifest changes, or null if the tenants are not backed by files
+     */
+    public Path getWatchDirectory() {
+        if (manifestDirectory != null)
+            return manifestDirectory;
+
+        return manifestPath != null ? manifestPath.getParent() : null;
+    }
+
+    /**
+     * Reads the manifests from disk without applying them. Tenants whose manifest and jar are unchanged are
+     * returned as the same instances, so the result equals {@link #getTenants()} when nothing changed.
+     *
+     * @throws IllegalStateException if a jar or one of its handlers cannot be loaded
+     */
+    public List<Tenant> load() throws IOException {
+        if (manifestPath == null && manifestDirectory == null)
+            return tenants;
+
+        Map<String, Tenant> current = tenants.stream().collect(toMap(Tenant::getName, Function.identity()));
+
+        if (manifestPath != null) {
+            byte[] content = Files.readAllBytes(manifestPath);
+            String fingerprint = DigestUtils.md5DigestAsHex(content);
+
+            Tenant tenant = current.get(SINGLE_TENANT);
+            if (tenant != null && tenant.getFingerprint().equals(fingerprint))
+                return tenants;
+
+            return List.of(single(Util.yamlMapper().readValue(content, Manifest.class), catalog, fingerprint));
+        }
+
+        List<Path> manifestFiles;
+        try (Stream<Path> files = Files.list(manifestDirectory)) {
+            manifestFiles = files
+                .filter(file -> file.getFileName().toString().endsWith(".yaml"))
+                .sorted()
+                .collect(toList());
+        }
+
+        var next = new ArrayList<Tenant>();
+        try {
+            for (Path manifestFile : manifestFiles) {
+                String fileName = manifestFile.getFileName().toString();
+                String name = fileName.substring(0, fileName.length() - ".yaml".length());
+
+                byte[] content = Files.readAllBytes(manifestFile);
+                Manifest manifest = Util.yamlMapper().readValue(content, Manifest.class);
+
+                Path jarPath = manifestDirectory.resolve(Path.of(manifest.getLocation()).getFileName());
+                if (Files.notExists(jarPath))
+                    throw new IllegalStateException(
+                        String.format("Jar file %s of tenant %s is missing", jarPath, name));
+
+                String fingerprint =
+                    DigestUtils.md5DigestAsHex(content) + ":" + Files.getLastModifiedTime(jarPath).toMillis();
+
+                Tenant tenant = current.get(name);
+                next.add(tenant != null && tenant.getFingerprint().equals(fingerprint)
+                    ? tenant
+                    : loadTenant(name, manifest, jarPath, fingerprint));
+            }
+        } catch (IOException | RuntimeException e) {
+            release(next);
+            throw e;
+        }
+
+        return next;
+    }
+
+    /**
+     * Loads the handlers of {@code manifest} from {@code jarPath} in a class loader of their own.
+     */
+    private Tenant loadTenant(String name, Manifest manifest, Path jarPath, String fingerprint) throws IOException {
+        checkPlainJar(name, jarPath);
+
+        var classLoader = new URLClassLoader(
+            "tenant-" + name, new URL[]{jarPath.toUri().toURL()}, getClass().getClassLoader());
+
+        var registry = new SimpleFunctionRegistry(
+            new DefaultConversionService(),
+            new CompositeMessageConverter(List.of(new JsonMessageConverter(jsonMapper))),
+            jsonMapper);
+
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        thread.setContextClassLoader(classLoader);
+        try {
+            for (String handler : manifest.getPaths().values().stream()
+                .map(Manifest.PathManifest::getHandler)
+                .collect(toSet())) {
+
+                Class<?> type = classLoader.loadClass(handler);
+                registry.register(new FunctionRegistration<>(
+                    type.getDeclaredConstructor().newInstance(), Tenant.functionName(handler))
+                    .type(FunctionTypeUtils.discoverFunctionTypeFromClass(type)));
+            }
+        } catch (ReflectiveOperationException | LinkageError e) {
+            classLoader.close();
+            throw new IllegalStateException(String.format("Cannot load handlers of tenant %s from %s: %s",
+                name, jarPath, e), e);
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+
+        log.info("Loaded tenant {} from {} with {} paths", name, jarPath, manifest.getPaths().size());
+
+        if (preloadClasses)
+            ClassPreloader.preload(name, jarPath, classLoader);
+
+        return new Tenant(name, "/" + name, manifest, registry, classLoader, fingerprint);
+    }
+
+    /**
+     * @throws IllegalStateException if the jar is not a readable plain jar, which a Spring Boot jar is not
+     */
+    private static void checkPlainJar(String name, Path jarPath) {
+        boolean bootJar;
+        try (var jar = new JarFile(jarPath.toFile())) {
+            bootJar = jar.stream().anyMatch(entry -> entry.getName().startsWith("BOOT-INF/"));
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Cannot read jar file %s of tenant %s: %s",
+                jarPath, name, e.getMessage()), e);
+        }
+
+        if (bootJar)
+            throw new IllegalStateException(String.format(
+                "Jar file %s of tenant %s is a Spring Boot jar; tenants need a plain jar, with any dependencies "
+                    + "shaded in", jarPath, name));
+    }
+
+    /**
+     * Finds the class loader the function deployer loaded the jar in through the class of a handler.
+     */
+    private void preloadDeployedJar(Path jar) {
+        tenants.stream()
+            .flatMap(tenant -> tenant.getManifest().getPaths().values().stream())
+            .map(path -> (SimpleFunctionRegistry.FunctionInvocationWrapper)
+                catalog.lookup(Tenant.functionName(path.getHandler())))
+            .filter(wrapper -> wrapper != null)
+            .findFirst()
+            .ifPresent(wrapper -> ClassPreloader.preload(
+                SINGLE_TENANT, jar, wrapper.getTarget().getClass().getClassLoader()));
+    }
+}
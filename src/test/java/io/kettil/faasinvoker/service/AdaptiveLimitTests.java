@@ -0,0 +1,47 @@
+package io.kettil.faasinvoker.service;
+
+import io.kettil.faasinvoker.config.InvokerProperties;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveLimitTests {
+
+	private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	void growsWhileLatencyHoldsAndTheLimitIsUsed() {
+		var limit = new AdaptiveLimit(16, 1000, new InvokerProperties.Limit());
+
+		for (int i = 0; i < 100; i++)
+			limit.onSample(10 * MILLIS, limit.getLimit());
+
+		assertThat(limit.getLimit()).isGreaterThan(16);
+	}
+
+	@Test
+	void doesNotGrowWhileIdle() {
+		var limit = new AdaptiveLimit(16, 1000, new InvokerProperties.Limit());
+
+		for (int i = 0; i < 100; i++)
+			limit.onSample(10 * MILLIS, 1);
+
+		assertThat(limit.getLimit()).isEqualTo(16);
+	}
+
+	@Test
+	void shrinksToTheMinimumWhenLatencyRises() {
+		var limit = new AdaptiveLimit(64, 1000, new InvokerProperties.Limit());
+
+		for (int i = 0; i < 100; i++)
+			limit.onSample(10 * MILLIS, limit.getLimit());
+		int steady = limit.getLimit();
+
+		for (int i = 0; i < 100; i++)
+			limit.onSample(200 * MILLIS, limit.getLimit());
+
+		assertThat(limit.getLimit()).isLessThan(steady).isEqualTo(4);
+	}
+}
@@ -0,0 +1,104 @@
+package io.kettil.faasinvoker.service;
+
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AsyncInvocationsTests {
+	private final InvokerProperties properties = new InvokerProperties();
+	private final FunctionExecutors executors = new FunctionExecutors(properties);
+
+	@AfterEach
+	void closeExecutors() {
+		executors.close();
+	}
+
+	@Test
+	void encodesAnInvocationForTheQueue() {
+		var invocation = new AsyncInvocations.Invocation("id", "/hello", "application/json", new byte[]{1, 2, 3});
+
+		assertThat(AsyncInvocations.Invocation.decode(invocation.encode())).isEqualTo(invocation);
+	}
+
+	@Test
+	void rejectsFieldsLongerThanTheirLengthPrefix() {
+		var invocation = new AsyncInvocations.Invocation("id", "/hello", "x".repeat(0x10000), new byte[0]);
+
+		assertThatThrownBy(invocation::encode)
+			.isInstanceOf(IllegalArgumentException.class)
+			.hasMessageContaining("Content type of 65536 bytes");
+	}
+
+	private WebTestClient newClient(Path queue, boolean start) throws Exception {
+		var pathProperties = new InvokerProperties.PathProperties();
+		pathProperties.getAsync().setEnabled(true);
+		properties.getPaths().put("/upper", pathProperties);
+		properties.getAsync().setDirectory(queue.toString());
+		properties.getAsync().setSegmentSize(DataSize.ofKilobytes(4));
+
+		InvokerService service = InvokerServiceTests.newService(
+			Map.of("/upper", InvokerServiceTests.Upper.class), properties, executors, new SimpleMeterRegistry());
+		if (start)
+			service.start();
+		return WebTestClient.bindToRouterFunction(service.routeRequest()).build();
+	}
+
+	private WebTestClient.ResponseSpec post(WebTestClient client, String body) {
+		return client.post().uri("/upper")
+			.contentType(MediaType.TEXT_PLAIN)
+			.bodyValue(body)
+			.exchange();
+	}
+
+	@Test
+	void answersAPollWithTheResultOnceTheInvocationCompletes(@TempDir Path queue) throws Exception {
+		WebTestClient client = newClient(queue, true);
+
+		String location = post(client, "hello")
+			.expectStatus().isAccepted()
+			.expectBody()
+			.jsonPath("$.status").isEqualTo("queued")
+			.returnResult()
+			.getResponseHeaders().getLocation().toString();
+		assertThat(location).startsWith("/upper" + DispatchTable.INVOCATIONS_SEGMENT);
+
+		int status;
+		do {
+			Thread.sleep(20);
+			status = client.get().uri(location).exchange().returnResult(String.class).getRawStatusCode();
+		} while (status == 202);
+
+		client.get().uri(location).exchange()
+			.expectStatus().isOk()
+			.expectBody(String.class).isEqualTo("HELLO");
+	}
+
+	@Test
+	void rejectsABodyTooLargeToQueueWith413(@TempDir Path queue) throws Exception {
+		WebTestClient client = newClient(queue, true);
+
+		post(client, "x".repeat(8 * 1024))
+			.expectStatus().isEqualTo(413);
+		post(client, "hello")
+			.expectStatus().isAccepted();
+	}
+
+	@Test
+	void answers503WhileTheQueueIsNotOpen(@TempDir Path queue) throws Exception {
+		WebTestClient client = newClient(queue, false);
+
+		post(client, "hello")
+			.expectStatus().isEqualTo(503);
+	}
+}
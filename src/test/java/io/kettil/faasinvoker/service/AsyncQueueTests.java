@@ -0,0 +1,136 @@
+package io.kettil.faasinvoker.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AsyncQueueTests {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void deliversRecordsInOrderAcrossSegments() throws Exception {
+		try (var queue = new AsyncQueue(directory, 64, 8, record -> {})) {
+			for (int i = 0; i < 10; i++)
+				queue.append(bytes("record-" + i));
+
+			for (int i = 0; i < 10; i++) {
+				AsyncQueue.Record record = queue.take();
+				assertThat(string(record.getData())).isEqualTo("record-" + i);
+				queue.ack(record.getPosition());
+			}
+
+			assertThat(queue.size()).isZero();
+			assertThat(segments()).hasSize(1);
+		}
+	}
+
+	@Test
+	void redeliversUnacknowledgedRecordsAfterReopening() throws Exception {
+		try (var queue = new AsyncQueue(directory, 64, 8, record -> {})) {
+			queue.append(bytes("a"));
+			queue.append(bytes("b"));
+			queue.append(bytes("c"));
+
+			queue.ack(queue.take().getPosition());
+			queue.take();
+		}
+
+		var recovered = new ArrayList<String>();
+		try (var queue = new AsyncQueue(directory, 64, 8, record -> recovered.add(string(record)))) {
+			assertThat(recovered).containsExactly("b", "c");
+			assertThat(queue.size()).isEqualTo(2);
+			assertThat(string(queue.take().getData())).isEqualTo("b");
+		}
+	}
+
+	@Test
+	void dropsATornRecord() throws Exception {
+		try (var queue = new AsyncQueue(directory, 64, 8, record -> {})) {
+			queue.append(bytes("whole"));
+			queue.append(bytes("torn"));
+		}
+
+		// Corrupt the body of the second record, as if the process died while writing it
+		try (var channel = FileChannel.open(segments().get(0), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(bytes("x")), 8 + 5 + 8);
+		}
+
+		var recovered = new ArrayList<String>();
+		try (var queue = new AsyncQueue(directory, 64, 8, record -> recovered.add(string(record)))) {
+			assertThat(recovered).containsExactly("whole");
+
+			queue.append(bytes("next"));
+			queue.take();
+			assertThat(string(queue.take().getData())).isEqualTo("next");
+		}
+	}
+
+	@Test
+	void rejectsRecordsBeyondItsBounds() throws Exception {
+		try (var queue = new AsyncQueue(directory, 64, 2, record -> {})) {
+			assertThatThrownBy(() -> queue.append(new byte[64]))
+				.isInstanceOf(IllegalArgumentException.class);
+
+			assertThatThrownBy(() -> {
+				for (int i = 0; i < 10; i++)
+					queue.append(bytes("record-" + i));
+			}).isInstanceOf(RejectedExecutionException.class);
+		}
+	}
+
+	@Test
+	void failsClearlyWhenASegmentGoesMissing() throws Exception {
+		try (var queue = new AsyncQueue(directory, 64, 8, record -> {})) {
+			for (int i = 0; i < 8; i++)
+				queue.append(bytes("record-" + i));
+		}
+		assertThat(segments()).hasSize(3);
+		Files.delete(segments().get(1));
+
+		var recovered = new ArrayList<String>();
+		try (var queue = new AsyncQueue(directory, 64, 8, record -> recovered.add(string(record)))) {
+			assertThat(recovered).containsExactly("record-0", "record-1", "record-2");
+			for (int i = 0; i < 3; i++)
+				queue.take();
+
+			queue.append(bytes("next"));
+			assertThatThrownBy(queue::take)
+				.isInstanceOf(IllegalStateException.class)
+				.hasMessageContaining("is corrupt")
+				.hasMessageContaining("segment 1 is missing");
+		}
+	}
+
+	private List<Path> segments() throws Exception {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files
+				.filter(file -> file.getFileName().toString().startsWith("segment-"))
+				.sorted()
+				.collect(Collectors.toList());
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String string(byte[] bytes) {
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,69 @@
+package io.kettil.faasinvoker.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AuthzSettingsTests {
+
+	private static Map<String, String> extensions(String... keysAndValues) {
+		var extensions = new LinkedHashMap<String, String>();
+		extensions.put("service_path", "/hello");
+		for (int i = 0; i < keysAndValues.length; i += 2)
+			extensions.put(keysAndValues[i], keysAndValues[i + 1]);
+		return extensions;
+	}
+
+	@Test
+	void keepsAuthzEnabledWithoutSettings() {
+		assertThat(AuthzSettings.extract(extensions())).isEqualTo(AuthzSettings.DEFAULT);
+	}
+
+	@Test
+	void parsesSettings() {
+		var settings = AuthzSettings.extract(extensions(
+			AuthzSettings.DISABLED, "true",
+			AuthzSettings.WITH_BODY, "False",
+			AuthzSettings.TIMEOUT_MS, "250",
+			AuthzSettings.ALLOW_PARTIAL_MESSAGE, "true"));
+
+		assertThat(settings.isDisabled()).isTrue();
+		assertThat(settings.isWithBody()).isFalse();
+		assertThat(settings.getProfile()).isEqualTo(new AuthzSettings.Profile(250, true));
+		assertThat(settings.getProfile().getFilterName()).isEqualTo("envoy.filters.http.ext_authz.250ms.partial");
+	}
+
+	@Test
+	void removesSettingsFromTheContextExtensions() {
+		var extensions = extensions(
+			AuthzSettings.WITH_BODY, "false",
+			AuthzSettings.TIMEOUT_MS, "250",
+			"namespace_service", "hello");
+
+		AuthzSettings.extract(extensions);
+
+		assertThat(extensions).containsOnlyKeys("service_path", "namespace_service");
+	}
+
+	@Test
+	void invalidValuesFailClosed() {
+		var settings = AuthzSettings.extract(extensions(
+			AuthzSettings.DISABLED, "yes",
+			AuthzSettings.WITH_BODY, "no",
+			AuthzSettings.TIMEOUT_MS, "1s",
+			AuthzSettings.ALLOW_PARTIAL_MESSAGE, "1"));
+
+		assertThat(settings).isEqualTo(AuthzSettings.DEFAULT);
+	}
+
+	@Test
+	void ignoresNonPositiveTimeouts() {
+		assertThat(AuthzSettings.extract(extensions(AuthzSettings.TIMEOUT_MS, "0")).getProfile())
+			.isEqualTo(AuthzSettings.Profile.DEFAULT);
+		assertThat(AuthzSettings.extract(extensions(AuthzSettings.TIMEOUT_MS, "-5")).getProfile())
+			.isEqualTo(AuthzSettings.Profile.DEFAULT);
+	}
+}
@@ -0,0 +1,85 @@
+package io.kettil.faasinvoker.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.StringValue;
+import io.kettil.faasinvoker.config.CodecConfiguration;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.ResolvableType;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.DecoderHttpMessageReader;
+import org.springframework.http.codec.EncoderHttpMessageWriter;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.http.codec.cbor.Jackson2CborDecoder;
+import org.springframework.http.codec.cbor.Jackson2CborEncoder;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CodecsTests {
+
+	@Test
+	void defaultsToJsonWithoutAccept() {
+		assertThat(Codecs.negotiate(List.of(), false)).isEqualTo(MediaType.APPLICATION_JSON);
+		assertThat(Codecs.negotiate(List.of(MediaType.ALL), false)).isEqualTo(MediaType.APPLICATION_JSON);
+	}
+
+	@Test
+	void picksTheMostPreferredAcceptedType() {
+		List<MediaType> accept = MediaType.parseMediaTypes("application/json;q=0.5, application/cbor");
+
+		assertThat(Codecs.negotiate(accept, false)).isEqualTo(Codecs.CBOR);
+	}
+
+	@Test
+	void writesProtobufMessagesOnlyAsProtobuf() {
+		assertThat(Codecs.negotiate(List.of(MediaType.APPLICATION_JSON), true)).isEqualTo(Codecs.PROTOBUF);
+		assertThat(Codecs.negotiate(List.of(MediaType.ALL), true)).isEqualTo(Codecs.PROTOBUF);
+	}
+
+	@Test
+	void decodesWhatItEncodesWithoutHeaders() throws Exception {
+		var codecs = new Codecs(new ObjectMapper());
+
+		byte[] smile = codecs.encode(InvokerProperties.Codec.SMILE, Map.of("x", 1));
+		assertThat(codecs.decode(InvokerProperties.Codec.SMILE, new ByteArrayInputStream(smile), Map.class))
+			.isEqualTo(Map.of("x", 1));
+
+		byte[] protobuf = codecs.encode(InvokerProperties.Codec.AUTO, StringValue.of("x"));
+		assertThat(protobuf).isEqualTo(StringValue.of("x").toByteArray());
+		assertThat(codecs.decode(InvokerProperties.Codec.AUTO, new ByteArrayInputStream(protobuf), StringValue.class))
+			.isEqualTo(StringValue.of("x"));
+	}
+
+	@Test
+	void readsAndWritesJsonWithTheJsonCodecsOnceCborIsRegistered() {
+		var configurer = ServerCodecConfigurer.create();
+		new CodecConfiguration().cborCodecCustomizer().customize(configurer);
+
+		assertThat(decoder(configurer, MediaType.APPLICATION_JSON)).isInstanceOf(Jackson2JsonDecoder.class);
+		assertThat(encoder(configurer, MediaType.APPLICATION_JSON)).isInstanceOf(Jackson2JsonEncoder.class);
+		assertThat(decoder(configurer, MediaType.APPLICATION_CBOR)).isInstanceOf(Jackson2CborDecoder.class);
+		assertThat(encoder(configurer, MediaType.APPLICATION_CBOR)).isInstanceOf(Jackson2CborEncoder.class);
+	}
+
+	private static Object decoder(ServerCodecConfigurer configurer, MediaType mediaType) {
+		return configurer.getReaders().stream()
+			.filter(reader -> reader.canRead(ResolvableType.forClass(Map.class), mediaType))
+			.map(reader -> ((DecoderHttpMessageReader<?>) reader).getDecoder())
+			.findFirst()
+			.orElse(null);
+	}
+
+	private static Object encoder(ServerCodecConfigurer configurer, MediaType mediaType) {
+		return configurer.getWriters().stream()
+			.filter(writer -> writer.canWrite(ResolvableType.forClass(Map.class), mediaType))
+			.map(writer -> ((EncoderHttpMessageWriter<?>) writer).getEncoder())
+			.findFirst()
+			.orElse(null);
+	}
+}
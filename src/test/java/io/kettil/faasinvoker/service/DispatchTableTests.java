@@ -0,0 +1,104 @@
+package io.kettil.faasinvoker.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.kettil.faas.Manifest;
+import io.kettil.faasinvoker.Util;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DispatchTableTests {
+	private final InvokerProperties properties = new InvokerProperties();
+	private final FunctionExecutors executors = new FunctionExecutors(properties);
+
+	@AfterEach
+	void closeExecutors() {
+		executors.close();
+	}
+
+	public static class Upper implements Function<String, String> {
+		@Override
+		public String apply(String s) {
+			return s.toUpperCase();
+		}
+	}
+
+	public static class Count implements Function<List<String>, Integer> {
+		@Override
+		public Integer apply(List<String> words) {
+			return words.size();
+		}
+	}
+
+	public static class Words implements Function<Flux<String>, Flux<String>> {
+		@Override
+		public Flux<String> apply(Flux<String> lines) {
+			return lines.flatMap(line -> Flux.fromArray(line.split(" ")));
+		}
+	}
+
+	private DispatchTable build(Tenant tenant) {
+		return InvokerServiceTests.newService(tenant, properties, executors, new SimpleMeterRegistry())
+			.getDispatchTable();
+	}
+
+	@Test
+	void resolvesEachPathToTheFunctionOfItsHandler() throws JsonProcessingException {
+		DispatchTable table = build(InvokerServiceTests.tenant(
+			Map.of("/upper", Upper.class, "/count", Count.class, "/words", Words.class)));
+
+		assertThat(table.paths()).containsExactlyInAnyOrder("/upper", "/count", "/words");
+
+		FunctionRoute upper = table.get("/upper");
+		assertThat(upper.getFunctionName()).isEqualTo(Tenant.functionName(Upper.class.getName()));
+		assertThat(upper.getInputType()).isEqualTo(String.class);
+		assertThat(upper.isRaw()).isTrue();
+
+		FunctionRoute count = table.get("/count");
+		assertThat(count.getInputType()).isEqualTo(List.class);
+		assertThat(count.isRaw()).isFalse();
+		assertThat(count.isStreamingInput()).isFalse();
+		assertThat(count.isStreamingOutput()).isFalse();
+
+		FunctionRoute words = table.get("/words");
+		assertThat(words.getInputType()).isEqualTo(String.class);
+		assertThat(words.isStreamingInput()).isTrue();
+		assertThat(words.isStreamingOutput()).isTrue();
+		assertThat(words.isRaw()).isFalse();
+	}
+
+	@Test
+	void prefixesThePathsOfATenant() throws JsonProcessingException {
+		Tenant single = InvokerServiceTests.tenant(Map.of("/upper", Upper.class));
+		DispatchTable table = build(new Tenant("a", "/a", single.getManifest(), single.getCatalog(), null, "1"));
+
+		assertThat(table.paths()).containsExactly("/a/upper");
+		assertThat(table.get("/a/upper").getFunctionName()).isEqualTo(Tenant.functionName(Upper.class.getName()));
+	}
+
+	@Test
+	void failsToStartWhenAHandlerIsNotInTheCatalog() throws JsonProcessingException {
+		Tenant single = InvokerServiceTests.tenant(Map.of("/upper", Upper.class));
+		Manifest manifest = Util.yamlMapper().readValue(
+			"location: functions.jar\n"
+				+ "paths:\n"
+				+ "  /upper:\n"
+				+ "    handler: " + Upper.class.getName() + "\n"
+				+ "  /missing:\n"
+				+ "    handler: com.example.Missing\n", Manifest.class);
+		Tenant tenant = Tenants.single(manifest, single.getCatalog(), "1");
+
+		assertThatThrownBy(() -> build(tenant))
+			.isInstanceOf(IllegalStateException.class)
+			.hasMessage("No function implementation 'missing' registered for path /missing");
+	}
+}
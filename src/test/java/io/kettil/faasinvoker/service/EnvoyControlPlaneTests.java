@@ -0,0 +1,318 @@
+package io.kettil.faasinvoker.service;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+import io.envoyproxy.controlplane.cache.Resources;
+import io.envoyproxy.controlplane.cache.v3.Snapshot;
+import io.envoyproxy.envoy.config.cluster.v3.Cluster;
+import io.envoyproxy.envoy.config.core.v3.ConfigSource;
+import io.envoyproxy.envoy.config.core.v3.Node;
+import io.envoyproxy.envoy.config.listener.v3.Listener;
+import io.envoyproxy.envoy.config.route.v3.Route;
+import io.envoyproxy.envoy.config.route.v3.RouteConfiguration;
+import io.envoyproxy.envoy.extensions.filters.http.ext_authz.v3.ExtAuthzPerRoute;
+import io.envoyproxy.envoy.extensions.filters.network.http_connection_manager.v3.HttpConnectionManager;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryRequest;
+import io.kettil.faas.Manifest;
+import io.kettil.faasinvoker.Util;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EnvoyControlPlaneTests {
+	private static final String DEFAULT_FILTER = "envoy.filters.http.ext_authz";
+	private static final String SLOW_FILTER = "envoy.filters.http.ext_authz.5000ms";
+
+	private final EnvoyControlPlane controlPlane = new EnvoyControlPlane(0, 30,
+		EnvoyControlPlane.GroupBy.NONE, "tenants", Tenants.of(), new InvokerProperties(), new SimpleMeterRegistry());
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final EnvoyControlPlane grouped = new EnvoyControlPlane(
+		0, 30, EnvoyControlPlane.GroupBy.METADATA, "tenants", Tenants.of(), new InvokerProperties(), registry);
+	private final EnvoyControlPlane.StreamCallbacks callbacks = grouped.new StreamCallbacks();
+
+	private static Manifest manifest(String yaml) throws IOException {
+		return Util.yamlMapper().readValue(yaml, Manifest.class);
+	}
+
+	private static Tenant tenant(String name, String... paths) throws IOException {
+		var yaml = new StringBuilder("location: hello.jar\npaths:\n");
+		for (String path : paths)
+			yaml.append("  ").append(path).append(":\n    handler: com.example.Hello\n");
+		return new Tenant(name, "/" + name, manifest(yaml.toString()), null, null, "1");
+	}
+
+	private RouteConfiguration routeConfiguration(String group) {
+		return routeConfiguration(controlPlane, group);
+	}
+
+	private static RouteConfiguration routeConfiguration(EnvoyControlPlane controlPlane, String group) {
+		return controlPlane.getSnapshot(group).routes().resources().values().iterator().next();
+	}
+
+	private static List<String> paths(RouteConfiguration routeConfiguration) {
+		return routeConfiguration.getVirtualHosts(0).getRoutesList().stream()
+			.map(route -> route.getMatch().getPath())
+			.filter(path -> !path.isEmpty())
+			.collect(Collectors.toList());
+	}
+
+	/**
+	 * Opens a stream from a node naming {@code tenants} in its metadata and sends its first request
+	 */
+	private void connect(long streamId, String tenants) {
+		Node node = Node.newBuilder()
+			.setId("envoy-" + streamId)
+			.setMetadata(Struct.newBuilder()
+				.putFields("tenants", Value.newBuilder().setStringValue(tenants).build()))
+			.build();
+
+		callbacks.onStreamOpen(streamId, "");
+		callbacks.onV3StreamRequest(streamId, DiscoveryRequest.newBuilder()
+			.setNode(node)
+			.setTypeUrl(Resources.V3.ROUTE_TYPE_URL)
+			.build());
+	}
+
+	private void ack(long streamId, String version) {
+		callbacks.onV3StreamRequest(streamId, DiscoveryRequest.newBuilder()
+			.setTypeUrl(Resources.V3.ROUTE_TYPE_URL)
+			.setVersionInfo(version)
+			.setResponseNonce(version)
+			.build());
+	}
+
+	private long pushes() {
+		Timer timer = registry.find("xds.push").tag("type", "RouteConfiguration").timer();
+		return timer == null ? 0 : timer.count();
+	}
+
+	private static Map<String, ExtAuthzPerRoute> authz(Route route) {
+		return route.getTypedPerFilterConfigMap().entrySet().stream()
+			.collect(Collectors.toMap(Map.Entry::getKey, i -> unpack(i.getValue())));
+	}
+
+	private static ExtAuthzPerRoute unpack(Any any) {
+		return unpack(any, ExtAuthzPerRoute.class);
+	}
+
+	private static <T extends com.google.protobuf.Message> T unpack(Any any, Class<T> type) {
+		try {
+			return any.unpack(type);
+		} catch (InvalidProtocolBufferException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static List<String> enabledFilters(Route route) {
+		return authz(route).entrySet().stream()
+			.filter(i -> !i.getValue().getDisabled())
+			.map(Map.Entry::getKey)
+			.collect(Collectors.toList());
+	}
+
+	@Test
+	void routesGrpcAndPollsOnlyToPathsThatServeThem() throws IOException {
+		var properties = new InvokerProperties();
+		var async = new InvokerProperties.PathProperties();
+		async.getAsync().setEnabled(true);
+		properties.getPaths().put("/slow", async);
+		properties.getPaths().put("/words", async);
+		var controlPlane = new EnvoyControlPlane(
+			0, 30, EnvoyControlPlane.GroupBy.NONE, "tenants", Tenants.of(), properties, new SimpleMeterRegistry());
+
+		controlPlane.update(List.of(InvokerServiceTests.tenant(Map.of(
+			"/upper", InvokerServiceTests.Upper.class,
+			"/slow", InvokerServiceTests.Slow.class,
+			"/words", InvokerServiceTests.Words.class))));
+
+		List<Route> routes = routeConfiguration(controlPlane, "*").getVirtualHosts(0).getRoutesList();
+		assertThat(routes)
+			.filteredOn(route -> route.getMatch().getPath().equals("/" + GrpcInvoker.INVOKE.getFullMethodName()))
+			.extracting(route -> route.getMatch().getHeaders(0).getExactMatch())
+			.containsExactly("/upper");
+		assertThat(routes)
+			.extracting(route -> route.getMatch().getPrefix())
+			.filteredOn(prefix -> prefix.endsWith(DispatchTable.INVOCATIONS_SEGMENT))
+			.containsExactly("/slow" + DispatchTable.INVOCATIONS_SEGMENT);
+	}
+
+	@Test
+	void eachRouteDisablesEveryAuthzFilterButItsOwn() throws IOException {
+		controlPlane.update(List.of(Tenants.single(manifest(
+			"location: hello.jar\n"
+				+ "paths:\n"
+				+ "  /hello:\n"
+				+ "    handler: com.example.Hello\n"
+				+ "  /slow:\n"
+				+ "    handler: com.example.Slow\n"
+				+ "    authorization:\n"
+				+ "      extensions:\n"
+				+ "        authz_timeout_ms: '5000'\n"
+				+ "  /public:\n"
+				+ "    handler: com.example.Public\n"
+				+ "    authorization:\n"
+				+ "      extensions:\n"
+				+ "        authz_disabled: 'true'\n"), null, "1")));
+
+		List<Route> routes = routeConfiguration("*").getVirtualHosts(0).getRoutesList();
+
+		assertThat(routes).allSatisfy(route ->
+			assertThat(authz(route)).containsOnlyKeys(DEFAULT_FILTER, SLOW_FILTER));
+
+		Map<String, List<String>> enabled = routes.stream()
+			.filter(route -> !route.getMatch().getPath().isEmpty())
+			.collect(Collectors.toMap(route -> route.getMatch().getPath(), EnvoyControlPlaneTests::enabledFilters,
+				(a, b) -> a));
+
+		assertThat(enabled).containsEntry("/hello", List.of(DEFAULT_FILTER));
+		assertThat(enabled).containsEntry("/slow", List.of(SLOW_FILTER));
+		assertThat(enabled).containsEntry("/public", List.of());
+	}
+
+	@Test
+	void checksThePathWithItsContextExtensions() throws IOException {
+		controlPlane.update(List.of(Tenants.single(manifest(
+			"location: hello.jar\n"
+				+ "authorization:\n"
+				+ "  extensions:\n"
+				+ "    namespace_service: hello\n"
+				+ "    authz_with_body: 'false'\n"
+				+ "paths:\n"
+				+ "  /hello:\n"
+				+ "    handler: com.example.Hello\n"), null, "1")));
+
+		Route route = routeConfiguration("*").getVirtualHosts(0).getRoutesList().stream()
+			.filter(i -> i.getMatch().getPath().equals("/hello"))
+			.findFirst()
+			.orElseThrow();
+		ExtAuthzPerRoute perRoute = authz(route).get(DEFAULT_FILTER);
+
+		assertThat(perRoute.getCheckSettings().getContextExtensionsMap())
+			.containsOnly(Map.entry("namespace_service", "hello"), Map.entry("service_path", "/hello"));
+		assertThat(perRoute.getCheckSettings().getDisableRequestBodyBuffering()).isTrue();
+	}
+
+	@Test
+	void groupsNodesByTheTenantsTheyNameInTheirMetadata() throws IOException {
+		grouped.update(List.of(tenant("a", "/hello"), tenant("b", "/hello"), tenant("c", "/hello")));
+
+		connect(1, " b,a, b");
+		connect(2, "c");
+
+		assertThat(paths(routeConfiguration(grouped, "a,b")))
+			.contains("/a/hello", "/b/hello")
+			.doesNotContain("/c/hello");
+		assertThat(paths(routeConfiguration(grouped, "c"))).contains("/c/hello").doesNotContain("/a/hello", "/b/hello");
+		assertThat(paths(routeConfiguration(grouped, "*"))).contains("/a/hello", "/b/hello", "/c/hello");
+	}
+
+	@Test
+	void dropsTheSnapshotOfAGroupWhenItsLastStreamCloses() throws IOException {
+		grouped.update(List.of(tenant("a", "/hello")));
+
+		connect(1, "a");
+		connect(2, "a");
+		connect(3, "");
+
+		callbacks.onStreamClose(1, "");
+		assertThat(grouped.getSnapshot("a")).isNotNull();
+
+		callbacks.onStreamCloseWithError(2, "", new IllegalStateException("reset"));
+		assertThat(grouped.getSnapshot("a")).isNull();
+
+		callbacks.onStreamClose(3, "");
+		assertThat(grouped.getSnapshot("*")).isNotNull();
+	}
+
+	@Test
+	void timesThePushOfEachVersionUntilItsAck() throws IOException {
+		grouped.update(List.of(tenant("a", "/hello")));
+		connect(1, "a");
+
+		ack(1, grouped.getSnapshot("a").version(Resources.V3.ROUTE_TYPE_URL));
+		assertThat(pushes()).isZero();
+
+		grouped.update(List.of(tenant("a", "/hello", "/bye")));
+		String version = grouped.getSnapshot("a").version(Resources.V3.ROUTE_TYPE_URL);
+
+		callbacks.onV3StreamRequest(1, DiscoveryRequest.newBuilder()
+			.setTypeUrl(Resources.V3.ROUTE_TYPE_URL)
+			.setResponseNonce(version)
+			.setErrorDetail(com.google.rpc.Status.newBuilder().setMessage("rejected"))
+			.build());
+		assertThat(pushes()).isZero();
+
+		ack(1, version);
+		ack(1, version);
+		assertThat(pushes()).isEqualTo(1);
+	}
+
+	@Test
+	void servesRoutesThroughRdsAndEndpointsThroughEds() throws IOException {
+		Tenant tenant = Tenants.single(manifest(
+			"location: hello.jar\n"
+				+ "paths:\n"
+				+ "  /hello:\n"
+				+ "    handler: com.example.Hello\n"), null, "1");
+
+		try (var started = new EnvoyControlPlane(0, 30, EnvoyControlPlane.GroupBy.NONE, "tenants", Tenants.of(tenant),
+			new InvokerProperties(), new SimpleMeterRegistry())) {
+
+			started.start();
+			Snapshot snapshot = started.getSnapshot("*");
+
+			assertThat(snapshot.clusters().resources().values()).allSatisfy(cluster -> {
+				assertThat(cluster.getType()).isEqualTo(Cluster.DiscoveryType.EDS);
+				assertThat(cluster.getEdsClusterConfig().getEdsConfig().getConfigSourceSpecifierCase())
+					.isEqualTo(ConfigSource.ConfigSourceSpecifierCase.ADS);
+			});
+			assertThat(snapshot.endpoints().resources()).containsOnlyKeys(snapshot.clusters().resources().keySet());
+			assertThat(snapshot.endpoints().resources()).containsKeys("invoker", "invoker_grpc", "authz", "acl_api");
+
+			Listener listener = snapshot.listeners().resources().values().iterator().next();
+			HttpConnectionManager connectionManager = unpack(
+				listener.getFilterChains(0).getFilters(0).getTypedConfig(), HttpConnectionManager.class);
+			assertThat(connectionManager.getRds().getConfigSource().getConfigSourceSpecifierCase())
+				.isEqualTo(ConfigSource.ConfigSourceSpecifierCase.ADS);
+			assertThat(snapshot.routes().resources()).containsOnlyKeys(connectionManager.getRds().getRouteConfigName());
+			assertThat(paths(snapshot.routes().resources().values().iterator().next())).contains("/hello");
+		}
+	}
+
+	@Test
+	void changesOnlyTheRoutesWhenARouteChanges() throws IOException {
+		controlPlane.update(List.of(Tenants.single(manifest(
+			"location: hello.jar\n"
+				+ "paths:\n"
+				+ "  /hello:\n"
+				+ "    handler: com.example.Hello\n"), null, "1")));
+		Snapshot before = controlPlane.getSnapshot("*");
+
+		controlPlane.update(List.of(Tenants.single(manifest(
+			"location: hello.jar\n"
+				+ "paths:\n"
+				+ "  /hello:\n"
+				+ "    handler: com.example.Hello\n"
+				+ "    authorization:\n"
+				+ "      extensions:\n"
+				+ "        namespace_service: hello\n"), null, "1")));
+		Snapshot after = controlPlane.getSnapshot("*");
+
+		assertThat(after.version(Resources.V3.ROUTE_TYPE_URL))
+			.isNotEqualTo(before.version(Resources.V3.ROUTE_TYPE_URL));
+		for (String typeUrl : List.of(
+			Resources.V3.CLUSTER_TYPE_URL, Resources.V3.ENDPOINT_TYPE_URL, Resources.V3.LISTENER_TYPE_URL))
+			assertThat(after.version(typeUrl)).as(typeUrl).isEqualTo(before.version(typeUrl));
+	}
+}
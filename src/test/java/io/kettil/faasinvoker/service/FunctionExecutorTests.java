@@ -0,0 +1,172 @@
+package io.kettil.faasinvoker.service;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FunctionExecutorTests {
+
+	@Test
+	void runsOffTheCallingThreadWhenDedicated() {
+		var properties = new InvokerProperties.PathProperties();
+		properties.setExecution(InvokerProperties.ExecutionMode.DEDICATED);
+
+		try (var executor = new FunctionExecutors.FunctionExecutor("/hello", properties)) {
+			StepVerifier.create(executor.execute(() -> Thread.currentThread().getName()))
+				.assertNext(name -> assertThat(name).startsWith("fn-hello"))
+				.verifyComplete();
+		}
+	}
+
+	@Test
+	void rejectsWhenInFlightLimitIsReached() throws InterruptedException {
+		var properties = new InvokerProperties.PathProperties();
+		properties.setMaxConcurrency(1);
+		properties.setMaxQueued(0);
+
+		try (var executor = new FunctionExecutors.FunctionExecutor("/slow", properties)) {
+			var started = new CountDownLatch(1);
+			var release = new CountDownLatch(1);
+
+			var first = executor.execute(() -> {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return "done";
+			}).subscribe();
+			started.await();
+
+			StepVerifier.create(executor.execute(() -> "second"))
+				.expectError(RejectedExecutionException.class)
+				.verify();
+
+			release.countDown();
+			first.dispose();
+		}
+	}
+
+	private static String awaitRelease(CountDownLatch started, CountDownLatch release) {
+		started.countDown();
+		Uninterruptibles.awaitUninterruptibly(release);
+		return "done";
+	}
+
+	private static void awaitInFlight(FunctionExecutors.FunctionExecutor executor, int inFlight)
+		throws InterruptedException {
+
+		for (int i = 0; i < 500 && executor.getInFlight() != inFlight; i++)
+			Thread.sleep(10);
+		assertThat(executor.getInFlight()).isEqualTo(inFlight);
+	}
+
+	@Test
+	void keepsACancelledInvocationInFlightUntilTheFunctionReturns() throws InterruptedException {
+		var properties = new InvokerProperties.PathProperties();
+		properties.setExecution(InvokerProperties.ExecutionMode.DEDICATED);
+		properties.setMaxConcurrency(1);
+		properties.setMaxQueued(0);
+
+		try (var executor = new FunctionExecutors.FunctionExecutor("/slow", properties)) {
+			var started = new CountDownLatch(1);
+			var release = new CountDownLatch(1);
+
+			var cancelled = executor.execute(() -> awaitRelease(started, release)).subscribe();
+			started.await();
+			cancelled.dispose();
+
+			assertThat(executor.getInFlight()).isEqualTo(1);
+			StepVerifier.create(executor.execute(() -> "second"))
+				.expectError(RejectedExecutionException.class)
+				.verify();
+
+			release.countDown();
+			awaitInFlight(executor, 0);
+		}
+	}
+
+	@Test
+	void releasesAnInvocationCancelledBeforeItStarts() throws InterruptedException {
+		var properties = new InvokerProperties.PathProperties();
+		properties.setExecution(InvokerProperties.ExecutionMode.DEDICATED);
+		properties.setMaxConcurrency(1);
+		properties.setMaxQueued(1);
+
+		try (var executor = new FunctionExecutors.FunctionExecutor("/slow", properties)) {
+			var started = new CountDownLatch(1);
+			var release = new CountDownLatch(1);
+
+			executor.execute(() -> awaitRelease(started, release)).subscribe();
+			started.await();
+			executor.execute(() -> "queued").subscribe().dispose();
+
+			assertThat(executor.getInFlight()).isEqualTo(1);
+
+			release.countDown();
+			awaitInFlight(executor, 0);
+		}
+	}
+
+	@Test
+	void boundsTheQueueOfADedicatedPool() throws InterruptedException {
+		var properties = new InvokerProperties.PathProperties();
+		properties.setExecution(InvokerProperties.ExecutionMode.DEDICATED);
+		properties.setMaxConcurrency(2);
+		properties.setMaxQueued(1);
+
+		try (var executor = new FunctionExecutors.FunctionExecutor("/slow", properties)) {
+			var started = new CountDownLatch(2);
+			var release = new CountDownLatch(1);
+
+			executor.execute(() -> awaitRelease(started, release)).subscribe();
+			executor.execute(() -> awaitRelease(started, release)).subscribe();
+			started.await();
+			var queued = executor.execute(() -> "queued").toFuture();
+
+			StepVerifier.create(executor.execute(() -> "rejected"))
+				.expectError(RejectedExecutionException.class)
+				.verify();
+
+			release.countDown();
+			StepVerifier.create(Mono.fromFuture(queued)).expectNext("queued").verifyComplete();
+		}
+	}
+
+	@Test
+	void disposesOfTheExecutorsOfRemovedPathsOnceIdle() throws InterruptedException {
+		var pathProperties = new InvokerProperties.PathProperties();
+		pathProperties.setExecution(InvokerProperties.ExecutionMode.DEDICATED);
+		var properties = new InvokerProperties();
+		properties.getPaths().put("/removed", pathProperties);
+
+		var executors = new FunctionExecutors(properties);
+		var executor = executors.forPath("/removed");
+		var started = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+
+		var running = executor.execute(() -> awaitRelease(started, release)).toFuture();
+		started.await();
+		executors.retain(Set.of());
+
+		assertThat(executors.forPath("/removed")).isNotSameAs(executor);
+
+		release.countDown();
+		StepVerifier.create(Mono.fromFuture(running)).expectNext("done").verifyComplete();
+		awaitInFlight(executor, 0);
+		StepVerifier.create(executor.execute(() -> "late"))
+			.expectError(RejectedExecutionException.class)
+			.verify();
+
+		executors.close();
+	}
+}
@@ -0,0 +1,116 @@
+package io.kettil.faasinvoker.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.annotation.DependsOn;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FunctionWarmupTests {
+	private static final AtomicInteger invocations = new AtomicInteger();
+
+	private final InvokerProperties properties = new InvokerProperties();
+	private final FunctionExecutors executors = new FunctionExecutors(properties);
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	@BeforeEach
+	void resetInvocations() {
+		invocations.set(0);
+	}
+
+	@AfterEach
+	void closeExecutors() {
+		executors.close();
+	}
+
+	public static class Count implements Function<List<String>, Integer> {
+		@Override
+		public Integer apply(List<String> words) {
+			invocations.incrementAndGet();
+			if (words.contains("boom"))
+				throw new IllegalArgumentException("boom");
+			return words.size();
+		}
+	}
+
+	private void warmup(String... samples) {
+		properties.getWarmup().setEnabled(true);
+		var pathProperties = new InvokerProperties.PathProperties();
+		pathProperties.getWarmup().setSamples(List.of(samples));
+		pathProperties.getWarmup().setIterations(100);
+		properties.getPaths().put("/count", pathProperties);
+	}
+
+	private InvokerService newService() throws JsonProcessingException {
+		return InvokerServiceTests.newService(Map.of("/count", Count.class), properties, executors, meterRegistry);
+	}
+
+	private FunctionWarmup newWarmup(InvokerService service) {
+		return new FunctionWarmup(service, new Codecs(new ObjectMapper()), properties);
+	}
+
+	@Test
+	void warmsUpEachPathWithItsSamplesAtStartup() throws JsonProcessingException {
+		warmup("[\"a\"]", "[\"a\",\"b\"]");
+		InvokerService service = newService();
+
+		newWarmup(service).start();
+
+		assertThat(invocations.get()).isBetween(1, 100);
+		assertThat(meterRegistry.get("function.invocation").tag("path", "/count").tag("phase", "apply").timer().count())
+			.isZero();
+	}
+
+	@Test
+	void warmsUpNothingUnlessEnabled() throws JsonProcessingException {
+		warmup("[\"a\"]");
+		properties.getWarmup().setEnabled(false);
+
+		newWarmup(newService()).start();
+
+		assertThat(invocations.get()).isZero();
+	}
+
+	@Test
+	void warmsUpOnlyNewOrChangedFunctionsOnReload() throws JsonProcessingException {
+		warmup("[\"a\"]");
+		InvokerService service = newService();
+		DispatchTable current = service.getDispatchTable();
+
+		newWarmup(service).warm(current, current);
+		assertThat(invocations.get()).isZero();
+
+		newWarmup(service).warm(service.buildDispatchTable(List.of(InvokerServiceTests.tenant(
+			Map.of("/count", Count.class)))), current);
+		assertThat(invocations.get()).isPositive();
+	}
+
+	@Test
+	void stopsWarmingUpAPathWhoseSampleFails() throws JsonProcessingException {
+		warmup("[\"boom\"]");
+		InvokerService service = newService();
+
+		newWarmup(service).start();
+
+		assertThat(invocations.get()).isEqualTo(1);
+		assertThat(service.getDispatchTable().paths()).containsExactly("/count");
+	}
+
+	@Test
+	void holdsBackTheControlPlaneAndTheGrpcServerUntilWarm() {
+		String warmupBean = "functionWarmup";
+
+		assertThat(EnvoyControlPlane.class.getAnnotation(DependsOn.class).value()).contains(warmupBean);
+		assertThat(GrpcInvoker.class.getAnnotation(DependsOn.class).value()).contains(warmupBean);
+	}
+}
@@ -0,0 +1,185 @@
+package io.kettil.faasinvoker.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.BytesValue;
+import io.grpc.CallOptions;
+import io.grpc.ClientInterceptors;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.MetadataUtils;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class GrpcInvokerTests {
+	private final InvokerProperties properties = new InvokerProperties();
+	private final FunctionExecutors executors = new FunctionExecutors(properties);
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	private Server server;
+	private ManagedChannel channel;
+
+	@AfterEach
+	void shutDown() {
+		if (channel != null)
+			channel.shutdownNow();
+		if (server != null)
+			server.shutdownNow();
+		executors.close();
+	}
+
+	public static class Upper implements Function<String, String> {
+		@Override
+		public String apply(String s) {
+			return s.toUpperCase();
+		}
+	}
+
+	public static class Count implements Function<List<String>, Integer> {
+		@Override
+		public Integer apply(List<String> words) {
+			return words.size();
+		}
+	}
+
+	public static class Slow implements Function<String, String> {
+		@Override
+		public String apply(String s) {
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return s;
+		}
+	}
+
+	public static class Words implements Function<Flux<String>, Flux<String>> {
+		@Override
+		public Flux<String> apply(Flux<String> lines) {
+			return lines.flatMap(line -> Flux.fromArray(line.split(" ")));
+		}
+	}
+
+	private void start() throws IOException {
+		InvokerService invokerService = InvokerServiceTests.newService(
+			Map.of("/upper", Upper.class, "/count", Count.class, "/slow", Slow.class, "/words", Words.class),
+			properties, executors, meterRegistry);
+
+		String name = InProcessServerBuilder.generateName();
+		server = InProcessServerBuilder.forName(name)
+			.addService(new GrpcInvoker(0, invokerService, new Codecs(new ObjectMapper())).service())
+			.build()
+			.start();
+		channel = InProcessChannelBuilder.forName(name).build();
+	}
+
+	private String invoke(String path, String payload, String... headers) {
+		var metadata = new Metadata();
+		metadata.put(Metadata.Key.of(GrpcInvoker.PATH_HEADER, Metadata.ASCII_STRING_MARSHALLER), path);
+		for (int i = 0; i < headers.length; i += 2)
+			metadata.put(Metadata.Key.of(headers[i], Metadata.ASCII_STRING_MARSHALLER), headers[i + 1]);
+
+		BytesValue response = ClientCalls.blockingUnaryCall(
+			ClientInterceptors.intercept(channel, MetadataUtils.newAttachHeadersInterceptor(metadata)),
+			GrpcInvoker.INVOKE,
+			CallOptions.DEFAULT,
+			BytesValue.of(ByteString.copyFromUtf8(payload)));
+
+		return response.getValue().toString(StandardCharsets.UTF_8);
+	}
+
+	private static Status.Code code(Throwable e) {
+		return ((StatusRuntimeException) e).getStatus().getCode();
+	}
+
+	@Test
+	void passesThePayloadOfRawFunctionsAsIs() throws IOException {
+		start();
+
+		assertThat(invoke("/upper", "hello")).isEqualTo("HELLO");
+	}
+
+	@Test
+	void decodesAndEncodesOtherFunctionsWithThePathCodec() throws IOException {
+		start();
+
+		assertThat(invoke("/count", "[\"a\",\"b\",\"c\"]")).isEqualTo("3");
+	}
+
+	@Test
+	void answersUnknownPathsWithNotFound() throws IOException {
+		start();
+
+		assertThatThrownBy(() -> invoke("/missing", "x"))
+			.satisfies(e -> assertThat(code(e)).isEqualTo(Status.Code.NOT_FOUND));
+	}
+
+	@Test
+	void rejectsMalformedInput() throws IOException {
+		start();
+
+		assertThatThrownBy(() -> invoke("/count", "{"))
+			.satisfies(e -> assertThat(code(e)).isEqualTo(Status.Code.INVALID_ARGUMENT));
+		assertThat(meterRegistry.get("function.errors").tag("path", "/count").tag("status", "400").counter().count())
+			.isEqualTo(1);
+	}
+
+	@Test
+	void leavesReactiveFunctionsAndAsyncPathsToHttp() throws IOException {
+		var async = new InvokerProperties.PathProperties();
+		async.getAsync().setEnabled(true);
+		properties.getPaths().put("/upper", async);
+		start();
+
+		assertThatThrownBy(() -> invoke("/words", "a b"))
+			.satisfies(e -> assertThat(code(e)).isEqualTo(Status.Code.UNIMPLEMENTED));
+		assertThatThrownBy(() -> invoke("/upper", "hello"))
+			.satisfies(e -> assertThat(code(e)).isEqualTo(Status.Code.UNIMPLEMENTED));
+	}
+
+	@Test
+	void exceedsTheDeadlineOfTheRequest() throws IOException {
+		start();
+
+		assertThatThrownBy(() -> invoke("/slow", "x", InvokerService.EXPECTED_TIMEOUT_HEADER, "100"))
+			.satisfies(e -> assertThat(code(e)).isEqualTo(Status.Code.DEADLINE_EXCEEDED));
+		assertThat(meterRegistry.get("function.timeouts").tag("path", "/slow").counter().count()).isEqualTo(1);
+		assertThat(meterRegistry.get("function.errors").tag("path", "/slow").tag("status", "504").counter().count())
+			.isEqualTo(1);
+	}
+
+	@Test
+	void metersCallsLikeHttpRequests() throws IOException {
+		start();
+
+		invoke("/upper", "hello");
+
+		assertThat(meterRegistry.get("function.payload.size").tag("path", "/upper").tag("direction", "request")
+			.summary().count()).isEqualTo(1);
+		assertThat(meterRegistry.get("function.payload.size").tag("path", "/upper").tag("direction", "response")
+			.summary().count()).isEqualTo(1);
+		assertThat(meterRegistry.get("function.invocation").tag("path", "/upper").tag("phase", "decode")
+			.timer().count()).isEqualTo(1);
+		assertThat(meterRegistry.get("function.invocation").tag("path", "/upper").tag("phase", "encode")
+			.timer().count()).isEqualTo(1);
+	}
+}
@@ -0,0 +1,154 @@
+package io.kettil.faasinvoker.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+class InvocationMetricsTests {
+	private static final String EXPECTED_TIMEOUT_HEADER = "x-envoy-expected-rq-timeout-ms";
+	private static final String COUNT = Tenant.functionName(Count.class.getName());
+
+	private final InvokerProperties properties = new InvokerProperties();
+	private final FunctionExecutors executors = new FunctionExecutors(properties);
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	private InvokerService service;
+	private WebTestClient client;
+
+	@BeforeEach
+	void newService() throws JsonProcessingException {
+		service = InvokerServiceTests.newService(
+			Map.of("/count", Count.class, "/slow", Slow.class), properties, executors, meterRegistry);
+		client = WebTestClient.bindToRouterFunction(service.routeRequest()).build();
+	}
+
+	@AfterEach
+	void closeExecutors() {
+		executors.close();
+	}
+
+	public static class Count implements Function<List<String>, Integer> {
+		@Override
+		public Integer apply(List<String> words) {
+			if (words.contains("boom"))
+				throw new IllegalArgumentException("boom");
+			return words.size();
+		}
+	}
+
+	public static class Slow implements Function<List<String>, Integer> {
+		@Override
+		public Integer apply(List<String> words) {
+			try {
+				Thread.sleep(500);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return words.size();
+		}
+	}
+
+	private WebTestClient.ResponseSpec post(String path, String body, String... headers) {
+		return client.post().uri(path)
+			.contentType(MediaType.APPLICATION_JSON)
+			.headers(h -> {
+				for (int i = 0; i < headers.length; i += 2)
+					h.add(headers[i], headers[i + 1]);
+			})
+			.bodyValue(body)
+			.exchange();
+	}
+
+	@Test
+	void registersTheMetersOfEachPathTaggedWithPathAndFunction() {
+		assertThat(meterRegistry.find("function.invocation").tag("path", "/count").meters())
+			.extracting(meter -> meter.getId().getTag("function"), meter -> meter.getId().getTag("phase"))
+			.containsExactlyInAnyOrder(tuple(COUNT, "decode"), tuple(COUNT, "apply"), tuple(COUNT, "encode"));
+
+		assertThat(meterRegistry.find("function.payload.size").tag("path", "/count").meters())
+			.extracting(meter -> meter.getId().getTag("direction"))
+			.containsExactlyInAnyOrder("request", "response");
+
+		for (String name : List.of("function.timeouts", "function.inflight", "function.concurrency.limit"))
+			assertThat(meterRegistry.get(name).tag("path", "/count").meter().getId().getTags())
+				.as(name)
+				.containsExactlyInAnyOrder(Tag.of("path", "/count"), Tag.of("function", COUNT));
+	}
+
+	@Test
+	void timesEachPhaseAndMeasuresThePayloads() {
+		post("/count", "[\"a\",\"b\"]").expectStatus().isOk().expectBody(String.class).isEqualTo("2");
+
+		Map<String, Long> counts = meterRegistry.find("function.invocation").tag("path", "/count").timers().stream()
+			.collect(Collectors.toMap(timer -> timer.getId().getTag("phase"), timer -> timer.count()));
+		assertThat(counts).containsOnly(Map.entry("decode", 1L), Map.entry("apply", 1L), Map.entry("encode", 1L));
+
+		DistributionSummary request = meterRegistry.get("function.payload.size")
+			.tag("path", "/count").tag("direction", "request").summary();
+		assertThat(request.count()).isEqualTo(1);
+		assertThat(request.totalAmount()).isEqualTo(9);
+
+		DistributionSummary response = meterRegistry.get("function.payload.size")
+			.tag("path", "/count").tag("direction", "response").summary();
+		assertThat(response.count()).isEqualTo(1);
+		assertThat(response.totalAmount()).isEqualTo(1);
+	}
+
+	@Test
+	void countsErrorsByStatus() {
+		post("/count", "[").expectStatus().isBadRequest();
+		post("/count", "[\"boom\"]").expectStatus().is5xxServerError();
+		post("/count", "[\"boom\"]").expectStatus().is5xxServerError();
+
+		assertThat(meterRegistry.get("function.errors").tag("path", "/count").tag("status", "400").counter().count())
+			.isEqualTo(1);
+		assertThat(meterRegistry.get("function.errors").tag("path", "/count").tag("status", "500").counter().count())
+			.isEqualTo(2);
+	}
+
+	@Test
+	void countsTimeoutsAlsoAsErrors() {
+		post("/slow", "[\"a\"]", EXPECTED_TIMEOUT_HEADER, "100").expectStatus().isEqualTo(504);
+
+		assertThat(meterRegistry.get("function.timeouts").tag("path", "/slow").counter().count()).isEqualTo(1);
+		assertThat(meterRegistry.get("function.errors").tag("path", "/slow").tag("status", "504").counter().count())
+			.isEqualTo(1);
+	}
+
+	@Test
+	void removesTheMetersOfDroppedRoutesAndFollowsTheExecutorOfRoutesAddedBack() throws JsonProcessingException {
+		service.setDispatchTable(service.buildDispatchTable(List.of(InvokerServiceTests.tenant(
+			Map.of("/slow", Slow.class)))));
+
+		assertThat(meterRegistry.find("function.invocation").tag("path", "/count").meters()).isEmpty();
+		assertThat(meterRegistry.find("function.concurrency.limit").tag("path", "/count").gauge()).isNull();
+		assertThat(meterRegistry.find("function.concurrency.limit").tag("path", "/slow").gauge()).isNotNull();
+
+		var pathProperties = new InvokerProperties.PathProperties();
+		pathProperties.setMaxConcurrency(2);
+		pathProperties.setMaxQueued(1);
+		properties.getPaths().put("/count", pathProperties);
+		service.setDispatchTable(service.buildDispatchTable(List.of(InvokerServiceTests.tenant(
+			Map.of("/count", Count.class, "/slow", Slow.class)))));
+
+		assertThat(meterRegistry.get("function.concurrency.limit").tag("path", "/count").gauge().value()).isEqualTo(3);
+		post("/count", "[\"a\"]").expectStatus().isOk();
+		assertThat(meterRegistry.get("function.invocation").tag("path", "/count").tag("phase", "apply").timer().count())
+			.isEqualTo(1);
+	}
+}
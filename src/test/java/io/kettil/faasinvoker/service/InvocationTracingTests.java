@@ -0,0 +1,171 @@
+package io.kettil.faasinvoker.service;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.BytesValue;
+import io.grpc.Metadata;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.reactive.function.server.MockServerRequest;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.util.Collection;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+class InvocationTracingTests {
+	private static final String TRACE_ID = "0af7651916cd43dd8448eb211c80319c";
+	private static final String PARENT_ID = "b7ad6b7169203331";
+
+	private final InMemorySpanExporter exporter = InMemorySpanExporter.create();
+
+	// Stands in for the collector, and keeps the spans when the tracer provider shuts down
+	private final SpanExporter collector = new SpanExporter() {
+		@Override
+		public CompletableResultCode export(Collection<SpanData> spans) {
+			return exporter.export(spans);
+		}
+
+		@Override
+		public CompletableResultCode flush() {
+			return exporter.flush();
+		}
+
+		@Override
+		public CompletableResultCode shutdown() {
+			return CompletableResultCode.ofSuccess();
+		}
+	};
+
+	@Test
+	void continuesATraceSampledByEnvoy() {
+		var tracing = tracing(0);
+
+		Span span = tracing.start(request("00-" + TRACE_ID + "-" + PARENT_ID + "-01"), "/hello", "hello");
+		tracing.startPhase(span, "apply").end();
+		InvocationTracing.end(span, 200);
+		tracing.close();
+
+		assertThat(exporter.getFinishedSpanItems())
+			.allSatisfy(data -> assertThat(data.getTraceId()).isEqualTo(TRACE_ID))
+			.extracting(SpanData::getName, SpanData::getParentSpanId)
+			.containsExactly(
+				tuple("apply", span.getSpanContext().getSpanId()),
+				tuple("/hello", PARENT_ID));
+	}
+
+	@Test
+	void skipsRequestsEnvoyDidNotSample() {
+		var tracing = tracing(1);
+
+		assertThat(tracing.start(request("00-" + TRACE_ID + "-" + PARENT_ID + "-00"), "/hello", "hello")).isNull();
+	}
+
+	@Test
+	void samplesRequestsWithoutTraceContextAtTheSampleRate() {
+		assertThat(tracing(0).start(request(null), "/hello", "hello")).isNull();
+		assertThat(tracing(1).start(request(null), "/hello", "hello")).isNotNull();
+	}
+
+	@Test
+	void tracesNothingWhenDisabled() {
+		var tracing = new InvocationTracing(new InvokerProperties());
+
+		assertThat(tracing.start(request("00-" + TRACE_ID + "-" + PARENT_ID + "-01"), "/hello", "hello")).isNull();
+	}
+
+	@Test
+	void tracesEachPhaseOfAnInvocation() {
+		var properties = new InvokerProperties();
+		var tracing = tracing(1);
+		var metrics = new InvocationMetrics(new SimpleMeterRegistry(), tracing)
+			.forRoute("/echo", "echo", new FunctionExecutors(properties).forPath("/echo"));
+
+		var client = WebTestClient.bindToRouterFunction(RouterFunctions.route()
+			.POST("/echo", metrics.instrument(request -> metrics.timeDecode(request.bodyToMono(String.class))
+				.flatMap(input -> Mono.deferContextual(context -> Mono.just(metrics.timeApply(context, () -> input))))
+				.flatMap(output -> ServerResponse.ok().bodyValue(output))))
+			.build()).build();
+
+		client.post().uri("/echo").bodyValue("hello").exchange().expectStatus().isOk();
+		tracing.close();
+
+		assertThat(exporter.getFinishedSpanItems().stream().map(SpanData::getName).collect(Collectors.toList()))
+			.containsExactlyInAnyOrder("decode", "apply", "encode", "/echo");
+	}
+
+	@Test
+	void endsTheSpanOfACancelledRequest() {
+		var properties = new InvokerProperties();
+		var tracing = tracing(1);
+		var metrics = new InvocationMetrics(new SimpleMeterRegistry(), tracing)
+			.forRoute("/echo", "echo", new FunctionExecutors(properties).forPath("/echo"));
+
+		StepVerifier.create(metrics.instrument(request -> Mono.never())
+				.handle(request("00-" + TRACE_ID + "-" + PARENT_ID + "-01")))
+			.thenCancel()
+			.verify();
+		tracing.close();
+
+		assertThat(exporter.getFinishedSpanItems())
+			.extracting(SpanData::getName, SpanData::getTraceId)
+			.containsExactly(tuple("/echo", TRACE_ID));
+	}
+
+	@Test
+	void tracesAGrpcCallLikeARequest() {
+		var properties = new InvokerProperties();
+		var tracing = tracing(1);
+		var metrics = new InvocationMetrics(new SimpleMeterRegistry(), tracing)
+			.forRoute("/echo", "echo", new FunctionExecutors(properties).forPath("/echo"));
+
+		var headers = new Metadata();
+		headers.put(Metadata.Key.of("traceparent", Metadata.ASCII_STRING_MARSHALLER),
+			"00-" + TRACE_ID + "-" + PARENT_ID + "-01");
+		BytesValue request = BytesValue.of(ByteString.copyFromUtf8("hello"));
+
+		StepVerifier.create(metrics.instrument(headers, GrpcInvoker.INVOKE, request,
+				metrics.timeDecode(Mono.just(request))))
+			.expectNext(request)
+			.verifyComplete();
+		tracing.close();
+
+		assertThat(exporter.getFinishedSpanItems())
+			.allSatisfy(data -> assertThat(data.getTraceId()).isEqualTo(TRACE_ID))
+			.extracting(SpanData::getName)
+			.containsExactlyInAnyOrder("decode", "/echo");
+
+		SpanData call = exporter.getFinishedSpanItems().stream()
+			.filter(data -> data.getName().equals("/echo"))
+			.findFirst()
+			.orElseThrow();
+		assertThat(call.getAttributes().get(AttributeKey.stringKey("rpc.method"))).isEqualTo("Invoke");
+		assertThat(call.getAttributes().get(AttributeKey.longKey("rpc.grpc.status_code"))).isZero();
+	}
+
+	private InvocationTracing tracing(double sampleRate) {
+		var tracing = new InvokerProperties.Tracing();
+		tracing.setEnabled(true);
+		tracing.setSampleRate(sampleRate);
+		return new InvocationTracing(tracing, collector);
+	}
+
+	private static MockServerRequest request(String traceparent) {
+		var request = MockServerRequest.builder();
+		if (traceparent != null)
+			request.header("traceparent", traceparent);
+		return request.build();
+	}
+}
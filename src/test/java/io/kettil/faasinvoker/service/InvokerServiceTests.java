@@ -0,0 +1,468 @@
+package io.kettil.faasinvoker.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.kettil.faas.Manifest;
+import io.kettil.faasinvoker.Util;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.cloud.function.context.FunctionRegistration;
+import org.springframework.cloud.function.context.catalog.FunctionTypeUtils;
+import org.springframework.cloud.function.context.catalog.SimpleFunctionRegistry;
+import org.springframework.cloud.function.context.config.JsonMessageConverter;
+import org.springframework.cloud.function.json.JacksonMapper;
+import org.springframework.core.convert.support.DefaultConversionService;
+import org.springframework.http.MediaType;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InvokerServiceTests {
+	private static final String EXPECTED_TIMEOUT_HEADER = "x-envoy-expected-rq-timeout-ms";
+
+	private final InvokerProperties properties = new InvokerProperties();
+	private final FunctionExecutors executors = new FunctionExecutors(properties);
+
+	private WebTestClient client;
+
+	@AfterEach
+	void closeExecutors() {
+		executors.close();
+	}
+
+	public static class Upper implements Function<String, String> {
+		@Override
+		public String apply(String s) {
+			if (s.equals("boom"))
+				throw new IllegalArgumentException("boom");
+			return s.toUpperCase();
+		}
+	}
+
+	public static class Slow implements Function<String, String> {
+		@Override
+		public String apply(String s) {
+			try {
+				Thread.sleep(500);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return s;
+		}
+	}
+
+	public static class Sleep implements Function<Integer, Integer> {
+		@Override
+		public Integer apply(Integer ms) {
+			try {
+				Thread.sleep(ms);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return ms;
+		}
+	}
+
+	public static class Ticks implements Function<String, Flux<String>> {
+		@Override
+		public Flux<String> apply(String s) {
+			return Flux.interval(Duration.ofMillis(200)).map(i -> s + i);
+		}
+	}
+
+	public static class Words implements Function<Flux<String>, Flux<String>> {
+		@Override
+		public Flux<String> apply(Flux<String> lines) {
+			return lines.concatMap(line -> line.isEmpty()
+				? Flux.error(new IllegalArgumentException("empty line"))
+				: Flux.fromArray(line.split(" ")));
+		}
+	}
+
+	public static class Lengths implements Function<Flux<Word>, Mono<Integer>> {
+		@Override
+		public Mono<Integer> apply(Flux<Word> words) {
+			return words.map(word -> word.getText().length()).reduce(0, Integer::sum);
+		}
+	}
+
+	@lombok.Data
+	public static class Word {
+		private String text;
+	}
+
+	private static final Map<String, Class<?>> HANDLERS = Map.of(
+		"/upper", Upper.class,
+		"/slow", Slow.class,
+		"/sleep", Sleep.class,
+		"/ticks", Ticks.class,
+		"/words", Words.class,
+		"/lengths", Lengths.class);
+
+	private InvokerService newService() throws JsonProcessingException {
+		InvokerService service = newService(HANDLERS, properties, executors, new SimpleMeterRegistry());
+		client = WebTestClient.bindToRouterFunction(service.routeRequest()).build();
+		return service;
+	}
+
+	/**
+	 * An invoker serving a single manifest that maps each path of {@code handlers} to a function of that class
+	 */
+	static InvokerService newService(
+		Map<String, Class<?>> handlers,
+		InvokerProperties properties,
+		FunctionExecutors executors,
+		MeterRegistry meterRegistry) throws JsonProcessingException {
+
+		return newService(tenant(handlers), properties, executors, meterRegistry);
+	}
+
+	static InvokerService newService(
+		Tenant tenant,
+		InvokerProperties properties,
+		FunctionExecutors executors,
+		MeterRegistry meterRegistry) {
+
+		return newService(Tenants.of(tenant), properties, executors, meterRegistry);
+	}
+
+	static InvokerService newService(
+		Tenants tenants,
+		InvokerProperties properties,
+		FunctionExecutors executors,
+		MeterRegistry meterRegistry) {
+
+		var objectMapper = new ObjectMapper();
+		return new InvokerService(
+			tenants,
+			executors,
+			new ResultCaches(properties, meterRegistry, objectMapper),
+			new InvocationMetrics(meterRegistry, new InvocationTracing(properties)),
+			new Codecs(objectMapper),
+			new AsyncInvocations(properties, meterRegistry, 0),
+			properties);
+	}
+
+	/**
+	 * The single tenant of a manifest that maps each path of {@code handlers} to a function of that class, with a
+	 * catalog of those functions
+	 */
+	static Tenant tenant(Map<String, Class<?>> handlers) throws JsonProcessingException {
+		var jsonMapper = new JacksonMapper(new ObjectMapper());
+		var registry = new SimpleFunctionRegistry(
+			new DefaultConversionService(),
+			new CompositeMessageConverter(List.of(new JsonMessageConverter(jsonMapper))),
+			jsonMapper);
+
+		var yaml = new StringBuilder("location: functions.jar\npaths:\n");
+		handlers.forEach((path, type) -> {
+			yaml.append("  ").append(path).append(":\n    handler: ").append(type.getName()).append('\n');
+			try {
+				registry.register(new FunctionRegistration<>(
+					type.getDeclaredConstructor().newInstance(), Tenant.functionName(type.getName()))
+					.type(FunctionTypeUtils.discoverFunctionTypeFromClass(type)));
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		Manifest manifest = Util.yamlMapper().readValue(yaml.toString(), Manifest.class);
+
+		return Tenants.single(manifest, registry, "1");
+	}
+
+	private InvokerProperties.PathProperties batched(String path) {
+		var pathProperties = new InvokerProperties.PathProperties();
+		pathProperties.getBatch().setEnabled(true);
+		properties.getPaths().put(path, pathProperties);
+		return pathProperties;
+	}
+
+	@Test
+	void answersABatchInTheOrderOfItsInputs() throws JsonProcessingException {
+		batched("/sleep");
+		newService();
+
+		client.post().uri("/sleep/_batch")
+			.contentType(MediaType.APPLICATION_JSON)
+			.bodyValue("[300,0,100]")
+			.exchange()
+			.expectStatus().isOk()
+			.expectBody()
+			.jsonPath("$.length()").isEqualTo(3)
+			.jsonPath("$[0].result").isEqualTo(300)
+			.jsonPath("$[1].result").isEqualTo(0)
+			.jsonPath("$[2].result").isEqualTo(100);
+	}
+
+	@Test
+	void failsOnlyTheInputsOfABatchThatFail() throws JsonProcessingException {
+		batched("/upper");
+		newService();
+
+		client.post().uri("/upper/_batch")
+			.contentType(MediaType.APPLICATION_JSON)
+			.bodyValue("[\"a\",\"boom\",\"c\"]")
+			.exchange()
+			.expectStatus().isOk()
+			.expectBody()
+			.jsonPath("$[0].result").isEqualTo("A")
+			.jsonPath("$[0].error").doesNotExist()
+			.jsonPath("$[1].result").doesNotExist()
+			.jsonPath("$[1].error.status").isEqualTo(500)
+			.jsonPath("$[2].result").isEqualTo("C");
+	}
+
+	@Test
+	void writesBatchResultsAsNdjsonToClientsThatAcceptIt() throws JsonProcessingException {
+		batched("/upper");
+		newService();
+
+		List<String> results = client.post().uri("/upper/_batch")
+			.contentType(MediaType.APPLICATION_JSON)
+			.accept(MediaType.APPLICATION_NDJSON)
+			.bodyValue("[\"a\",\"b\"]")
+			.exchange()
+			.expectStatus().isOk()
+			.expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+			.returnResult(String.class)
+			.getResponseBody()
+			.collectList()
+			.block(Duration.ofSeconds(5));
+
+		assertThat(results).containsExactly("{\"result\":\"A\"}", "{\"result\":\"B\"}");
+	}
+
+	@Test
+	void servesBatchesOnlyOfPathsThatEnableThem() throws JsonProcessingException {
+		newService();
+
+		client.post().uri("/upper/_batch")
+			.contentType(MediaType.APPLICATION_JSON)
+			.bodyValue("[\"a\"]")
+			.exchange()
+			.expectStatus().isNotFound();
+	}
+
+	@Test
+	void timesOutEachInputOfABatchAtTheRequestDeadline() throws JsonProcessingException {
+		batched("/slow");
+		newService();
+
+		client.post().uri("/slow/_batch")
+			.contentType(MediaType.APPLICATION_JSON)
+			.header(EXPECTED_TIMEOUT_HEADER, "100")
+			.bodyValue("[\"a\",\"b\"]")
+			.exchange()
+			.expectStatus().isOk()
+			.expectBody()
+			.jsonPath("$[0].error.status").isEqualTo(504)
+			.jsonPath("$[1].error.status").isEqualTo(504);
+	}
+
+	@Test
+	void tellsInputsOfABatchRejectedForLoadWhenToRetry() throws JsonProcessingException {
+		InvokerProperties.PathProperties pathProperties = batched("/slow");
+		pathProperties.setMaxConcurrency(1);
+		pathProperties.setMaxQueued(0);
+		pathProperties.getLimit().setAdaptive(false);
+		pathProperties.getLimit().setRetryAfter(Duration.ofMillis(2500));
+		newService();
+
+		client.post().uri("/slow/_batch")
+			.contentType(MediaType.APPLICATION_JSON)
+			.bodyValue("[\"a\",\"b\"]")
+			.exchange()
+			.expectStatus().isOk()
+			.expectBody()
+			.jsonPath("$[0].result").isEqualTo("a")
+			.jsonPath("$[1].error.status").isEqualTo(503)
+			.jsonPath("$[1].retryAfter").isEqualTo(3);
+	}
+
+	@Test
+	void rejectsBatchesThatAreNotJson() throws JsonProcessingException {
+		batched("/upper");
+		newService();
+
+		client.post().uri("/upper/_batch")
+			.contentType(MediaType.APPLICATION_CBOR)
+			.bodyValue(new byte[]{(byte) 0x80})
+			.exchange()
+			.expectStatus().isEqualTo(415);
+	}
+
+	@Test
+	void readsNdjsonBatches() throws JsonProcessingException {
+		batched("/upper");
+		newService();
+
+		client.post().uri("/upper/_batch")
+			.contentType(MediaType.APPLICATION_NDJSON)
+			.bodyValue("\"a\"\n\"b\"\n")
+			.exchange()
+			.expectStatus().isOk()
+			.expectBody()
+			.jsonPath("$[0].result").isEqualTo("A")
+			.jsonPath("$[1].result").isEqualTo("B");
+	}
+
+	@Test
+	void timesOutAStreamThatHasNotStartedWithA504() throws JsonProcessingException {
+		newService();
+
+		client.post().uri("/ticks")
+			.contentType(MediaType.APPLICATION_JSON)
+			.header(EXPECTED_TIMEOUT_HEADER, "100")
+			.bodyValue("\"t\"")
+			.exchange()
+			.expectStatus().isEqualTo(504);
+	}
+
+	@Test
+	void endsAStreamAtTheRequestDeadline() throws JsonProcessingException {
+		newService();
+
+		List<String> ticks = client.post().uri("/ticks")
+			.contentType(MediaType.APPLICATION_JSON)
+			.accept(MediaType.APPLICATION_NDJSON)
+			.header(EXPECTED_TIMEOUT_HEADER, "500")
+			.bodyValue("\"t\"")
+			.exchange()
+			.expectStatus().isOk()
+			.expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+			.returnResult(String.class)
+			.getResponseBody()
+			.onErrorResume(e -> Flux.empty())
+			.collectList()
+			.block(Duration.ofSeconds(5));
+
+		assertThat(ticks).containsExactly("\"t0\"", "\"t1\"");
+	}
+
+	@Test
+	void rejectsARawBodyLargerThanTheDecodersBufferWith413() throws JsonProcessingException {
+		newService();
+
+		client.post().uri("/upper")
+			.contentType(MediaType.TEXT_PLAIN)
+			.bodyValue("x".repeat(256 * 1024 + 1))
+			.exchange()
+			.expectStatus().isEqualTo(413);
+	}
+
+	@Test
+	void givesUpOnAnAsyncInvocationThatStaysRejected(@TempDir Path queue) throws Exception {
+		var pathProperties = new InvokerProperties.PathProperties();
+		pathProperties.getAsync().setEnabled(true);
+		pathProperties.setMaxConcurrency(1);
+		pathProperties.setMaxQueued(0);
+		pathProperties.getLimit().setAdaptive(false);
+		pathProperties.getLimit().setRetryAfter(Duration.ofMillis(50));
+		properties.getPaths().put("/slow", pathProperties);
+		properties.getAsync().setDirectory(queue.toString());
+		properties.getAsync().setWorkers(2);
+		properties.getAsync().setMaxRetries(2);
+		newService().start();
+
+		List<String> locations = new ArrayList<>();
+		for (String input : List.of("\"a\"", "\"b\""))
+			locations.add(client.post().uri("/slow")
+				.contentType(MediaType.APPLICATION_JSON)
+				.bodyValue(input)
+				.exchange()
+				.expectStatus().isAccepted()
+				.returnResult(String.class)
+				.getResponseHeaders().getLocation().toString());
+
+		List<Integer> statuses = new ArrayList<>();
+		for (String location : locations) {
+			int status;
+			do {
+				Thread.sleep(50);
+				status = client.get().uri(location).exchange().returnResult(String.class).getRawStatusCode();
+			} while (status == 202);
+			statuses.add(status);
+		}
+
+		assertThat(statuses).containsExactlyInAnyOrder(200, 503);
+	}
+
+	private List<String> stream(String path, MediaType contentType, MediaType accept, String body) {
+		return client.post().uri(path)
+			.contentType(contentType)
+			.accept(accept)
+			.bodyValue(body)
+			.exchange()
+			.expectStatus().isOk()
+			.expectHeader().contentTypeCompatibleWith(accept)
+			.returnResult(String.class)
+			.getResponseBody()
+			.collectList()
+			.block(Duration.ofSeconds(5));
+	}
+
+	@Test
+	void streamsNdjsonThroughAFluxFunction() throws JsonProcessingException {
+		newService();
+
+		assertThat(stream("/words", MediaType.APPLICATION_NDJSON, MediaType.APPLICATION_NDJSON, "\"a b\"\n\"c\"\n"))
+			.containsExactly("\"a\"", "\"b\"", "\"c\"");
+	}
+
+	@Test
+	void streamsTheItemsOfAJsonArrayThroughAFluxFunction() throws JsonProcessingException {
+		newService();
+
+		assertThat(stream("/words", MediaType.APPLICATION_JSON, MediaType.APPLICATION_NDJSON, "[\"a b\",\"c\"]"))
+			.containsExactly("\"a\"", "\"b\"", "\"c\"");
+	}
+
+	@Test
+	void streamsServerSentEventsToClientsThatAcceptThem() throws JsonProcessingException {
+		newService();
+
+		assertThat(stream("/words", MediaType.APPLICATION_NDJSON, MediaType.TEXT_EVENT_STREAM, "\"a b\"\n"))
+			.containsExactly("a", "b");
+	}
+
+	@Test
+	void answersAStreamOfInputsWithTheSingleResultOfAMonoFunction() throws JsonProcessingException {
+		newService();
+
+		client.post().uri("/lengths")
+			.contentType(MediaType.APPLICATION_NDJSON)
+			.bodyValue("{\"text\":\"ab\"}\n{\"text\":\"cde\"}\n")
+			.exchange()
+			.expectStatus().isOk()
+			.expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_JSON)
+			.expectBody(String.class).isEqualTo("5");
+	}
+
+	@Test
+	void answersAStreamThatFailsBeforeItsFirstItemWithAnError() throws JsonProcessingException {
+		newService();
+
+		client.post().uri("/words")
+			.contentType(MediaType.APPLICATION_NDJSON)
+			.accept(MediaType.APPLICATION_NDJSON)
+			.bodyValue("\"\"\n")
+			.exchange()
+			.expectStatus().isEqualTo(500)
+			.expectBody()
+			.jsonPath("$.status").isEqualTo(500);
+	}
+}
@@ -0,0 +1,165 @@
+package io.kettil.faasinvoker.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.envoyproxy.envoy.config.route.v3.RouteConfiguration;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.cloud.function.json.JacksonMapper;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ManifestWatcherTests {
+	private static final String HANDLER = "tenant.Upper";
+
+	@TempDir
+	Path directory;
+
+	private final InvokerProperties properties = new InvokerProperties();
+	private final FunctionExecutors executors = new FunctionExecutors(properties);
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	private byte[] handlerClass;
+	private Tenants tenants;
+	private InvokerService invokerService;
+	private EnvoyControlPlane controlPlane;
+	private ManifestWatcher watcher;
+
+	@BeforeEach
+	void compileHandler(@TempDir Path sources) throws IOException {
+		Path source = sources.resolve("tenant/Upper.java");
+		Files.createDirectories(source.getParent());
+		Files.writeString(source, "package tenant;\n"
+			+ "public class Upper implements java.util.function.Function<String, String> {\n"
+			+ "    public String apply(String s) { return s.toUpperCase(); }\n"
+			+ "}\n");
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assertThat(compiler.run(null, null, null, source.toString())).isZero();
+		handlerClass = Files.readAllBytes(sources.resolve("tenant/Upper.class"));
+	}
+
+	@AfterEach
+	void closeExecutors() {
+		executors.close();
+	}
+
+	private void start() throws IOException {
+		tenants = new Tenants("", directory.toString(), "", null, new JacksonMapper(new ObjectMapper()), properties);
+		invokerService = InvokerServiceTests.newService(tenants, properties, executors, meterRegistry);
+		controlPlane = new EnvoyControlPlane(
+			0, 30, EnvoyControlPlane.GroupBy.NONE, "tenants", tenants, properties, meterRegistry);
+		controlPlane.update(tenants.getTenants());
+		watcher = new ManifestWatcher(
+			tenants, properties, invokerService, new FunctionWarmup(invokerService, null, properties), controlPlane);
+	}
+
+	private void writeManifest(String name, String handler, String... paths) throws IOException {
+		var sb = new StringBuilder("location: file:/functions/" + name + ".jar\npaths:\n");
+		for (String path : paths)
+			sb.append("  ").append(path).append(":\n    handler: ").append(handler).append('\n');
+		Files.writeString(directory.resolve(name + ".yaml"), sb);
+	}
+
+	private void writeJar(String name) throws IOException {
+		try (var out = new JarOutputStream(Files.newOutputStream(directory.resolve(name + ".jar")))) {
+			out.putNextEntry(new JarEntry("tenant/Upper.class"));
+			out.write(handlerClass);
+			out.closeEntry();
+		}
+	}
+
+	private List<String> routedPaths() {
+		RouteConfiguration routeConfiguration =
+			controlPlane.getSnapshot("*").routes().resources().values().iterator().next();
+		return routeConfiguration.getVirtualHosts(0).getRoutesList().stream()
+			.map(route -> route.getMatch().getPath())
+			.filter(path -> !path.isEmpty() && !path.equals("/" + GrpcInvoker.INVOKE.getFullMethodName()))
+			.collect(Collectors.toList());
+	}
+
+	@Test
+	void swapsInTheDispatchTableAndRoutesOfAChangedManifest() throws IOException {
+		writeManifest("billing", HANDLER, "/upper");
+		writeJar("billing");
+		start();
+
+		writeManifest("billing", HANDLER, "/upper", "/shout");
+		watcher.reload();
+
+		assertThat(invokerService.getDispatchTable().paths())
+			.containsExactlyInAnyOrder("/billing/upper", "/billing/shout");
+		assertThat(routedPaths()).containsExactlyInAnyOrder("/billing/upper", "/billing/shout");
+		assertThat(tenants.getTenants().get(0).getManifest().getPaths()).containsOnlyKeys("/upper", "/shout");
+
+		WebTestClient.bindToRouterFunction(invokerService.routeRequest()).build()
+			.post().uri("/billing/shout")
+			.contentType(MediaType.TEXT_PLAIN)
+			.bodyValue("hello")
+			.exchange()
+			.expectStatus().isOk()
+			.expectBody(String.class).isEqualTo("HELLO");
+	}
+
+	@Test
+	void dropsTheTenantOfADeletedManifest() throws IOException {
+		writeManifest("billing", HANDLER, "/upper");
+		writeJar("billing");
+		writeManifest("shipping", HANDLER, "/upper");
+		writeJar("shipping");
+		start();
+
+		Files.delete(directory.resolve("shipping.yaml"));
+		watcher.reload();
+
+		assertThat(invokerService.getDispatchTable().paths()).containsExactly("/billing/upper");
+		assertThat(routedPaths()).containsExactly("/billing/upper");
+		assertThat(tenants.getTenants()).extracting(Tenant::getName).containsExactly("billing");
+	}
+
+	@Test
+	void leavesEverythingAsItIsWhenNothingChanged() throws IOException {
+		writeManifest("billing", HANDLER, "/upper");
+		writeJar("billing");
+		start();
+
+		DispatchTable dispatchTable = invokerService.getDispatchTable();
+		List<Tenant> current = tenants.getTenants();
+		watcher.reload();
+
+		assertThat(invokerService.getDispatchTable()).isSameAs(dispatchTable);
+		assertThat(tenants.getTenants()).isSameAs(current);
+	}
+
+	@Test
+	void keepsTheCurrentManifestsWhenAChangedOneCannotBeApplied() throws IOException {
+		writeManifest("billing", HANDLER, "/upper");
+		writeJar("billing");
+		start();
+
+		DispatchTable dispatchTable = invokerService.getDispatchTable();
+		List<Tenant> current = tenants.getTenants();
+
+		writeManifest("billing", "tenant.Missing", "/missing");
+		watcher.reload();
+
+		assertThat(invokerService.getDispatchTable()).isSameAs(dispatchTable);
+		assertThat(tenants.getTenants()).isSameAs(current);
+		assertThat(routedPaths()).containsExactly("/billing/upper");
+	}
+}
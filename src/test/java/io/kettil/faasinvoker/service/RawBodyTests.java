@@ -0,0 +1,59 @@
+package io.kettil.faasinvoker.service;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.NettyDataBuffer;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RawBodyTests {
+
+	private NettyDataBuffer newBuffer(String content) {
+		NettyDataBuffer buffer = new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT).allocateBuffer(16);
+		buffer.write(content.getBytes(StandardCharsets.UTF_8));
+		return buffer;
+	}
+
+	@Test
+	void releasesTheBufferWhenTheFunctionReturns() {
+		var buffer = newBuffer("thumbnail");
+		var body = new RawBody(buffer);
+
+		Object output = body.apply(view -> {
+			assertThat(buffer.getNativeBuffer().refCnt()).isEqualTo(1);
+			return StandardCharsets.UTF_8.decode(view).toString();
+		});
+
+		assertThat(output).isEqualTo("thumbnail");
+		assertThat(buffer.getNativeBuffer().refCnt()).isZero();
+
+		body.release();
+		assertThat(buffer.getNativeBuffer().refCnt()).isZero();
+	}
+
+	@Test
+	void doesNotApplyOnceReleased() {
+		var buffer = newBuffer("cancelled");
+		var body = new RawBody(buffer);
+
+		body.release();
+
+		assertThat(buffer.getNativeBuffer().refCnt()).isZero();
+		assertThatThrownBy(() -> body.apply(view -> view)).isInstanceOf(IllegalStateException.class);
+	}
+
+	@Test
+	void copiesTheViewWhenReturned() {
+		var body = new RawBody(newBuffer("echo"));
+
+		Object output = body.apply(view -> view);
+
+		assertThat(output).isInstanceOf(ByteBuffer.class);
+		assertThat(StandardCharsets.UTF_8.decode((ByteBuffer) output).toString()).isEqualTo("echo");
+	}
+}
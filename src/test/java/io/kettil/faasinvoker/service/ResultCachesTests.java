@@ -0,0 +1,180 @@
+package io.kettil.faasinvoker.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+import reactor.util.context.Context;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ResultCachesTests {
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	private ResultCaches newCaches() {
+		return newCaches(Duration.ZERO);
+	}
+
+	private ResultCaches newCaches(Duration timeout) {
+		var pathProperties = new InvokerProperties.PathProperties();
+		pathProperties.getCache().setEnabled(true);
+		pathProperties.setTimeout(timeout);
+
+		var properties = new InvokerProperties();
+		properties.getPaths().put("/lookup", pathProperties);
+
+		return new ResultCaches(properties, meterRegistry, new ObjectMapper());
+	}
+
+	private ResultCaches.ResultCache newCache() {
+		return newCaches().forRoute("/lookup", "lookup", "1");
+	}
+
+	@Test
+	void disabledByDefault() {
+		assertThat(new ResultCaches(new InvokerProperties(), meterRegistry, new ObjectMapper())
+			.forRoute("/lookup", "lookup", "1")).isNull();
+	}
+
+	@Test
+	void replacesTheCacheOfAPathWhenItsFunctionChanges() {
+		var caches = newCaches();
+		var cache = caches.forRoute("/lookup", "lookup", "1");
+
+		StepVerifier.create(cache.get("a", input -> Mono.just("cached"))).expectNext("cached").verifyComplete();
+
+		assertThat(caches.forRoute("/lookup", "lookup", "1")).isSameAs(cache);
+		assertThat(caches.forRoute("/lookup", "search", "1")).isNotSameAs(cache);
+
+		var reloaded = caches.forRoute("/lookup", "search", "2");
+		StepVerifier.create(reloaded.get("a", input -> Mono.just("fresh"))).expectNext("fresh").verifyComplete();
+		assertThat(meterRegistry.find("cache.gets").tag("path", "/lookup").functionCounters()).isNotEmpty();
+	}
+
+	@Test
+	void dropsTheCachesOfRemovedPaths() {
+		var caches = newCaches();
+		var cache = caches.forRoute("/lookup", "lookup", "1");
+
+		caches.retain(Set.of("/lookup"));
+		assertThat(caches.forRoute("/lookup", "lookup", "1")).isSameAs(cache);
+
+		caches.retain(Set.of());
+		assertThat(meterRegistry.find("cache.gets").tag("path", "/lookup").functionCounters()).isEmpty();
+		assertThat(caches.forRoute("/lookup", "lookup", "1")).isNotSameAs(cache);
+	}
+
+	@Test
+	void invokesWithTheContextOfTheCaller() {
+		var cache = newCache();
+
+		StepVerifier.create(cache.get("a", input -> Mono.deferContextual(context -> Mono.just(context.get("trace"))))
+				.contextWrite(Context.of("trace", "parent")))
+			.expectNext("parent")
+			.verifyComplete();
+	}
+
+	@Test
+	void invokesOtherInputsFromWithinAnInvocation() {
+		var cache = newCache();
+
+		StepVerifier.create(cache.get("a", a -> cache.get("b", b -> Mono.just("b")).map(b -> "a" + b)))
+			.expectNext("ab")
+			.verifyComplete();
+	}
+
+	@Test
+	void doesNotCacheFailures() {
+		var cache = newCache();
+		var invocations = new AtomicInteger();
+
+		StepVerifier.create(cache.get("a", input -> Mono.error(new IllegalStateException("failed"))))
+			.verifyErrorMessage("failed");
+		StepVerifier.create(cache.get("a", input -> Mono.just(invocations.incrementAndGet())))
+			.expectNext(1)
+			.verifyComplete();
+	}
+
+	@Test
+	void coalescesConcurrentInvocationsWithTheSameInput() {
+		var cache = newCache();
+		var invocations = new AtomicInteger();
+		Sinks.One<Object> result = Sinks.one();
+
+		var first = cache.get("a", input -> {
+			invocations.incrementAndGet();
+			return result.asMono();
+		});
+		var second = cache.get("a", input -> {
+			invocations.incrementAndGet();
+			return Mono.just("other");
+		});
+
+		result.tryEmitValue("result");
+
+		StepVerifier.create(first).expectNext("result").verifyComplete();
+		StepVerifier.create(second).expectNext("result").verifyComplete();
+		assertThat(invocations).hasValue(1);
+	}
+
+	@Test
+	void cancelsAnInvocationOnceEveryCallerWaitingForItCancelled() {
+		var cache = newCache();
+		var cancelled = new AtomicBoolean();
+		Function<Object, Mono<Object>> hung = input -> Mono.never().doOnCancel(() -> cancelled.set(true));
+
+		Disposable first = cache.get("a", hung).subscribe();
+		Disposable second = cache.get("a", hung).subscribe();
+
+		first.dispose();
+		assertThat(cancelled).isFalse();
+
+		second.dispose();
+		assertThat(cancelled).isTrue();
+
+		StepVerifier.create(cache.get("a", input -> Mono.just("fresh"))).expectNext("fresh").verifyComplete();
+	}
+
+	@Test
+	void failsAnInvocationThatOutlivesThePathTimeoutForEveryCaller() {
+		var cache = newCaches(Duration.ofMillis(100)).forRoute("/lookup", "lookup", "1");
+
+		StepVerifier.create(cache.get("a", input -> Mono.never()))
+			.verifyError(TimeoutException.class);
+		StepVerifier.create(cache.get("a", input -> Mono.just("fresh")))
+			.expectNext("fresh")
+			.verifyComplete();
+	}
+
+	@Test
+	void keysOnCanonicalizedInput() {
+		var cache = newCache();
+		var invocations = new AtomicInteger();
+
+		Map<String, Object> ab = new LinkedHashMap<>();
+		ab.put("a", 1);
+		ab.put("b", 2);
+		Map<String, Object> ba = new LinkedHashMap<>();
+		ba.put("b", 2);
+		ba.put("a", 1);
+
+		StepVerifier.create(cache.get(ab, input -> Mono.just(invocations.incrementAndGet())))
+			.expectNext(1).verifyComplete();
+		StepVerifier.create(cache.get(ba, input -> Mono.just(invocations.incrementAndGet())))
+			.expectNext(1).verifyComplete();
+	}
+}
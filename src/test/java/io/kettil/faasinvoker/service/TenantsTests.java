@@ -0,0 +1,190 @@
+package io.kettil.faasinvoker.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.kettil.faasinvoker.config.InvokerProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.cloud.function.context.catalog.SimpleFunctionRegistry;
+import org.springframework.cloud.function.json.JacksonMapper;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+class TenantsTests {
+	private static final String HANDLER = "tenant.Upper";
+
+	@TempDir
+	Path directory;
+
+	private byte[] handlerClass;
+
+	@BeforeEach
+	void compileHandler(@TempDir Path sources) throws IOException {
+		Path source = sources.resolve("tenant/Upper.java");
+		Files.createDirectories(source.getParent());
+		Files.writeString(source, "package tenant;\n"
+			+ "public class Upper implements java.util.function.Function<String, String> {\n"
+			+ "    public String apply(String s) { return s.toUpperCase(); }\n"
+			+ "}\n");
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assertThat(compiler.run(null, null, null, source.toString())).isZero();
+		handlerClass = Files.readAllBytes(sources.resolve("tenant/Upper.class"));
+	}
+
+	private Tenants newTenants() throws IOException {
+		return new Tenants(
+			"", directory.toString(), "", null, new JacksonMapper(new ObjectMapper()), new InvokerProperties());
+	}
+
+	private void writeManifest(String name, String... paths) throws IOException {
+		var sb = new StringBuilder("location: file:/functions/" + name + ".jar\npaths:\n");
+		for (String path : paths)
+			sb.append("  ").append(path).append(":\n    handler: ").append(HANDLER).append('\n');
+		Files.writeString(directory.resolve(name + ".yaml"), sb);
+	}
+
+	private void writeJar(String name, String classPrefix) throws IOException {
+		Path jar = directory.resolve(name + ".jar");
+		try (var out = new JarOutputStream(Files.newOutputStream(jar))) {
+			out.putNextEntry(new JarEntry(classPrefix + "tenant/Upper.class"));
+			out.write(handlerClass);
+			out.closeEntry();
+		}
+		Files.setLastModifiedTime(jar, FileTime.fromMillis(Files.getLastModifiedTime(jar).toMillis() + 1000));
+	}
+
+	@Test
+	void loadsEachTenantInAClassLoaderOfItsOwn() throws IOException {
+		writeManifest("billing", "/upper");
+		writeJar("billing", "");
+		writeManifest("shipping", "/upper");
+		writeJar("shipping", "");
+
+		List<Tenant> tenants = newTenants().getTenants();
+
+		assertThat(tenants).extracting(Tenant::getName, Tenant::getPrefix)
+			.containsExactly(
+				tuple("billing", "/billing"),
+				tuple("shipping", "/shipping"));
+
+		Tenant billing = tenants.get(0);
+		SimpleFunctionRegistry.FunctionInvocationWrapper upper = billing.getCatalog().lookup("upper");
+		assertThat(upper.apply("hello")).isEqualTo("HELLO");
+		assertThat(upper.getTarget().getClass().getClassLoader()).isSameAs(billing.getClassLoader());
+		assertThat(billing.getClassLoader()).isNotSameAs(tenants.get(1).getClassLoader());
+	}
+
+	@Test
+	void reloadsOnlyChangedTenants() throws IOException {
+		writeManifest("billing", "/upper");
+		writeJar("billing", "");
+		writeManifest("shipping", "/upper");
+		writeJar("shipping", "");
+
+		Tenants tenants = newTenants();
+		List<Tenant> current = tenants.getTenants();
+		assertThat(tenants.load()).isEqualTo(current);
+
+		writeManifest("billing", "/upper", "/shout");
+		Files.delete(directory.resolve("shipping.yaml"));
+		List<Tenant> next = tenants.load();
+
+		assertThat(next).hasSize(1);
+		assertThat(next.get(0).getName()).isEqualTo("billing");
+		assertThat(next.get(0)).isNotSameAs(current.get(0));
+		assertThat(next.get(0).getManifest().getPaths()).containsOnlyKeys("/upper", "/shout");
+
+		writeJar("billing", "");
+		tenants.setTenants(next);
+		assertThat(tenants.load().get(0)).isNotSameAs(next.get(0));
+	}
+
+	@Test
+	void closesTheClassLoadersOfReplacedAndRemovedTenants() throws IOException {
+		writeManifest("billing", "/upper");
+		writeJar("billing", "");
+		writeManifest("shipping", "/upper");
+		writeJar("shipping", "");
+
+		Tenants tenants = newTenants();
+		List<Tenant> current = tenants.getTenants();
+
+		writeJar("billing", "");
+		Files.delete(directory.resolve("shipping.yaml"));
+		List<Tenant> next = tenants.load();
+		tenants.setTenants(next);
+
+		assertThat(current.get(0).getClassLoader().getResource("tenant/Upper.class")).isNull();
+		assertThat(current.get(1).getClassLoader().getResource("tenant/Upper.class")).isNull();
+		assertThat(next.get(0).getClassLoader().getResource("tenant/Upper.class")).isNotNull();
+	}
+
+	@Test
+	void releasesTenantsLoadedForRejectedManifests() throws IOException {
+		writeManifest("billing", "/upper");
+		writeJar("billing", "");
+
+		Tenants tenants = newTenants();
+		writeJar("billing", "");
+		List<Tenant> rejected = tenants.load();
+		tenants.release(rejected);
+
+		assertThat(rejected.get(0).getClassLoader().getResource("tenant/Upper.class")).isNull();
+		assertThat(tenants.getTenants().get(0).getClassLoader().getResource("tenant/Upper.class")).isNotNull();
+	}
+
+	@Test
+	void rejectsAJarWithoutTheHandler() throws IOException {
+		writeManifest("billing", "/upper");
+		writeJar("billing", "other/");
+
+		assertThatThrownBy(this::newTenants)
+			.isInstanceOf(IllegalStateException.class)
+			.hasMessageContaining("Cannot load handlers of tenant billing");
+	}
+
+	@Test
+	void rejectsSpringBootJars() throws IOException {
+		writeManifest("billing", "/upper");
+		writeJar("billing", "BOOT-INF/classes/");
+
+		assertThatThrownBy(this::newTenants)
+			.isInstanceOf(IllegalStateException.class)
+			.hasMessageContaining("is a Spring Boot jar");
+	}
+
+	@Test
+	void rejectsAnUnreadableJar() throws IOException {
+		writeManifest("billing", "/upper");
+		try (OutputStream out = Files.newOutputStream(directory.resolve("billing.jar"))) {
+			out.write("not a jar".getBytes());
+		}
+
+		assertThatThrownBy(this::newTenants)
+			.isInstanceOf(IllegalStateException.class)
+			.hasMessageContaining("Cannot read jar file");
+	}
+
+	@Test
+	void rejectsAMissingJar() throws IOException {
+		writeManifest("billing", "/upper");
+
+		assertThatThrownBy(this::newTenants)
+			.isInstanceOf(IllegalStateException.class)
+			.hasMessageContaining("is missing");
+	}
+}